@@ -0,0 +1,134 @@
+package louizidis.peter.shapessorter.bench;
+
+import louizidis.peter.shapessorter.report.CategoryGrouping;
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.util.IntList;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Description: Groups shapes into categories using every core. The shapes are split into partitions, each partition
+ *              is grouped on a fork-join pool into primitive lists of IDs indexed by category code, and the partial
+ *              results are joined back together in partition order.
+ * Notes:   Joining in partition order means the IDs in each category come out in the same order the shapes were
+ *          given in, exactly as if they had been grouped on one thread, so the result is deterministic.
+ *          The program itself groups shapes with CategoryIndex, which keeps them grouped as they're registered. This
+ *          is kept for the benchmarks, to show what grouping every shape from scratch costs against that.
+ */
+
+public class ShapeGrouper
+{
+    private static final int PARTITION_SIZE = 64 * 1024; //below this, splitting costs more than it saves
+
+    private final ForkJoinPool pool;
+
+    /* @param pool The pool to group partitions on. */
+    public ShapeGrouper(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /* Groups shapes using a pool with one thread per core.
+     * @param shapes The shapes to group.
+     * @return The shape IDs grouped and sorted by category. */
+    public static CategoryGrouping group(Collection<Shape> shapes)
+    {
+        ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            return new ShapeGrouper(pool).groupShapes(shapes);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /* @param shapes The shapes to group.
+     * @return The shape IDs grouped and sorted by category. */
+    public CategoryGrouping groupShapes(Collection<Shape> shapes)
+    {
+        Shape[] snapshot = shapes.toArray(new Shape[shapes.size()]);
+        return new CategoryGrouping(pool.invoke(new GroupTask(snapshot, 0, snapshot.length)));
+    }
+
+    /* Groups a range of shapes, splitting it in half until the pieces are small enough to do directly. */
+    private static class GroupTask extends RecursiveTask<IntList[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Shape[] shapes;
+        private final int from;
+        private final int to;
+
+        private GroupTask(Shape[] shapes, int from, int to)
+        {
+            this.shapes = shapes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected IntList[] compute()
+        {
+            if (to - from <= PARTITION_SIZE)
+            {
+                return groupDirectly();
+            }
+
+            int middle = (from + to) >>> 1;
+            GroupTask second = new GroupTask(shapes, middle, to);
+            second.fork();
+            IntList[] first = new GroupTask(shapes, from, middle).compute();
+            return join(first, second.join());
+        }
+
+        private IntList[] groupDirectly()
+        {
+            IntList[] byCategory = new IntList[0];
+            for (int i = from; i < to; i++)
+            {
+                Shape shape = shapes[i];
+                int code = shape.getCategory();
+                if (code >= byCategory.length)
+                {
+                    byCategory = Arrays.copyOf(byCategory, code + 1);
+                }
+                if (byCategory[code] == null)
+                {
+                    byCategory[code] = new IntList();
+                }
+                byCategory[code].add(shape.getShapeID());
+            }
+            return byCategory;
+        }
+
+        /* Appends the second partition's lists to the first's, keeping the order. */
+        private static IntList[] join(IntList[] first, IntList[] second)
+        {
+            if (second.length > first.length)
+            {
+                first = Arrays.copyOf(first, second.length);
+            }
+            for (int code = 0; code < second.length; code++)
+            {
+                if (second[code] == null)
+                {
+                    continue;
+                }
+                if (first[code] == null)
+                {
+                    first[code] = second[code];
+                }
+                else
+                {
+                    first[code].addAll(second[code]);
+                }
+            }
+            return first;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package louizidis.peter.shapessorter.bench;
+
+import louizidis.peter.shapessorter.ShapesSorter;
+import louizidis.peter.shapessorter.io.ParallelShapeLoader;
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+import louizidis.peter.shapessorter.io.ShapeRowHandler;
+import louizidis.peter.shapessorter.io.StoreRowHandler;
+import louizidis.peter.shapessorter.report.CategoryGrouping;
+import louizidis.peter.shapessorter.report.SortedShapesReport;
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeKernels;
+import louizidis.peter.shapessorter.shapes.ShapeStore;
+import louizidis.peter.shapessorter.util.IntList;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: JMH benchmarks for the hot paths of the program: parsing and loading the input, classifying shapes,
+ *              working out areas and perimeters, rounding, grouping by category and writing the output file. The
+ *              input file is generated by ShapesFileGenerator with a fixed seed, so runs are repeatable.
+ * Usage:   mvn install
+ *          mvn -f benchmarks/pom.xml package
+ *          java -jar benchmarks/target/benchmarks.jar -prof gc [-p shapes=200000] [-p mix=1:1:1] [name regexp]
+ *          shapes is the size of the generated file, and mix the proportions of ellipses, triangles and
+ *          quadrilaterals. With -prof gc, gc.alloc.rate.norm is the bytes allocated per operation.
+ * Notes:   Every operation is one pass over all the shapes in the file, or over all the shapes of one type for the
+ *          benchmarks with a type parameter, so a cost per shape is the score over the number of shapes.
+ *          The forked JVMs get a 2 GB heap, which is comfortably above the default data set and keeps the GC
+ *          numbers about the code rather than the heap.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ShapesBenchmarks
+{
+    private static final int KERNEL_BLOCK = 4096; //the same size blocks as the batch pipeline classifies
+
+    /* The generated input file, loaded every way the benchmarks need it. */
+    @State(Scope.Benchmark)
+    public static class Input
+    {
+        @Param("200000")
+        public int shapes;
+
+        @Param("1:1:1")
+        public String mix;
+
+        private Path inputFile;
+        private Path outputFile;
+        private final List<String> lines = new ArrayList<>();
+        private final ShapeStore store = new ShapeStore();
+        private final RowChecksum rows = new RowChecksum();
+        private ShapeFileParser parser;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException
+        {
+            inputFile = Files.createTempFile("Shapes", ".txt");
+            outputFile = Files.createTempFile("SortedShapes", ".txt");
+            new ShapesFileGenerator(mix, 1).generate(inputFile, shapes);
+            lines.addAll(Files.readAllLines(inputFile, StandardCharsets.UTF_8));
+            ParallelShapeLoader.load(inputFile);
+            StoreRowHandler.load(inputFile, store);
+            parser = new ShapeFileParser(rows);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException
+        {
+            Files.deleteIfExists(inputFile);
+            Files.deleteIfExists(outputFile);
+        }
+    }
+
+    /* The shapes of one type from the input, as objects, as rows of the store and as the kernels' columns. */
+    @State(Scope.Benchmark)
+    public static class OneType
+    {
+        @Param({"Ellipse", "Triangle", "Quadrilateral"})
+        public String type;
+
+        private final List<Shape> shapes = new ArrayList<>();
+        private final IntList rows = new IntList();
+        private ShapeStore store;
+        private final ShapeStore.Views views = new ShapeStore.Views();
+
+        private final ShapeKernels kernels = new ShapeKernels();
+        private byte[] sides;
+        private float[] dimensionA;
+        private float[] dimensionB;
+        private float[] dimensionC;
+        private int[] categories;
+        private double[] surfaceAreas;
+        private double[] perimeters;
+
+        @Setup(Level.Trial)
+        public void setUp(Input input)
+        {
+            store = input.store;
+            for (Shape shape : Shape.getRegistry())
+            {
+                if (shape.getClass().getSimpleName().equals(type))
+                {
+                    shapes.add(shape);
+                    rows.add(store.rowOf(shape.getShapeID()));
+                }
+            }
+
+            int count = rows.size();
+            sides = new byte[count];
+            dimensionA = new float[count];
+            dimensionB = new float[count];
+            dimensionC = new float[count];
+            for (int i = 0; i < count; i++)
+            {
+                int row = rows.get(i);
+                sides[i] = (byte)store.getSides(row);
+                dimensionA[i] = store.getDimension(row, 0);
+                dimensionB[i] = store.getDimension(row, 1);
+                dimensionC[i] = store.getDimension(row, 2);
+            }
+            categories = new int[count];
+            surfaceAreas = new double[count];
+            perimeters = new double[count];
+        }
+    }
+
+    /* Values to round, spread over the range of areas and perimeters the generator makes. */
+    @State(Scope.Benchmark)
+    public static class Values
+    {
+        private final double[] values = new double[1024];
+
+        @Setup(Level.Trial)
+        public void setUp()
+        {
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = Math.PI * i * 1.37;
+            }
+        }
+    }
+
+    @Benchmark
+    public int parseInstantiateShapeFromInputString(Input input)
+    {
+        for (String line : input.lines)
+        {
+            if (!line.startsWith("#") && !line.isEmpty())
+            {
+                Shape.instantiateShapeFromInputString(line);
+            }
+        }
+        return Shape.getRegistry().size();
+    }
+
+    @Benchmark
+    public double parseFile(Input input) throws IOException
+    {
+        input.rows.checksum = 0;
+        input.parser.parseFile(input.inputFile);
+        return input.rows.checksum;
+    }
+
+    @Benchmark
+    public int loadParallel(Input input) throws IOException
+    {
+        ParallelShapeLoader.load(input.inputFile);
+        return Shape.getRegistry().size();
+    }
+
+    @Benchmark
+    public void classify(OneType type, Blackhole blackhole)
+    {
+        for (Shape shape : type.shapes)
+        {
+            blackhole.consume(shape.getShapeTypeLabel());
+        }
+    }
+
+    //flyweight views forget their cached metrics when re-bound, so these measure the actual formulas
+    @Benchmark
+    public void metricsArea(OneType type, Blackhole blackhole)
+    {
+        for (int i = 0; i < type.rows.size(); i++)
+        {
+            blackhole.consume(type.views.get(type.store, type.rows.get(i)).getSurfaceArea());
+        }
+    }
+
+    @Benchmark
+    public void metricsPerimeter(OneType type, Blackhole blackhole)
+    {
+        for (int i = 0; i < type.rows.size(); i++)
+        {
+            blackhole.consume(type.views.get(type.store, type.rows.get(i)).getPermimeter());
+        }
+    }
+
+    //the same shapes as columns, with the category, area and perimeter all worked out a block at a time
+    @Benchmark
+    public void kernels(OneType type, Blackhole blackhole)
+    {
+        int count = type.sides.length;
+        for (int start = 0; start < count; start += KERNEL_BLOCK)
+        {
+            type.kernels.classify(type.sides, type.dimensionA, type.dimensionB, type.dimensionC, start,
+                    Math.min(count, start + KERNEL_BLOCK), type.categories, type.surfaceAreas, type.perimeters);
+        }
+        blackhole.consume(type.categories);
+        blackhole.consume(type.surfaceAreas);
+        blackhole.consume(type.perimeters);
+    }
+
+    @Benchmark
+    public void round(Values values, Blackhole blackhole)
+    {
+        for (double value : values.values)
+        {
+            blackhole.consume(ShapesSorter.round(value, 2));
+        }
+    }
+
+    @Benchmark
+    public CategoryGrouping groupParallel(Input input)
+    {
+        return ShapeGrouper.group(Shape.getRegistry().toList());
+    }
+
+    @Benchmark
+    public CategoryGrouping groupCategoryIndex(Input input)
+    {
+        return Shape.getCategoryIndex().snapshot();
+    }
+
+    @Benchmark
+    public void reportWrite(Input input) throws IOException
+    {
+        new SortedShapesReport(Shape.getCategoryIndex().snapshot(), Shape.getRegistry()).write(input.outputFile);
+    }
+
+    /* Folds every parsed row into a number, so the parser's work counts as used. */
+    private static class RowChecksum implements ShapeRowHandler
+    {
+        private double checksum;
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            checksum += shapeID + dimensions[0];
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            checksum++;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package louizidis.peter.shapessorter.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+/**
+ * Description: Writes synthetic shapes input files of any size for benchmarking. The mix of ellipses, triangles and
+ *              quadrilaterals is configurable, and roughly a third of each are the "regular" sub type (circles,
+ *              squares, isosceles and equilateral triangles) so every category gets used.
+ * Usage:   java -cp benchmarks/target/benchmarks.jar louizidis.peter.shapessorter.bench.ShapesFileGenerator
+ *              <file> <shapes> [ellipse:triangle:quad] [seed]
+ *          eg. "ShapesFileGenerator Shapes.txt 10000000 1:1:1" writes ten million shapes in equal proportions.
+ *          ShapesBenchmarks generates its input with this too.
+ */
+
+public class ShapesFileGenerator
+{
+    private final int ellipseWeight;
+    private final int triangleWeight;
+    private final int quadrilateralWeight;
+    private final Random random;
+
+    /* @param mix The relative amounts of ellipses, triangles and quadrilaterals, eg. "2:1:1".
+     * @param seed The random seed, so the same file can be generated again. */
+    public ShapesFileGenerator(String mix, long seed)
+    {
+        String[] weights = mix.split(":");
+        if (weights.length != 3)
+        {
+            throw new IllegalArgumentException("The mix must look like ellipse:triangle:quadrilateral, eg. 1:1:1");
+        }
+        ellipseWeight = Integer.parseInt(weights[0]);
+        triangleWeight = Integer.parseInt(weights[1]);
+        quadrilateralWeight = Integer.parseInt(weights[2]);
+        if (ellipseWeight < 0 || triangleWeight < 0 || quadrilateralWeight < 0
+                || ellipseWeight + triangleWeight + quadrilateralWeight == 0)
+        {
+            throw new IllegalArgumentException("The mix needs at least one positive weight and no negative ones.");
+        }
+        random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length < 2)
+        {
+            System.out.println("Usage: ShapesFileGenerator <file> <shapes> [ellipse:triangle:quad] [seed]");
+            return;
+        }
+
+        String mix = args.length > 2 ? args[2] : "1:1:1";
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+        new ShapesFileGenerator(mix, seed).generate(Paths.get(args[0]), Integer.parseInt(args[1]));
+    }
+
+    /* Writes a file of shapes with IDs from 1 up to the given count.
+     * @param path The file to write, replacing any existing file.
+     * @param shapes How many shapes to write. */
+    public void generate(Path path, int shapes) throws IOException
+    {
+        try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8))
+        {
+            writer.write("#Generated by ShapesFileGenerator");
+            writer.newLine();
+            writer.newLine();
+
+            StringBuilder line = new StringBuilder(64);
+            for (int shapeID = 1; shapeID <= shapes; shapeID++)
+            {
+                line.setLength(0);
+                appendShape(line, shapeID);
+                writer.append(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    /* Appends one randomly generated shape in the input file format. */
+    void appendShape(StringBuilder line, int shapeID)
+    {
+        boolean regular = random.nextInt(3) == 0;
+        float sideA = nextLength();
+        float sideB = regular ? sideA : nextLength();
+        line.append(shapeID);
+
+        int pick = random.nextInt(ellipseWeight + triangleWeight + quadrilateralWeight);
+        if (pick < ellipseWeight)
+        {
+            line.append(" 1 ").append(sideA).append(' ').append(sideB);
+        }
+        else if (pick < ellipseWeight + triangleWeight)
+        {
+            float angle = regular && random.nextBoolean() ? 60 : (1 + random.nextInt(17800)) / 100f;
+            line.append(" 3 ").append(sideA).append(' ').append(sideB).append(' ').append(angle);
+        }
+        else
+        {
+            line.append(" 4 ").append(sideA).append(' ').append(sideB);
+        }
+    }
+
+    /* @return A length between 0.1 and 100 with up to two decimal places, like a hand made input file. */
+    private float nextLength()
+    {
+        return (10 + random.nextInt(9991)) / 100f;
+    }
+}
@@ -1,18 +1,38 @@
 package louizidis.peter.shapessorter;
 
+import louizidis.peter.shapessorter.batch.BatchPipeline;
+import louizidis.peter.shapessorter.batch.ExternalShapeSorter;
+import louizidis.peter.shapessorter.batch.SummaryPipeline;
+import louizidis.peter.shapessorter.cluster.LocalCluster;
+import louizidis.peter.shapessorter.cluster.ShardCoordinator;
+import louizidis.peter.shapessorter.cluster.ShardWorker;
+import louizidis.peter.shapessorter.io.CompressedFiles;
+import louizidis.peter.shapessorter.io.InputFileWatcher;
+import louizidis.peter.shapessorter.io.ParallelShapeLoader;
+import louizidis.peter.shapessorter.metrics.ShapesMetrics;
+import louizidis.peter.shapessorter.report.CategoryGrouping;
+import louizidis.peter.shapessorter.report.ReportOrder;
+import louizidis.peter.shapessorter.report.ShapesSummary;
+import louizidis.peter.shapessorter.report.SortedShapesReport;
+import louizidis.peter.shapessorter.service.QueryService;
+import louizidis.peter.shapessorter.shapes.CategoryIndex;
 import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+import louizidis.peter.shapessorter.shapes.ShapeSnapshot;
 
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Author: Peter Louizidis
@@ -34,43 +54,456 @@ public class ShapesSorter
 {
     private static final String INPUT_FILENAME = "Shapes.txt";
     private static final String OUTPUT_FILENAME = "SortedShapes.txt";
+    private static String outputFileName = OUTPUT_FILENAME; //compressed too, if the input file is
+    private static final String SNAPSHOT_FILENAME = "Shapes.snapshot";
+    private static final int PARALLEL_REPORT_SIZE = 1000000; //write the output file in parallel from this many shapes
     private static Scanner scanner = new Scanner(System.in);
 
+    /* For the allocation free rounding method. Twice each scale must fit in 26 bits for the exact products to work,
+     * and results must stay well inside the range where doubles can hold every integer. */
+    private static final double[] ROUNDING_SCALES = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8};
+    private static final double ROUNDING_LIMIT = 0x1p50;
+    private static final double SPLITTER = 0x1p27 + 1;
+
+    /* With no arguments, loads Shapes.txt from next to the .jar file and runs the interactive menu, applying any
+     * changes made to Shapes.txt in the meantime. Otherwise writes the sorted output file for the given input file
+     * and exits, without any prompts, for use in scripts and scheduled jobs:
+     * --batch <input file> <output file>  streams the input through a pipeline, writing shapes in input order.
+     * --sort <input file> <output file> [--memory <megabytes>]  sorts on disk for inputs bigger than the heap, giving
+     *                                     the same output as the interactive mode.
+     * --summary <input file> [<output file>]  writes the count of each category, with the spread of their areas and
+     *                                     perimeters, instead of the shapes. Takes the same memory for any size input,
+     *                                     but counts every row, so repeated IDs aren't merged. Writes to the console
+     *                                     without an output file.
+     * --sharded <input file> <output file> [--shards <count> | --workers <host:port>,...]  splits the shapes by ID
+     *                                     between worker processes, either started here on the loopback address or
+     *                                     already running elsewhere, and merges what they send back into the same
+     *                                     output as the interactive mode.
+     * --shard-worker <port> [--bind <address>]  runs one of those workers, on the loopback address unless told
+     *                                     otherwise. A port of 0 picks any free one.
+     * "--serve <port>" runs the interactive menu as usual, with a QueryService answering lookups on the port too.
+     * Input files can be gzip compressed, Shapes.txt.gz included, and output files named *.gz are compressed.
+     * -Dshapessorter.report.order=<order> orders the shapes in each category of the interactive mode's output file by
+     * area or perimeter instead of ID, see ReportOrder.
+     * Shape types besides ellipses, triangles and quadrilaterals can be added as ShapeType plugins on the class
+     * path. */
     public static void main(String[] args)
     {
-        instantiateShapesFromInputFile();
+        ShapesMetrics.registerMBeanInBackground();
+        ShapesMetrics.startPeriodicLog();
+
+        int queryPort = -1;
+        if (args.length == 2 && args[0].equals("--serve"))
+        {
+            queryPort = parsePort(args[1]);
+        }
+        else if (args.length > 0)
+        {
+            runHeadless(args);
+            return;
+        }
+
+        //the watcher takes its starting point before the load, so changes made during the load aren't missed
+        Path inputFile = findInputFile();
+        InputFileWatcher watcher = watchInputFile(inputFile);
+        instantiateShapesFromInputFile(inputFile, watcher != null ? watcher.getOffset() : Long.MAX_VALUE);
+        startWatching(watcher);
+        QueryService queryService = null;
+        if (queryPort >= 0)
+        {
+            try
+            {
+                queryService = new QueryService(queryPort);
+                System.out.println("Answering queries on http://localhost:" + queryService.getPort() + "/");
+            }
+            catch (IOException e)
+            {
+                //do proper error handling etc...
+                System.out.println("Couldn't start the query service: " + e);
+            }
+        }
+
         runMainMenu();
+        if (queryService != null)
+        {
+            queryService.stop();
+        }
+        if (watcher != null)
+        {
+            try
+            {
+                watcher.close();
+            }
+            catch (IOException e)
+            {
+                //exiting anyway
+            }
+        }
+    }
+
+    /* Remembers how the input file is now, as the starting point for applying changes to it. Called before the
+     * file is loaded, so that nothing written to it from then on is missed.
+     * @return The watcher, or null if the file can't be watched, in which case changes need a restart. */
+    private static InputFileWatcher watchInputFile(Path inputFile)
+    {
+        if (inputFile == null)
+        {
+            return null;
+        }
+        try
+        {
+            return new InputFileWatcher(inputFile);
+        }
+        catch (IOException e)
+        {
+            //do proper error handling etc...
+            System.out.println("Couldn't watch " + inputFile + " for changes: " + e);
+            return null;
+        }
+    }
+
+    /* Starts applying changes to the input file as they're made, so the menu and query service always work from
+     * what's in the file now. Changes made while the file was being loaded are applied first, which costs nothing
+     * when there weren't any. */
+    private static void startWatching(InputFileWatcher watcher)
+    {
+        if (watcher == null)
+        {
+            return;
+        }
+        try
+        {
+            watcher.start();
+            watcher.reload();
+        }
+        catch (IOException e)
+        {
+            //do proper error handling etc...
+            System.out.println("Couldn't watch the input file for changes: " + e);
+        }
+    }
+
+    /* @return The port number, or exits with the usage if it isn't one. */
+    private static int parsePort(String port)
+    {
+        try
+        {
+            int number = Integer.parseInt(port);
+            if (number >= 0 && number <= 65535)
+            {
+                return number;
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            //falls through to the usage
+        }
+        printUsage();
+        System.exit(1);
+        return -1;
+    }
+
+    private static void printUsage()
+    {
+        System.out.println("Usage: ShapesSorter [--serve <port>]");
+        System.out.println("       ShapesSorter [--batch <input file> <output file>]");
+        System.out.println("       ShapesSorter [--sort <input file> <output file> [--memory <megabytes>]]");
+        System.out.println("       ShapesSorter [--summary <input file> [<output file>]]");
+        System.out.println("       ShapesSorter [--sharded <input file> <output file> "
+                + "[--shards <count> | --workers <host:port>,...]]");
+        System.out.println("       ShapesSorter [--shard-worker <port> [--bind <address>]]");
+    }
+
+    /* Runs one of the headless modes. Exits with 1 for bad arguments and 3 if the files can't be read or written. */
+    private static void runHeadless(String[] args)
+    {
+        if (args[0].equals("--sharded"))
+        {
+            runSharded(args);
+            return;
+        }
+        if (args[0].equals("--shard-worker"))
+        {
+            runShardWorker(args);
+            return;
+        }
+        if (args[0].equals("--summary"))
+        {
+            runSummary(args);
+            return;
+        }
+
+        boolean batch = args.length == 3 && args[0].equals("--batch");
+        boolean sort = (args.length == 3 || args.length == 5 && args[3].equals("--memory")) && args[0].equals("--sort");
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 4;
+        if (sort && args.length == 5)
+        {
+            try
+            {
+                memoryBudget = Long.parseLong(args[4]) * 1024 * 1024;
+            }
+            catch (NumberFormatException e)
+            {
+                sort = false;
+            }
+        }
+        if (!batch && !sort)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        Path input = Paths.get(args[1]);
+        Path output = Paths.get(args[2]);
+        try
+        {
+            long start = System.nanoTime();
+            long shapes = batch ? new BatchPipeline().run(input, output)
+                    : new ExternalShapeSorter(memoryBudget).run(input, output);
+            System.out.println("Wrote " + shapes + " shapes to " + output + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+        catch (IOException e)
+        {
+            //do proper error handling etc...
+            System.out.println("Failed to write " + output + ": " + e);
+            System.exit(3);
+        }
+    }
+
+    /* Writes the approximate summary of an input file, to the output file if one is given or the console if not.
+     * Exits with 1 for bad arguments and 3 if the files can't be read or written. */
+    private static void runSummary(String[] args)
+    {
+        if (args.length != 2 && args.length != 3)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        Path input = Paths.get(args[1]);
+        try
+        {
+            long start = System.nanoTime();
+            ShapesSummary summary = new SummaryPipeline().run(input);
+            if (args.length == 2)
+            {
+                StringBuilder text = new StringBuilder();
+                summary.write(text);
+                System.out.print(text);
+            }
+            else
+            {
+                Path output = Paths.get(args[2]);
+                try (Writer writer = Channels.newWriter(CompressedFiles.openForWriting(output), "UTF-8"))
+                {
+                    summary.write(writer);
+                }
+            }
+            System.out.println("Summarized " + summary.count() + " shapes in "
+                    + (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+        catch (IOException e)
+        {
+            //do proper error handling etc...
+            System.out.println("Failed to summarize " + input + ": " + e);
+            System.exit(3);
+        }
+    }
+
+    /* Writes the sorted output file using shard workers, starting a local cluster of them unless their addresses are
+     * given. Exits with 1 for bad arguments and 3 if the output can't be written. */
+    private static void runSharded(String[] args)
+    {
+        int shards = 2;
+        List<InetSocketAddress> workers = null;
+        boolean valid = args.length == 3 || args.length == 5;
+        try
+        {
+            if (args.length == 5 && args[3].equals("--shards"))
+            {
+                shards = Integer.parseInt(args[4]);
+                valid = shards > 0;
+            }
+            else if (args.length == 5 && args[3].equals("--workers"))
+            {
+                workers = new ArrayList<>();
+                for (String worker : args[4].split(","))
+                {
+                    int colon = worker.lastIndexOf(':');
+                    workers.add(new InetSocketAddress(worker.substring(0, colon),
+                            Integer.parseInt(worker.substring(colon + 1))));
+                }
+            }
+            else if (args.length == 5)
+            {
+                valid = false;
+            }
+        }
+        catch (RuntimeException e) //a bad number, or a worker without a port
+        {
+            valid = false;
+        }
+        if (!valid)
+        {
+            printUsage();
+            System.exit(1);
+        }
+
+        Path input = Paths.get(args[1]);
+        Path output = Paths.get(args[2]);
+        LocalCluster cluster = null;
+        try
+        {
+            long start = System.nanoTime();
+            if (workers == null)
+            {
+                cluster = new LocalCluster(shards);
+                workers = cluster.getAddresses();
+            }
+            long shapes = new ShardCoordinator(workers).run(input, output);
+            System.out.println("Wrote " + shapes + " shapes from " + workers.size() + " shards to " + output + " in "
+                    + (System.nanoTime() - start) / 1000000 + " ms.");
+        }
+        catch (IOException e)
+        {
+            //do proper error handling etc...
+            System.out.println("Failed to write " + output + ": " + e);
+            System.exit(3);
+        }
+        finally
+        {
+            if (cluster != null)
+            {
+                cluster.close();
+            }
+        }
     }
 
-    /* Handles the instantiation of shape objects from the input file. */
-    private static void instantiateShapesFromInputFile()
+    /* Runs a shard worker until the process is stopped. With --attached, which a LocalCluster passes to the workers
+     * it starts, the worker also stops once its standard input is closed. */
+    private static void runShardWorker(String[] args)
     {
+        int port = -1;
+        InetAddress address = InetAddress.getLoopbackAddress();
+        boolean attached = false;
+        try
+        {
+            port = parsePort(args.length > 1 ? args[1] : "");
+            for (int i = 2; i < args.length; i++)
+            {
+                if (args[i].equals("--attached"))
+                {
+                    attached = true;
+                }
+                else if (args[i].equals("--bind") && i + 1 < args.length)
+                {
+                    address = InetAddress.getByName(args[++i]);
+                }
+                else
+                {
+                    port = -1;
+                }
+            }
+        }
+        catch (IOException e) //an unknown address
+        {
+            port = -1;
+        }
+        if (port < 0)
+        {
+            printUsage();
+            System.exit(1);
+        }
 
-        Path path = getFilePath(INPUT_FILENAME);
+        try (ShardWorker worker = new ShardWorker(address, port))
+        {
+            if (attached)
+            {
+                exitWhenInputCloses();
+            }
+            System.out.println(ShardWorker.LISTENING + worker.getPort());
+            worker.serve();
+        }
+        catch (IOException e)
+        {
+            //do proper error handling etc...
+            System.out.println("Couldn't start the shard worker: " + e);
+            System.exit(3);
+        }
+    }
+
+    /* Exits the program once standard input reaches its end, eg. because the process that started this one has
+     * gone. */
+    private static void exitWhenInputCloses()
+    {
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (System.in.read() >= 0)
+                    {
+                        //only waiting for the end
+                    }
+                }
+                catch (IOException e)
+                {
+                    //as good as closed
+                }
+                System.exit(0);
+            }
+        }, "ParentWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Handles the instantiation of shape objects from the input file.
+     * @param path The input file, or null if it couldn't be found.
+     * @param length How much of the file to parse, the rest being left to the watcher. */
+    private static void instantiateShapesFromInputFile(Path path, long length)
+    {
         if (path == null)
         {
             //do proper error handling
             return;
         }
 
-        Scanner scanner = null;
+        //a snapshot left by an earlier start restores everything without parsing, unless the input file has changed
+        long start = System.nanoTime();
+        long rowsBefore = ShapesMetrics.getInstance().getRowsParsed();
+        Path snapshot = path.resolveSibling(SNAPSHOT_FILENAME);
+        if (ShapeSnapshot.load(snapshot, path))
+        {
+            ShapesMetrics.recordLoad(start, rowsBefore);
+            return;
+        }
+
+        long sourceSize = -1;
+        long sourceModified = -1;
         try
         {
-            scanner = new Scanner(path);
+            //taken before loading, so a change made during the load keeps the snapshot from being written
+            sourceSize = Files.size(path);
+            sourceModified = Files.getLastModifiedTime(path).toMillis();
+            ParallelShapeLoader.load(path, length);
         }
         catch (IOException e)
         {
             //Do some proper error handling etc...
             System.exit(3);
         }
+        ShapesMetrics.recordLoad(start, rowsBefore);
 
-        while (scanner.hasNextLine())
+        try
         {
-            String line = scanner.nextLine();
-            if (!line.startsWith("#") && !line.isEmpty())
-            {
-                Shape.instantiateShapeFromInputString(line);
-            }
+            ShapeSnapshot.write(snapshot, path, sourceSize, sourceModified);
+        }
+        catch (IOException e)
+        {
+            //not a problem, the next start just parses the input file again
         }
     }
 
@@ -84,6 +517,7 @@ public class ShapesSorter
             System.out.println("\nWhat do you wanna do?");
             System.out.println("1: Show details of a shape.");
             System.out.println("2: Write sorted output file.");
+            System.out.println("3: Count shapes of each type.");
             System.out.println("x: Exit.");
 
             //get a parse user selection
@@ -98,6 +532,10 @@ public class ShapesSorter
                     writeOutputFileOption();
                     break;
 
+                case "3": //count shapes
+                    showShapeCountsOption();
+                    break;
+
                 case "x": //this will exit
                     break;
 
@@ -128,15 +566,15 @@ public class ShapesSorter
             return;
         }
 
-        //make sure there is a shape with that ID
-        if (!Shape.getShapesMap().containsKey(shapeID))
+        //make sure there is a shape with that ID. One lookup, so it can't disappear in between if a reload is running
+        Shape shape = Shape.getRegistry().get(shapeID);
+        if (shape == null)
         {
             System.out.println("There is no shape with that ID.");
             return;
         }
 
-        //get and print that shape's details
-        Shape shape = Shape.getShapesMap().get(shapeID);
+        //print that shape's details
         String type = shape.getSubType();
         double area = shape.getSurfaceArea();
         double perimeter = shape.getPermimeter();
@@ -147,11 +585,27 @@ public class ShapesSorter
         System.out.println("Perimeter: " + perimeter);
     }
 
+    /* Prints how many shapes there are of each base type and sub type. */
+    private static void showShapeCountsOption()
+    {
+        CategoryIndex index = Shape.getCategoryIndex();
+        String baseName = null;
+        for (int category : index.getCategories())
+        {
+            if (!ShapeCategory.getBaseType(category).equals(baseName))
+            {
+                baseName = ShapeCategory.getBaseType(category);
+                System.out.println("\n" + baseName);
+            }
+            System.out.println("\t" + ShapeCategory.getSubType(category) + ": " + index.count(category));
+        }
+    }
+
     /* Prints a list of all shapes to the output categorized by shape base and sub types. */
     private static void writeOutputFileOption()
     {
-        Map<String, Map<String, Set<Integer>>> sortedMap = getSortedShapesMap();
-        Path path = getFilePath(OUTPUT_FILENAME);
+        CategoryGrouping sortedShapes = getSortedShapes();
+        Path path = getFilePath(outputFileName);
         if (path == null)
         {
             //do proper error handling
@@ -161,99 +615,165 @@ public class ShapesSorter
         //inform user of file location
         System.out.println("Writing output file: " + path);
 
-        Charset ENCODING = StandardCharsets.UTF_8;
-        try (BufferedWriter writer = Files.newBufferedWriter(path, ENCODING))
+        SortedShapesReport report = new SortedShapesReport(sortedShapes, Shape.getRegistry());
+        long start = System.nanoTime();
+        try
         {
-            //loop through the base types
-            for (Map.Entry<String, Map<String, Set<Integer>>> baseType : sortedMap.entrySet())
+            if (Shape.getRegistry().size() >= PARALLEL_REPORT_SIZE && Runtime.getRuntime().availableProcessors() > 1)
             {
-                //write the base name as a heading
-                String baseName = baseType.getKey();
-                writer.write(baseName);
-                writer.newLine();
-
-                //loop through the subtypes
-                for (Map.Entry<String, Set<Integer>> subType : baseType.getValue().entrySet())
+                ForkJoinPool pool = new ForkJoinPool();
+                try
                 {
-                    String subName = subType.getKey();
-                    writer.write("\t" + subName);
-                    writer.newLine();
-
-                    for (Integer ID : subType.getValue())
-                    {
-                        String line = ID.toString() + " (area: " + Shape.getShapesMap().get(ID).getSurfaceArea()
-                                + ", permimeter: " + Shape.getShapesMap().get(ID).getPermimeter() + ")";
-                        writer.write("\t\t" + line);
-                        writer.newLine();
-                    }
+                    report.writeInParallel(path, pool);
+                }
+                finally
+                {
+                    pool.shutdown();
                 }
             }
+            else
+            {
+                report.write(path);
+            }
+            ShapesMetrics.REPORT_WRITE_LATENCY.recordSince(start);
         }
         catch (IOException e)
         {
             //do proper error handling etc...
             return;
         }
-
     }
 
-    /* Builds a hierarchical series of collections that based on all the shapes
-     * in Shape.shapeMap. This method builds the hierarchical structure dynamically
-     * depending on the shape types it finds along the way and this will work with any
-     * new shape inclusions later. The maps are sorted alphabetically.
-     * @return  A hierarchical structure of collections using TreeMaps to navigate through
-     *          shape base types and sub types and ending with a set of IDs belong to that
-     *          shape categorisation. base type map -> sub type map -> ID set */
-    private static Map<String, Map<String, Set<Integer>>> getSortedShapesMap()
+    /* Gets all the registered shapes grouped by category. The category index is kept up to date as shapes are
+     * registered, so this doesn't need to look at every shape again, and it picks up whatever shape types it is given
+     * so this will work with any new shape inclusions later. Categories are sorted alphabetically by base type and
+     * then sub type, and the IDs in each category are in the configured ReportOrder, ascending IDs by default.
+     * @return  The shape IDs belonging to each base type and sub type combination. */
+    private static CategoryGrouping getSortedShapes()
     {
-        /* We're going to create some temporary collections to hold the IDs of various shapes.
-         * For this demonstration, I'm going to assume that an alphabetical order of shapes is ok. */
-
-        //Here is a hierarchy of collections. base-shape map -> sub-shape map -> set of IDs
-        Map<String, Map<String, Set<Integer>>> baseShape = new TreeMap<>();
-
-        //loop through shapes and put them where they belong
-        for (Shape s : Shape.getShapesMap().values())
+        long start = System.nanoTime();
+        CategoryGrouping grouping = Shape.getCategoryIndex().snapshot();
+        ReportOrder order = ReportOrder.configured();
+        if (order != ReportOrder.ID_ASCENDING)
         {
-            //first, add the base type if we haven't encountered this base type before
-            Map<String, Set<Integer>> baseTypeMap = baseShape.get(s.getBaseType());
-            if (baseTypeMap == null)
+            ForkJoinPool pool = new ForkJoinPool();
+            try
             {
-                baseShape.put(s.getBaseType(), new TreeMap<String, Set<Integer>>());
-                baseTypeMap = baseShape.get(s.getBaseType());
+                order.apply(grouping, Shape.getRegistry(), pool);
             }
-
-            //next if we have not encountered this subtype, add it too
-            Set<Integer> subTypeSet = baseTypeMap.get(s.getSubType());
-            if (subTypeSet == null)
+            finally
             {
-                baseTypeMap.put(s.getSubType(), new LinkedHashSet<Integer>());
-                subTypeSet = baseTypeMap.get(s.getSubType());
+                pool.shutdown();
             }
-
-            //put this shapeID into the set
-            subTypeSet.add(s.getShapeID());
         }
-
-        return baseShape;
+        ShapesMetrics.GROUPING_LATENCY.recordSince(start);
+        return grouping;
     }
 
     /* A utility method for rounding numbers to a specified amount of decimal places.
+     * Rounds half up on the exact binary value of the number, just like BigDecimal does, and returns bit-identical
+     * results, but without allocating anything for the usual precisions and magnitudes.
      * @param unrounded The unrounded number to be rounded.
      * @param precision The number of decimal places to round the number to.
      * @return The rounded number as a double. */
     public static double round(double unrounded, int precision)
+    {
+        if (precision < 0 || precision >= ROUNDING_SCALES.length)
+        {
+            return roundWithBigDecimal(unrounded, precision);
+        }
+
+        double scale = ROUNDING_SCALES[precision];
+        double magnitude = Math.abs(unrounded);
+        if (!(magnitude * scale < ROUNDING_LIMIT)) //also catches NaN and infinity, which BigDecimal rejects
+        {
+            return roundWithBigDecimal(unrounded, precision);
+        }
+
+        //the scaled magnitude can be a hair out, so check the halfway points either side of the guess exactly
+        double digits = Math.floor(magnitude * scale + 0.5);
+        if (isBelowHalfway(magnitude, scale, digits))
+        {
+            digits--;
+        }
+        else if (!isBelowHalfway(magnitude, scale, digits + 1))
+        {
+            digits++;
+        }
+
+        if (digits == 0)
+        {
+            return 0.0; //BigDecimal has no negative zero
+        }
+        double rounded = digits / scale; //correctly rounded, just like BigDecimal.doubleValue
+        return unrounded < 0 ? -rounded : rounded;
+    }
+
+    /* @return Whether magnitude is exactly less than (digits - 0.5) / scale, ie. whether magnitude rounds half up to
+     *          fewer than the given number of scaled digits. */
+    private static boolean isBelowHalfway(double magnitude, double scale, double digits)
+    {
+        //compare magnitude * 2 * scale against 2 * digits - 1. The product is split into a rounded part and its exact
+        //rounding error (Dekker's two-product), and the multiplier has few enough bits that it needs no splitting.
+        double multiplier = 2 * scale;
+        double halfway = 2 * digits - 1;
+        double product = magnitude * multiplier;
+        if (product != halfway)
+        {
+            return product < halfway; //rounding is monotonic, so the rounded product is on the same side as the exact
+        }
+
+        double split = SPLITTER * magnitude;
+        double high = split - (split - magnitude);
+        double low = magnitude - high;
+        double error = (high * multiplier - product) + low * multiplier;
+        return error < 0;
+    }
+
+    /* The original rounding method, for anything the fast one doesn't handle. */
+    private static double roundWithBigDecimal(double unrounded, int precision)
     {
         BigDecimal bd = new BigDecimal(unrounded);
         BigDecimal rounded = bd.setScale(precision, BigDecimal.ROUND_HALF_UP);
         return rounded.doubleValue();
     }
 
+    /* Finds the input file. Shapes.txt.gz is read instead of Shapes.txt if it's there and Shapes.txt is missing or
+     * empty, in which case the output file is compressed as well.
+     * @return The path of the input file, or null if it can't be found. */
+    private static Path findInputFile()
+    {
+        Path compressed = getFilePath(INPUT_FILENAME + CompressedFiles.GZIP_SUFFIX, false);
+        try
+        {
+            if (compressed != null && CompressedFiles.hasContents(compressed)
+                    && !CompressedFiles.hasContents(compressed.resolveSibling(INPUT_FILENAME)))
+            {
+                outputFileName = OUTPUT_FILENAME + CompressedFiles.GZIP_SUFFIX;
+                return compressed;
+            }
+        }
+        catch (IOException e)
+        {
+            //do proper error handling, for now just fall back on the plain file
+        }
+        return getFilePath(INPUT_FILENAME);
+    }
+
     /* Utility method that returns a path belong to the given filename within the working directory of the .jar file.
     *  If the file doesn't exist it will be created.
     *  @param fileName The file name of the file for which to create a path.
     *  @return The path consisting of the .jar working directory and the filename. */
     private static Path getFilePath(String fileName)
+    {
+        return getFilePath(fileName, true);
+    }
+
+    /* Utility method that returns a path belong to the given filename within the working directory of the .jar file.
+    *  @param fileName The file name of the file for which to create a path.
+    *  @param create Whether to create the file if it doesn't exist.
+    *  @return The path consisting of the .jar working directory and the filename. */
+    private static Path getFilePath(String fileName, boolean create)
     {
         String jarDir = "";
 
@@ -275,6 +795,10 @@ public class ShapesSorter
         }
 
         Path path = Paths.get(jarDir + File.separator + fileName);
+        if (!create)
+        {
+            return path;
+        }
         File file = new File(path.toUri());
         try
         {
@@ -0,0 +1,253 @@
+package louizidis.peter.shapessorter.batch;
+
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+import louizidis.peter.shapessorter.io.ShapeRowHandler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Description: Turns an input file into a sorted output file without holding the shapes in memory, for running
+ *              headless. Three stages run at the same time:
+ *              ingest   - one thread parses the input into batches of rows and submits each batch for classifying.
+ *              classify - a pool of threads works out the category, area and perimeter of every row in a batch.
+ *              write    - the calling thread takes the classified batches in file order and appends each shape's line
+ *                         to a temporary segment file for its category.
+ *              The batches in flight are held in a bounded queue, so a stage that gets ahead waits for the others and
+ *              memory use depends on the queue size, not the input size. Once the input is done, the segments are
+ *              stitched together into the output file by CategorySegments.
+ * Notes:   Shapes are written in the order they appear in the input file, and a shape ID that appears more than once
+ *          is written once for each time, since remembering every ID seen would make memory grow with the input. For
+ *          an input with unique IDs in ascending order, the output is exactly what the interactive mode writes.
+ */
+
+public class BatchPipeline
+{
+    /* Queued by the ingest stage after its last batch. */
+    private static final Future<ShapeBatch> END = new FutureTask<>(new Callable<ShapeBatch>()
+    {
+        @Override
+        public ShapeBatch call()
+        {
+            return null;
+        }
+    });
+
+    private final int classifyThreads;
+    private final int queueCapacity;
+
+    /* Uses every core but one for classifying, the other is left for the ingest and write stages. */
+    public BatchPipeline()
+    {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /* @param classifyThreads The number of threads in the classify stage. */
+    public BatchPipeline(int classifyThreads)
+    {
+        this(classifyThreads, classifyThreads * 4);
+    }
+
+    /* @param classifyThreads The number of threads in the classify stage.
+     * @param queueCapacity The most batches that can be between the ingest and write stages at once. Each batch is a
+     *                      few thousand rows. */
+    public BatchPipeline(int classifyThreads, int queueCapacity)
+    {
+        if (classifyThreads < 1 || queueCapacity < 1)
+        {
+            throw new IllegalArgumentException("The pipeline needs at least one thread and a queue capacity of one.");
+        }
+        this.classifyThreads = classifyThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /* Reads an input file and writes its sorted output file.
+     * @param input The shapes input file.
+     * @param output The output file, which is replaced if it already exists.
+     * @return The number of shapes written. */
+    public long run(Path input, Path output) throws IOException
+    {
+        ExecutorService classifiers = Executors.newFixedThreadPool(classifyThreads);
+        Ingest ingest = new Ingest(input, classifiers);
+        Thread ingestThread = new Thread(ingest, "ShapesSorter ingest");
+        try (CategorySegments segments = new CategorySegments(output))
+        {
+            ingestThread.start();
+            long shapes = writeSegments(ingest, segments);
+            segments.stitch();
+            return shapes;
+        }
+        finally
+        {
+            ingestThread.interrupt(); //only matters if we're leaving early and ingest is stuck waiting for room
+            classifiers.shutdownNow();
+        }
+    }
+
+    /* The write stage. Takes batches in file order until the ingest stage says it's finished, and sorts their lines
+     * into segment files by category.
+     * @return The number of shapes written. */
+    private long writeSegments(Ingest ingest, CategorySegments segments) throws IOException
+    {
+        long shapes = 0;
+        while (true)
+        {
+            Future<ShapeBatch> next = take(ingest.pending);
+            if (next == END)
+            {
+                break;
+            }
+
+            ShapeBatch batch = getBatch(next);
+            for (int i = 0; i < batch.size; i++)
+            {
+                segments.writeShape(batch.categories[i], batch.shapeIDs[i], batch.surfaceAreas[i],
+                        batch.perimeters[i]);
+            }
+            shapes += batch.size;
+            batch.clear();
+            ingest.spares.offer(batch);
+        }
+
+        if (ingest.failure != null)
+        {
+            throw ingest.failure;
+        }
+        return shapes;
+    }
+
+    private static Future<ShapeBatch> take(BlockingQueue<Future<ShapeBatch>> queue) throws IOException
+    {
+        try
+        {
+            return queue.take();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the next batch", e);
+        }
+    }
+
+    private static ShapeBatch getBatch(Future<ShapeBatch> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the next batch", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Failed to classify a batch of shapes", e.getCause());
+        }
+    }
+
+    /* The ingest stage. Parses the input file, hands each full batch to the classify stage and queues up the result
+     * for the write stage. Finishes by queueing END, whether the input was read successfully or not. */
+    private class Ingest implements Runnable, ShapeRowHandler
+    {
+        private final Path input;
+        private final ExecutorService classifiers;
+        private final BlockingQueue<Future<ShapeBatch>> pending = new ArrayBlockingQueue<>(queueCapacity);
+        private final BlockingQueue<ShapeBatch> spares = new ArrayBlockingQueue<>(queueCapacity + 1);
+        private ShapeBatch batch;
+        private volatile IOException failure; //written before END is queued, so the write stage sees it after END
+
+        private Ingest(Path input, ExecutorService classifiers)
+        {
+            this.input = input;
+            this.classifiers = classifiers;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                batch = nextBatch();
+                new ShapeFileParser(this).parseFile(input);
+                if (batch.size > 0)
+                {
+                    submit();
+                }
+            }
+            catch (IOException e)
+            {
+                failure = e;
+            }
+            catch (CancellationException e)
+            {
+                return; //the write stage has given up, nobody is waiting for END
+            }
+
+            try
+            {
+                pending.put(END);
+            }
+            catch (InterruptedException e)
+            {
+                //the write stage has given up
+            }
+        }
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            if (batch.add(shapeID, sides, dimensions))
+            {
+                submit();
+                batch = nextBatch();
+            }
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            //do proper error handling...
+            System.out.println(reason.getMessage());
+        }
+
+        /* Sends the current batch to be classified, waiting for room in the queue first. */
+        private void submit()
+        {
+            final ShapeBatch full = batch;
+            try
+            {
+                pending.put(classifiers.submit(new Callable<ShapeBatch>()
+                {
+                    @Override
+                    public ShapeBatch call()
+                    {
+                        full.classify();
+                        return full;
+                    }
+                }));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("The write stage stopped taking batches");
+            }
+        }
+
+        private ShapeBatch nextBatch()
+        {
+            ShapeBatch spare = spares.poll();
+            return spare != null ? spare : new ShapeBatch();
+        }
+    }
+}
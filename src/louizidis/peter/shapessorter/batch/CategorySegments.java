@@ -0,0 +1,145 @@
+package louizidis.peter.shapessorter.batch;
+
+import louizidis.peter.shapessorter.io.CompressedFiles;
+import louizidis.peter.shapessorter.report.ReportWriter;
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description: Builds the sorted output file from shapes that arrive in any category order. Each shape's line is
+ *              appended to a temporary segment file for its category, and at the end the segments are stitched
+ *              together in category order, under their headings, with FileChannel.transferTo. Within a category the
+ *              lines stay in the order they were written.
+ * Notes:   Segment files are created next to the output file and deleted on close.
+ */
+
+class CategorySegments implements Closeable
+{
+    private final Path output;
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment[] segmentsByCategory = new Segment[0];
+
+    /* @param output The output file the segments will be stitched into. */
+    CategorySegments(Path output)
+    {
+        this.output = output;
+    }
+
+    /* Appends a shape's line to the segment for its category. */
+    void writeShape(int category, int shapeID, double area, double perimeter) throws IOException
+    {
+        if (category >= segmentsByCategory.length)
+        {
+            segmentsByCategory = Arrays.copyOf(segmentsByCategory, ShapeCategory.count());
+        }
+        Segment segment = segmentsByCategory[category];
+        if (segment == null)
+        {
+            segment = new Segment(output, category);
+            segmentsByCategory[category] = segment;
+            segments.add(segment);
+        }
+        segment.writer.writeShape(shapeID, area, perimeter);
+    }
+
+    /* Joins the segments into the output file, in the same category order and with the same headings as the report
+     * the interactive mode writes. The output file is replaced if it already exists. */
+    void stitch() throws IOException
+    {
+        for (Segment segment : segments)
+        {
+            segment.writer.close();
+        }
+        Collections.sort(segments);
+
+        try (WritableByteChannel channel = CompressedFiles.openForWriting(output);
+             ReportWriter headings = new ReportWriter(channel))
+        {
+            String baseType = null;
+            for (Segment segment : segments)
+            {
+                if (!ShapeCategory.getBaseType(segment.category).equals(baseType))
+                {
+                    baseType = ShapeCategory.getBaseType(segment.category);
+                    headings.writeBaseType(baseType);
+                }
+                headings.writeSubType(ShapeCategory.getSubType(segment.category));
+                headings.flush();
+
+                try (FileChannel input = FileChannel.open(segment.path, StandardOpenOption.READ))
+                {
+                    long position = 0;
+                    long size = input.size();
+                    while (position < size)
+                    {
+                        position += input.transferTo(position, size - position, channel);
+                    }
+                }
+            }
+        }
+    }
+
+    /* Deletes the segment files. */
+    @Override
+    public void close()
+    {
+        for (Segment segment : segments)
+        {
+            segment.delete();
+        }
+        segments.clear();
+        segmentsByCategory = new Segment[0];
+    }
+
+    /* The temporary file holding the lines of one category. */
+    private static class Segment implements Comparable<Segment>
+    {
+        private final int category;
+        private final Path path;
+        private final ReportWriter writer;
+
+        private Segment(Path output, int category) throws IOException
+        {
+            this.category = category;
+            this.path = Files.createTempFile(output.toAbsolutePath().getParent(), "SortedShapes", ".part");
+            this.writer = new ReportWriter(FileChannel.open(path, StandardOpenOption.WRITE));
+        }
+
+        @Override
+        public int compareTo(Segment other)
+        {
+            return ShapeCategory.ALPHABETICAL.compare(category, other.category);
+        }
+
+        private void delete()
+        {
+            try
+            {
+                writer.close();
+            }
+            catch (IOException e)
+            {
+                //it's being thrown away anyway
+            }
+            try
+            {
+                Files.deleteIfExists(path);
+            }
+            catch (IOException e)
+            {
+                //do proper error handling
+            }
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package louizidis.peter.shapessorter.batch;
+
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.io.DuplicateIdFilter;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+import louizidis.peter.shapessorter.io.ShapeRowHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Description: Writes the sorted output file for inputs too big to hold in memory, giving exactly the same result as
+ *              loading them into the registry and writing the report from there. Works in two phases:
+ *              spill - rows are parsed and classified into primitive arrays until the memory budget is used up, then
+ *                      sorted by shape ID and written out as a run file of fixed size binary records (ID, category,
+ *                      area and perimeter, 22 bytes each).
+ *              merge - the runs are merged in ID order. When an ID is in more than one run, the record from the
+ *                      latest run wins, the same as a later row replacing an earlier one in the registry. The
+ *                      merged records go to CategorySegments, which sorts them into categories, so each category's
+ *                      IDs come out in ascending order.
+ * Notes:   If there are more runs than can be merged at once, they are merged in groups into bigger runs first. The
+ *          merge needs a read buffer per run on top of the budget, a few megabytes at most.
+ *          Rows go through a DuplicateIdFilter as they're parsed, so under the first-wins and reject policies a
+ *          repeated ID never reaches a run, and the latest run winning only matters under last-wins.
+ */
+
+public class ExternalShapeSorter
+{
+    private static final int BYTES_PER_SHAPE = 30;   //ID, category, area, perimeter and a sort key while in memory
+    private static final int RECORD_SIZE = 22;       //ID, category, area and perimeter in a run file
+    private static final int MERGE_FAN_IN = 64;      //the most runs merged at once
+    private static final int RUN_BUFFER_SIZE = 64 * 1024;
+    private static final long MIN_MEMORY_BUDGET = 1024 * 1024;
+
+    private final long memoryBudget;
+
+    /* @param memoryBudget Roughly how many bytes of heap the spill phase may use for shapes. Bigger budgets mean
+     *                     fewer, bigger runs. */
+    public ExternalShapeSorter(long memoryBudget)
+    {
+        this.memoryBudget = Math.max(MIN_MEMORY_BUDGET, memoryBudget);
+    }
+
+    /* Reads an input file and writes its sorted output file.
+     * @param input The shapes input file.
+     * @param output The output file, which is replaced if it already exists.
+     * @return The number of distinct shapes written. */
+    public long run(Path input, Path output) throws IOException
+    {
+        Path runDirectory = Files.createTempDirectory(output.toAbsolutePath().getParent(), "SortedShapes");
+        List<Path> runs = new ArrayList<>();
+        try (CategorySegments segments = new CategorySegments(output))
+        {
+            Spiller spiller = new Spiller(runDirectory, runs);
+            try
+            {
+                new ShapeFileParser(new DuplicateIdFilter(spiller)).parseFile(input);
+                spiller.finish();
+            }
+            catch (SpillException e)
+            {
+                throw (IOException)e.getCause();
+            }
+
+            long shapes;
+            if (runs.isEmpty())
+            {
+                shapes = spiller.drainTo(new SegmentSink(segments)); //it all fit in memory, no need for disk
+            }
+            else
+            {
+                spiller.spill();
+                spiller = null; //let the arrays go before merging
+                while (runs.size() > MERGE_FAN_IN)
+                {
+                    runs = mergeIntoBiggerRuns(runs, runDirectory);
+                }
+                shapes = merge(runs, new SegmentSink(segments));
+            }
+
+            segments.stitch();
+            return shapes;
+        }
+        finally
+        {
+            deleteRuns(runDirectory);
+        }
+    }
+
+    /* Deletes the run directory and whatever runs are still in it. */
+    private static void deleteRuns(Path runDirectory) throws IOException
+    {
+        try (DirectoryStream<Path> runs = Files.newDirectoryStream(runDirectory))
+        {
+            for (Path run : runs)
+            {
+                Files.deleteIfExists(run);
+            }
+        }
+        Files.deleteIfExists(runDirectory);
+    }
+
+    /* Merges groups of neighbouring runs, so the result is still in file order.
+     * @return The merged runs. */
+    private static List<Path> mergeIntoBiggerRuns(List<Path> runs, Path runDirectory) throws IOException
+    {
+        List<Path> merged = new ArrayList<>();
+        for (int from = 0; from < runs.size(); from += MERGE_FAN_IN)
+        {
+            List<Path> group = runs.subList(from, Math.min(runs.size(), from + MERGE_FAN_IN));
+            Path run = Files.createTempFile(runDirectory, "run", ".bin");
+            merged.add(run);
+            try (RunWriter writer = new RunWriter(run))
+            {
+                merge(group, writer);
+            }
+            for (Path used : group)
+            {
+                Files.deleteIfExists(used);
+            }
+        }
+        return merged;
+    }
+
+    /* Merges runs in ID order, keeping only the record from the latest run for each ID.
+     * @param runs The runs to merge, in file order.
+     * @return The number of records passed to the sink. */
+    private static long merge(List<Path> runs, RecordSink sink) throws IOException
+    {
+        RunReader[] heap = new RunReader[runs.size()];
+        int heapSize = 0;
+        long records = 0;
+        try
+        {
+            for (int i = 0; i < runs.size(); i++)
+            {
+                RunReader reader = new RunReader(runs.get(i), i);
+                if (reader.next())
+                {
+                    heap[heapSize++] = reader;
+                }
+                else
+                {
+                    reader.close();
+                }
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--)
+            {
+                siftDown(heap, heapSize, i);
+            }
+
+            while (heapSize > 0)
+            {
+                //equal IDs come off the heap in run order, so the last one taken is the latest
+                int shapeID = heap[0].shapeID;
+                int category;
+                double area;
+                double perimeter;
+                do
+                {
+                    RunReader top = heap[0];
+                    category = top.category;
+                    area = top.surfaceArea;
+                    perimeter = top.perimeter;
+                    if (top.next())
+                    {
+                        siftDown(heap, heapSize, 0);
+                    }
+                    else
+                    {
+                        top.close();
+                        heap[0] = heap[--heapSize];
+                        heap[heapSize] = null;
+                        siftDown(heap, heapSize, 0);
+                    }
+                }
+                while (heapSize > 0 && heap[0].shapeID == shapeID);
+
+                sink.accept(shapeID, category, area, perimeter);
+                records++;
+            }
+            return records;
+        }
+        finally
+        {
+            for (int i = 0; i < heapSize; i++)
+            {
+                heap[i].close();
+            }
+        }
+    }
+
+    private static void siftDown(RunReader[] heap, int heapSize, int index)
+    {
+        RunReader reader = heap[index];
+        while (true)
+        {
+            int child = index * 2 + 1;
+            if (child >= heapSize)
+            {
+                break;
+            }
+            if (child + 1 < heapSize && heap[child + 1].isBefore(heap[child]))
+            {
+                child++;
+            }
+            if (!heap[child].isBefore(reader))
+            {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = reader;
+    }
+
+    /* Somewhere for merged records to go. */
+    private interface RecordSink
+    {
+        void accept(int shapeID, int category, double area, double perimeter) throws IOException;
+    }
+
+    private static class SegmentSink implements RecordSink
+    {
+        private final CategorySegments segments;
+
+        private SegmentSink(CategorySegments segments)
+        {
+            this.segments = segments;
+        }
+
+        @Override
+        public void accept(int shapeID, int category, double area, double perimeter) throws IOException
+        {
+            segments.writeShape(category, shapeID, area, perimeter);
+        }
+    }
+
+    /* The spill phase. Classifies parsed rows into primitive arrays, and sorts and writes them out as a run whenever
+     * the arrays fill up. Rows are classified a batch at a time by the shape kernels. */
+    private class Spiller implements ShapeRowHandler
+    {
+        private final Path runDirectory;
+        private final List<Path> runs;
+        private final ShapeBatch pending = new ShapeBatch(); //parsed rows waiting to be classified
+        private final int[] shapeIDs;
+        private final short[] categories;
+        private final double[] surfaceAreas;
+        private final double[] perimeters;
+        private final long[] sortKeys;
+        private int size;
+
+        private Spiller(Path runDirectory, List<Path> runs)
+        {
+            this.runDirectory = runDirectory;
+            this.runs = runs;
+            int capacity = (int)Math.min(Integer.MAX_VALUE - 8, memoryBudget / BYTES_PER_SHAPE);
+            shapeIDs = new int[capacity];
+            categories = new short[capacity];
+            surfaceAreas = new double[capacity];
+            perimeters = new double[capacity];
+            sortKeys = new long[capacity];
+        }
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            if (pending.add(shapeID, sides, dimensions))
+            {
+                try
+                {
+                    finish();
+                }
+                catch (IOException e)
+                {
+                    throw new SpillException(e);
+                }
+            }
+        }
+
+        /* Classifies the rows waiting in the batch and moves them into the arrays, spilling whenever they fill up. */
+        private void finish() throws IOException
+        {
+            pending.classify();
+            for (int i = 0; i < pending.size; i++)
+            {
+                shapeIDs[size] = pending.shapeIDs[i];
+                categories[size] = (short)pending.categories[i];
+                surfaceAreas[size] = pending.surfaceAreas[i];
+                perimeters[size] = pending.perimeters[i];
+                size++;
+
+                if (size == shapeIDs.length)
+                {
+                    spill();
+                }
+            }
+            pending.clear();
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            //do proper error handling...
+            System.out.println(reason.getMessage());
+        }
+
+        /* Writes what's in memory out as a sorted run and empties the arrays. */
+        private void spill() throws IOException
+        {
+            Path run = Files.createTempFile(runDirectory, "run", ".bin");
+            runs.add(run);
+            try (RunWriter writer = new RunWriter(run))
+            {
+                drainTo(writer);
+            }
+        }
+
+        /* Sorts what's in memory by ID, passes it to a sink keeping only the last row for each ID, and empties the
+         * arrays.
+         * @return The number of records passed to the sink. */
+        private long drainTo(RecordSink sink) throws IOException
+        {
+            //the ID goes in the high half so keys sort by ID, then by row, which puts the last row for an ID last
+            for (int i = 0; i < size; i++)
+            {
+                sortKeys[i] = ((long)shapeIDs[i] << 32) | i;
+            }
+            Arrays.sort(sortKeys, 0, size);
+
+            long records = 0;
+            for (int i = 0; i < size; i++)
+            {
+                if (i + 1 < size && (int)(sortKeys[i + 1] >> 32) == (int)(sortKeys[i] >> 32))
+                {
+                    continue; //replaced by a later row
+                }
+                int row = (int)sortKeys[i];
+                sink.accept(shapeIDs[row], categories[row], surfaceAreas[row], perimeters[row]);
+                records++;
+            }
+            size = 0;
+            return records;
+        }
+    }
+
+    /* Carries an IOException out of the parser's row callback. */
+    private static class SpillException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        private SpillException(IOException cause)
+        {
+            super(cause);
+        }
+    }
+
+    /* Writes fixed size records to a run file. */
+    private static class RunWriter implements RecordSink, Closeable
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(RUN_BUFFER_SIZE * 4);
+
+        private RunWriter(Path path) throws IOException
+        {
+            channel = FileChannel.open(path, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public void accept(int shapeID, int category, double area, double perimeter) throws IOException
+        {
+            if (buffer.remaining() < RECORD_SIZE)
+            {
+                flush();
+            }
+            buffer.putInt(shapeID);
+            buffer.putShort((short)category);
+            buffer.putDouble(area);
+            buffer.putDouble(perimeter);
+        }
+
+        private void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                flush();
+            }
+            finally
+            {
+                channel.close();
+            }
+        }
+    }
+
+    /* Reads the records of a run file one at a time. */
+    private static class RunReader implements Closeable
+    {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(RUN_BUFFER_SIZE);
+        private final int runIndex;
+        private int shapeID;
+        private int category;
+        private double surfaceArea;
+        private double perimeter;
+
+        private RunReader(Path path, int runIndex) throws IOException
+        {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.runIndex = runIndex;
+            buffer.flip(); //start out empty
+        }
+
+        /* Moves on to the next record.
+         * @return False if there are no more. */
+        private boolean next() throws IOException
+        {
+            if (buffer.remaining() < RECORD_SIZE)
+            {
+                buffer.compact();
+                while (buffer.position() < RECORD_SIZE && channel.read(buffer) >= 0)
+                {
+                    //keep reading until there's a whole record or the file ends
+                }
+                buffer.flip();
+                if (buffer.remaining() < RECORD_SIZE)
+                {
+                    return false;
+                }
+            }
+            shapeID = buffer.getInt();
+            category = buffer.getShort();
+            surfaceArea = buffer.getDouble();
+            perimeter = buffer.getDouble();
+            return true;
+        }
+
+        /* @return Whether this reader's record comes before the other's in the merge: lower IDs first, and earlier
+         *          runs first for the same ID. */
+        private boolean isBefore(RunReader other)
+        {
+            return shapeID != other.shapeID ? shapeID < other.shapeID : runIndex < other.runIndex;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+}
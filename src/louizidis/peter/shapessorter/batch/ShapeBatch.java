@@ -0,0 +1,51 @@
+package louizidis.peter.shapessorter.batch;
+
+import louizidis.peter.shapessorter.shapes.ShapeKernels;
+
+/**
+ * Description: A block of parsed rows on their way through the batch pipeline, held in primitive columns. The ingest
+ *              stage fills in the parsed data, the classify stage fills in the category, area and perimeter of every
+ *              row, and the write stage hands the batch back to be filled again.
+ */
+
+class ShapeBatch
+{
+    static final int CAPACITY = 4096;
+
+    final int[] shapeIDs = new int[CAPACITY];
+    final byte[] sides = new byte[CAPACITY];
+    final float[] dimensionA = new float[CAPACITY];
+    final float[] dimensionB = new float[CAPACITY];
+    final float[] dimensionC = new float[CAPACITY];
+    final int[] categories = new int[CAPACITY];
+    final double[] surfaceAreas = new double[CAPACITY];
+    final double[] perimeters = new double[CAPACITY];
+    int size;
+
+    private final ShapeKernels kernels = new ShapeKernels();
+
+    /* Adds a parsed row.
+     * @return Whether the batch is now full. */
+    boolean add(int shapeID, int sides, float[] dimensions)
+    {
+        shapeIDs[size] = shapeID;
+        this.sides[size] = (byte)sides;
+        dimensionA[size] = dimensions[0];
+        dimensionB[size] = dimensions[1];
+        dimensionC[size] = dimensions[2];
+        size++;
+        return size == CAPACITY;
+    }
+
+    /* Works out the category, area and perimeter of every row. A batch is only classified by one thread at a time,
+     * so it can keep its own kernels. */
+    void classify()
+    {
+        kernels.classify(sides, dimensionA, dimensionB, dimensionC, 0, size, categories, surfaceAreas, perimeters);
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+}
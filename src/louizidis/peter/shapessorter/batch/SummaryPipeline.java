@@ -0,0 +1,187 @@
+package louizidis.peter.shapessorter.batch;
+
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+import louizidis.peter.shapessorter.io.ShapeRowHandler;
+import louizidis.peter.shapessorter.report.ShapesSummary;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: Summarizes an input file in one pass without keeping any shapes, for when the counts and the spread
+ *              of areas and perimeters in each category are all that's needed. The calling thread parses the input
+ *              into batches, and a pool of threads classifies each batch and adds it to a ShapesSummary. Each thread
+ *              has a partial summary of its own to add to, so they never wait on each other, and the partial
+ *              summaries are merged once the input is done.
+ * Notes:   Memory use is fixed: a few batches in flight and one summary per thread, whatever the size of the input.
+ *          The flip side is that IDs aren't remembered, so a shape ID that appears more than once is counted once
+ *          for each time, the same as in the batch pipeline.
+ */
+
+public class SummaryPipeline
+{
+    private static final int BATCHES_PER_THREAD = 2;
+
+    private final int threads;
+
+    /* Uses every core but one for summarizing, the other is left for parsing. */
+    public SummaryPipeline()
+    {
+        this(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /* @param threads The number of threads classifying and summarizing batches. */
+    public SummaryPipeline(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("The pipeline needs at least one thread.");
+        }
+        this.threads = threads;
+    }
+
+    /* Reads an input file and summarizes its shapes.
+     * @param input The shapes input file.
+     * @return The summary. */
+    public ShapesSummary run(Path input) throws IOException
+    {
+        ExecutorService summarizers = Executors.newFixedThreadPool(threads);
+        Ingest ingest = new Ingest(summarizers);
+        try
+        {
+            new ShapeFileParser(ingest).parseFile(input);
+            ingest.finish();
+            summarizers.shutdown();
+            while (!summarizers.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                //still going
+            }
+        }
+        catch (InterruptedException | CancellationException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while summarizing " + input, e);
+        }
+        finally
+        {
+            summarizers.shutdownNow();
+        }
+
+        if (ingest.failure != null)
+        {
+            throw new IOException("Failed to summarize a batch of shapes", ingest.failure);
+        }
+        ShapesSummary summary = new ShapesSummary();
+        for (ShapesSummary partial : ingest.partials)
+        {
+            summary.merge(partial);
+        }
+        return summary;
+    }
+
+    /* Collects parsed rows into batches and hands each full one to the pool. */
+    private class Ingest implements ShapeRowHandler
+    {
+        private final ExecutorService summarizers;
+        private final BlockingQueue<ShapeBatch> spares = new ArrayBlockingQueue<>(threads * BATCHES_PER_THREAD);
+        private final BlockingQueue<ShapesSummary> partials = new ArrayBlockingQueue<>(threads);
+        private volatile RuntimeException failure;
+        private ShapeBatch batch;
+
+        private Ingest(ExecutorService summarizers)
+        {
+            this.summarizers = summarizers;
+            for (int i = 0; i < threads * BATCHES_PER_THREAD; i++)
+            {
+                spares.add(new ShapeBatch());
+            }
+            for (int i = 0; i < threads; i++)
+            {
+                partials.add(new ShapesSummary());
+            }
+        }
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            if (batch == null)
+            {
+                batch = nextBatch();
+            }
+            if (batch.add(shapeID, sides, dimensions))
+            {
+                submit(batch);
+                batch = null;
+            }
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            //do proper error handling...
+            System.out.println(reason.getMessage());
+        }
+
+        /* Submits the last batch if it has anything in it. */
+        private void finish()
+        {
+            if (batch != null && batch.size > 0)
+            {
+                submit(batch);
+                batch = null;
+            }
+        }
+
+        private void submit(final ShapeBatch full)
+        {
+            summarizers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    //there's a partial summary for every thread, so one is always free
+                    ShapesSummary partial = partials.remove();
+                    try
+                    {
+                        full.classify();
+                        for (int i = 0; i < full.size; i++)
+                        {
+                            partial.add(full.categories[i], full.surfaceAreas[i], full.perimeters[i]);
+                        }
+                    }
+                    catch (RuntimeException e)
+                    {
+                        failure = e;
+                    }
+                    finally
+                    {
+                        partials.add(partial);
+                        full.clear();
+                        spares.add(full);
+                    }
+                }
+            });
+        }
+
+        /* @return An empty batch, waiting for one to be handed back if they're all in use. */
+        private ShapeBatch nextBatch()
+        {
+            try
+            {
+                return spares.take();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for a batch");
+            }
+        }
+    }
+}
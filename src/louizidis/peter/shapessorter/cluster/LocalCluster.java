@@ -0,0 +1,129 @@
+package louizidis.peter.shapessorter.cluster;
+
+import louizidis.peter.shapessorter.ShapesSorter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description: A stand-in for a real cluster: a number of ShardWorkers, each in its own JVM on this machine, started
+ *              from the same classes as this one and listening on the loopback address. Runs the sharded mode end to
+ *              end on one machine, eg. to try it out or to test it.
+ * Notes:   The workers are stopped when the cluster is closed, and stop by themselves if this JVM goes away without
+ *          closing it, since they're told to exit when their standard input closes. What they print is passed through
+ *          to this JVM's output.
+ */
+
+public class LocalCluster implements Closeable
+{
+    private final List<Process> processes = new ArrayList<>();
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+    private final List<Thread> passThroughs = new ArrayList<>();
+
+    /* Starts the workers and waits for them all to be listening.
+     * @param workers How many worker processes to start. */
+    public LocalCluster(int workers) throws IOException
+    {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        try
+        {
+            for (int i = 0; i < workers; i++)
+            {
+                ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "-Dshapessorter.metrics.jmx=false", ShapesSorter.class.getName(), "--shard-worker", "0",
+                        "--attached");
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                processes.add(builder.start());
+            }
+            for (Process process : processes)
+            {
+                addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), awaitPort(process)));
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /* @return The addresses of the workers, one per shard. */
+    public List<InetSocketAddress> getAddresses()
+    {
+        return Collections.unmodifiableList(addresses);
+    }
+
+    /* Stops the workers, and waits for the last of their output to be passed through. */
+    @Override
+    public void close()
+    {
+        for (Process process : processes)
+        {
+            process.destroy();
+        }
+        try
+        {
+            for (Process process : processes)
+            {
+                process.waitFor();
+            }
+            for (Thread passThrough : passThroughs)
+            {
+                passThrough.join();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Reads a worker's output until it says which port it's listening on, then passes the rest of it through.
+     * @return The port. */
+    private int awaitPort(Process process) throws IOException
+    {
+        final BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                StandardCharsets.UTF_8));
+        String line;
+        while ((line = output.readLine()) != null)
+        {
+            if (line.startsWith(ShardWorker.LISTENING))
+            {
+                Thread passThrough = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            String line;
+                            while ((line = output.readLine()) != null)
+                            {
+                                System.out.println(line);
+                            }
+                        }
+                        catch (IOException e)
+                        {
+                            //the worker has gone
+                        }
+                    }
+                }, "ShardWorkerOutput");
+                passThrough.setDaemon(true);
+                passThrough.start();
+                passThroughs.add(passThrough);
+                return Integer.parseInt(line.substring(ShardWorker.LISTENING.length()).trim());
+            }
+            System.out.println(line);
+        }
+        throw new IOException("A shard worker exited before it started listening");
+    }
+}
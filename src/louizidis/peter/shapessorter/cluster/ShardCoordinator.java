@@ -0,0 +1,256 @@
+package louizidis.peter.shapessorter.cluster;
+
+import louizidis.peter.shapessorter.io.CompressedFiles;
+import louizidis.peter.shapessorter.io.DuplicateIdFilter;
+import louizidis.peter.shapessorter.report.ReportWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Description: Writes the sorted output file from shards of the input held by ShardWorkers, giving exactly the same
+ *              file as the interactive mode writes. Every worker is sent its request before any are read from, so
+ *              they all load their shards at the same time. Their replies are then merged as they stream in: the
+ *              categories by their labels, and the shapes within each category by ID.
+ * Notes:   Every worker sends its categories and shapes already in order, and an ID only ever belongs to one shard,
+ *          so the merge only needs to hold one shape per worker at a time, however big the input is.
+ *          The workers are sent this process's duplicate policy, so repeated IDs resolve the same way here as they
+ *          would loading the file into the registry.
+ */
+
+public class ShardCoordinator
+{
+    private static final int CONNECT_TIMEOUT = 10000; //milliseconds
+
+    private final List<InetSocketAddress> workers;
+
+    /* @param workers The workers to use, one shard each. */
+    public ShardCoordinator(List<InetSocketAddress> workers)
+    {
+        if (workers.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one shard worker is needed");
+        }
+        this.workers = new ArrayList<>(workers);
+    }
+
+    /* Has the workers load an input file and writes its sorted output file from what they send back.
+     * @param input The shapes input file, which every worker must be able to read at the same path.
+     * @param output The output file, which is replaced if it already exists.
+     * @return The number of distinct shapes written. */
+    public long run(Path input, Path output) throws IOException
+    {
+        String inputPath = input.toAbsolutePath().toString();
+        List<Shard> shards = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < workers.size(); i++)
+            {
+                shards.add(new Shard(workers.get(i), i, workers.size(), inputPath));
+            }
+            for (Shard shard : shards)
+            {
+                shard.start();
+            }
+
+            try (ReportWriter writer = new ReportWriter(CompressedFiles.openForWriting(output)))
+            {
+                return merge(shards, writer);
+            }
+        }
+        finally
+        {
+            for (Shard shard : shards)
+            {
+                shard.close();
+            }
+        }
+    }
+
+    /* Writes the categories of all the shards in order, each with its shapes from every shard in ID order.
+     * @return The number of shapes written. */
+    private static long merge(List<Shard> shards, ReportWriter writer) throws IOException
+    {
+        long shapes = 0;
+        String baseType = null;
+        List<Shard> inCategory = new ArrayList<>();
+        while (true)
+        {
+            //the next category is the first in order of those the shards are on
+            Shard first = null;
+            for (Shard shard : shards)
+            {
+                if (shard.hasCategory() && (first == null || shard.compareCategory(first) < 0))
+                {
+                    first = shard;
+                }
+            }
+            if (first == null)
+            {
+                return shapes;
+            }
+            inCategory.clear();
+            for (Shard shard : shards)
+            {
+                if (shard.hasCategory() && shard.compareCategory(first) == 0)
+                {
+                    inCategory.add(shard);
+                }
+            }
+
+            if (!first.baseType.equals(baseType))
+            {
+                baseType = first.baseType;
+                writer.writeBaseType(baseType);
+            }
+            writer.writeSubType(first.subType);
+
+            //a handful of shards at most, so picking the lowest ID by looking at each is quickest
+            while (true)
+            {
+                Shard lowest = null;
+                for (Shard shard : inCategory)
+                {
+                    if (shard.hasShape() && (lowest == null || shard.shapeID < lowest.shapeID))
+                    {
+                        lowest = shard;
+                    }
+                }
+                if (lowest == null)
+                {
+                    break;
+                }
+                writer.writeShape(lowest.shapeID, lowest.surfaceArea, lowest.perimeter);
+                lowest.nextShape();
+                shapes++;
+            }
+            for (Shard shard : inCategory)
+            {
+                shard.nextCategory();
+            }
+        }
+    }
+
+    /* The connection to one worker, and where its reply is up to. */
+    private static class Shard
+    {
+        private final InetSocketAddress address;
+        private final Socket socket = new Socket();
+        private DataInputStream in;
+
+        private boolean ended;      //whether all the categories have been read
+        private String baseType;    //the category being read
+        private String subType;
+        private int remaining;      //shapes left in the category after the current one
+        private boolean hasShape;
+        private int shapeID;        //the current shape
+        private double surfaceArea;
+        private double perimeter;
+
+        /* Connects and sends the request. */
+        private Shard(InetSocketAddress address, int shard, int shardCount, String inputPath) throws IOException
+        {
+            this.address = address;
+            socket.connect(address, CONNECT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(ShardWorker.MAGIC);
+            out.writeInt(shard);
+            out.writeInt(shardCount);
+            out.writeInt(DuplicateIdFilter.Policy.configured().ordinal());
+            out.writeUTF(inputPath);
+            out.flush();
+        }
+
+        /* Waits for the worker to load its shard, then reads up to its first shape. */
+        private void start() throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), ShardWorker.BUFFER_SIZE));
+            byte status = in.readByte();
+            if (status == ShardWorker.FAILED)
+            {
+                throw new IOException("Shard worker " + address + " failed: " + in.readUTF());
+            }
+            if (status != ShardWorker.OK)
+            {
+                throw new IOException("Unexpected reply from shard worker " + address);
+            }
+            nextCategory();
+        }
+
+        private boolean hasCategory()
+        {
+            return !ended;
+        }
+
+        private boolean hasShape()
+        {
+            return hasShape;
+        }
+
+        /* Orders categories alphabetically by base type, then sub type, the same as ShapeCategory.ALPHABETICAL. */
+        private int compareCategory(Shard other)
+        {
+            int byBase = baseType.compareTo(other.baseType);
+            if (byBase != 0)
+            {
+                return byBase;
+            }
+            return subType.compareTo(other.subType);
+        }
+
+        /* Moves on to the next category, skipping any shapes left in this one. */
+        private void nextCategory() throws IOException
+        {
+            while (hasShape)
+            {
+                nextShape();
+            }
+            byte marker = in.readByte();
+            if (marker == ShardWorker.END)
+            {
+                ended = true;
+                return;
+            }
+            if (marker != ShardWorker.CATEGORY)
+            {
+                throw new IOException("Unexpected reply from shard worker " + address);
+            }
+            baseType = in.readUTF();
+            subType = in.readUTF();
+            remaining = in.readInt();
+            nextShape();
+        }
+
+        private void nextShape() throws IOException
+        {
+            hasShape = remaining > 0;
+            if (hasShape)
+            {
+                remaining--;
+                shapeID = in.readInt();
+                surfaceArea = in.readDouble();
+                perimeter = in.readDouble();
+            }
+        }
+
+        private void close()
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e)
+            {
+                //nothing more to read from it anyway
+            }
+        }
+    }
+}
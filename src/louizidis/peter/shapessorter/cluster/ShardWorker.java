@@ -0,0 +1,270 @@
+package louizidis.peter.shapessorter.cluster;
+
+import louizidis.peter.shapessorter.io.DuplicateIdFilter;
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+import louizidis.peter.shapessorter.io.ShapeRowHandler;
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+import louizidis.peter.shapessorter.shapes.ShapeStore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description: One shard of a sharded run, usually in a process of its own. For each request from a ShardCoordinator
+ *              it reads the input file, keeps only the shapes whose IDs hash to its shard in a compact ShapeStore,
+ *              and sends them back grouped into categories, the categories in the report's alphabetical order and
+ *              the shapes in each one in ascending ID order, with their areas and perimeters already worked out.
+ *              The coordinator only has to merge what the shards send, so no process ever holds every shape.
+ * Notes:   Every shard reads the whole input file, which has to be at the same path on every machine, but reads only
+ *          the ID of a row that belongs to another shard and skips the rest of it. Since an ID always hashes to the
+ *          same shard, every row with a shard's IDs goes through its DuplicateIdFilter, so a shape listed more than
+ *          once is resolved by the duplicate policy just as it is in the registry, with each shard keeping track of
+ *          only its own IDs. A rejected row is reported by the shard its ID belongs to, or by the first shard if the
+ *          ID can't be read.
+ *          Requests are served one at a time, and nothing is kept between them.
+ *          The wire format, all big endian as DataOutputStream writes it:
+ *          request  - MAGIC, shard index, shard count, DuplicateIdFilter policy ordinal (ints), then the input
+ *                     file's path (UTF).
+ *          response - OK or FAILED (byte). After FAILED, the reason (UTF). After OK, a CATEGORY byte for each
+ *                     category, followed by its base type and sub type (UTF), its number of shapes (int) and that
+ *                     many records of ID (int), area and perimeter (doubles). An END byte follows the last one.
+ */
+
+public class ShardWorker implements Closeable
+{
+    static final int MAGIC = 0x53485244; //"SHRD"
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+    static final byte CATEGORY = 2;
+    static final byte END = 3;
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /* Printed on its own line once the worker is ready, followed by the port. */
+    public static final String LISTENING = "Shard worker listening on port ";
+
+    private final ServerSocket serverSocket;
+
+    /* Listens on the loopback address only, for a local stand-in cluster.
+     * @param port The port to listen on, or 0 for any free port. */
+    public ShardWorker(int port) throws IOException
+    {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /* @param address The address to listen on. Anything that can reach it can have the worker read files, so only
+     *                listen beyond the loopback address on a trusted network.
+     * @param port The port to listen on, or 0 for any free port. */
+    public ShardWorker(InetAddress address, int port) throws IOException
+    {
+        serverSocket = new ServerSocket(port, 50, address);
+    }
+
+    /* @return The port the worker is listening on. */
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /* Serves requests on the calling thread until the worker is closed. */
+    public void serve()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try (Socket socket = serverSocket.accept())
+            {
+                handle(socket);
+            }
+            catch (IOException e)
+            {
+                if (!serverSocket.isClosed())
+                {
+                    //do proper error handling...
+                    System.out.println("Shard request failed: " + e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        serverSocket.close();
+    }
+
+    /* Reads one request, then loads and sends back the shard it asks for. */
+    private void handle(Socket socket) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        if (in.readInt() != MAGIC)
+        {
+            throw new IOException("Not a shard request");
+        }
+        int shard = in.readInt();
+        int shardCount = in.readInt();
+        int policy = in.readInt();
+        Path input = Paths.get(in.readUTF());
+
+        ShapeStore store;
+        try
+        {
+            store = load(input, shard, shardCount, policy);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            out.writeByte(FAILED);
+            out.writeUTF(String.valueOf(e));
+            out.flush();
+            return;
+        }
+        out.writeByte(OK);
+        writeCategories(store, out);
+        out.writeByte(END);
+        out.flush();
+    }
+
+    /* @param policy The coordinator's duplicate policy, by ordinal, so every worker resolves repeats the same way.
+     * @return The shapes of one shard of an input file. */
+    private static ShapeStore load(Path input, int shard, int shardCount, int policy) throws IOException
+    {
+        if (shardCount < 1 || shard < 0 || shard >= shardCount)
+        {
+            throw new IllegalArgumentException("There is no shard " + shard + " of " + shardCount);
+        }
+        DuplicateIdFilter.Policy[] policies = DuplicateIdFilter.Policy.values();
+        if (policy < 0 || policy >= policies.length)
+        {
+            throw new IllegalArgumentException("There is no duplicate policy " + policy);
+        }
+        ShapeStore store = new ShapeStore();
+        //every row with this shard's IDs reaches the filter, so repeated IDs resolve just as they would in one process
+        new ShapeFileParser(new DuplicateIdFilter(new ShardRowHandler(store), policies[policy]),
+                new ShardRowFilter(shard, shardCount)).parseFile(input);
+        return store;
+    }
+
+    /* Sends the shapes in a store, grouped by category in report order and by ID within each category. */
+    private static void writeCategories(ShapeStore store, DataOutputStream out) throws IOException
+    {
+        //rank the categories present alphabetically, then sort on one key per shape: the rank in the high half and
+        //the ID, flipped so that signed order becomes unsigned order, in the low half
+        int[] counts = new int[ShapeCategory.count()];
+        for (int row = 0; row < store.size(); row++)
+        {
+            counts[store.getCategory(row)]++;
+        }
+        List<Integer> present = new ArrayList<>();
+        for (int code = 0; code < counts.length; code++)
+        {
+            if (counts[code] > 0)
+            {
+                present.add(code);
+            }
+        }
+        Collections.sort(present, ShapeCategory.ALPHABETICAL);
+        int[] ranks = new int[counts.length];
+        for (int rank = 0; rank < present.size(); rank++)
+        {
+            ranks[present.get(rank)] = rank;
+        }
+
+        long[] keys = new long[store.size()];
+        for (int row = 0; row < keys.length; row++)
+        {
+            keys[row] = (long)ranks[store.getCategory(row)] << 32
+                    | (store.getShapeID(row) ^ Integer.MIN_VALUE) & 0xFFFFFFFFL;
+        }
+        Arrays.sort(keys);
+
+        int next = 0;
+        for (int code : present)
+        {
+            out.writeByte(CATEGORY);
+            out.writeUTF(ShapeCategory.getBaseType(code));
+            out.writeUTF(ShapeCategory.getSubType(code));
+            out.writeInt(counts[code]);
+            for (int end = next + counts[code]; next < end; next++)
+            {
+                int row = store.rowOf((int)keys[next] ^ Integer.MIN_VALUE);
+                out.writeInt(store.getShapeID(row));
+                out.writeDouble(store.getSurfaceArea(row));
+                out.writeDouble(store.getPermimeter(row));
+            }
+        }
+    }
+
+    /* @param shapeID A shape ID.
+     * @param shardCount The number of shards.
+     * @return The shard that the shape with that ID belongs to, from zero up to one less than the count. */
+    public static int shardOf(int shapeID, int shardCount)
+    {
+        //mix the bits first, so that IDs handed out in steps of the shard count still spread evenly
+        int hash = shapeID * 0x9E3779B9;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % shardCount;
+    }
+
+    /* Picks out the rows of one shard. Rows whose ID can't be read belong to the first shard, so that they're
+     * reported once. */
+    private static class ShardRowFilter implements ShapeFileParser.RowFilter
+    {
+        private final int shard;
+        private final int shardCount;
+
+        private ShardRowFilter(int shard, int shardCount)
+        {
+            this.shard = shard;
+            this.shardCount = shardCount;
+        }
+
+        @Override
+        public boolean wantsRow(int shapeID)
+        {
+            return shardOf(shapeID, shardCount) == shard;
+        }
+
+        @Override
+        public boolean wantsUnreadableRows()
+        {
+            return shard == 0;
+        }
+    }
+
+    /* Keeps the rows of one shard, which are the only ones its parser passes on. */
+    private static class ShardRowHandler implements ShapeRowHandler
+    {
+        private final ShapeStore store;
+
+        private ShardRowHandler(ShapeStore store)
+        {
+            this.store = store;
+        }
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            store.put(shapeID, sides, dimensions);
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            //do proper error handling...
+            System.out.println(reason.getMessage());
+        }
+    }
+}
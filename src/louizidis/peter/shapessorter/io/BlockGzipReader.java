@@ -0,0 +1,284 @@
+package louizidis.peter.shapessorter.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Description: Reads a block gzip file, the format bgzip writes: a series of complete gzip members of at most 64KB
+ *              each, whose headers say how big they are. Since every block can be found and inflated on its own, the
+ *              blocks ahead of the reader are inflated on several threads at once and handed out in order, so the
+ *              caller sees one plain stream of bytes that arrives faster than one thread could inflate it.
+ * Notes:   Every block's CRC and length are checked. With one core there's nothing to gain from other threads, so
+ *          blocks are inflated on the reading thread as they're needed.
+ *          The static methods find and inflate single blocks, for readers that split the work up themselves.
+ */
+
+public class BlockGzipReader implements ReadableByteChannel
+{
+    static final int MAX_BLOCK_SIZE = 64 * 1024;
+    static final int HEADER_SIZE = 18; //the fixed gzip header, the extra field's length and the BC subfield
+    static final int TRAILER_SIZE = 8; //CRC and uncompressed length
+    static final int FLAG_EXTRA = 4;
+
+    private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+
+    private final FileChannel channel;
+    private final long[] blocks;
+    private final ExecutorService pool;
+    private final int blocksAhead;
+    private final Queue<Future<byte[]>> pending = new ArrayDeque<>();
+    private int nextBlock;           //the next block to start inflating
+    private ByteBuffer current = ByteBuffer.allocate(0);
+    private boolean open = true;
+
+    /* @param channel A block gzip file, which is closed along with this reader. */
+    public BlockGzipReader(FileChannel channel) throws IOException
+    {
+        this.channel = channel;
+        blocks = findBlocks(channel);
+        int threads = Runtime.getRuntime().availableProcessors();
+        pool = threads > 1 ? Executors.newFixedThreadPool(threads, new DaemonThreads()) : null;
+        blocksAhead = threads * BLOCKS_AHEAD_PER_THREAD;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException
+    {
+        int read = 0;
+        while (destination.hasRemaining())
+        {
+            if (!current.hasRemaining() && !nextInflated())
+            {
+                return read == 0 ? -1 : read;
+            }
+            int count = Math.min(current.remaining(), destination.remaining());
+            int limit = current.limit();
+            current.limit(current.position() + count);
+            destination.put(current);
+            current.limit(limit);
+            read += count;
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        open = false;
+        if (pool != null)
+        {
+            pool.shutdownNow();
+        }
+        channel.close();
+    }
+
+    /* Moves on to the next block's contents.
+     * @return Whether there is another block. */
+    private boolean nextInflated() throws IOException
+    {
+        if (pool == null)
+        {
+            if (nextBlock >= blocks.length - 1)
+            {
+                return false;
+            }
+            long offset = blocks[nextBlock];
+            current = ByteBuffer.wrap(inflate(channel, offset, (int)(blocks[nextBlock + 1] - offset)));
+            nextBlock++;
+            return true;
+        }
+
+        while (pending.size() < blocksAhead && nextBlock < blocks.length - 1)
+        {
+            final long offset = blocks[nextBlock];
+            final int size = (int)(blocks[nextBlock + 1] - offset);
+            pending.add(pool.submit(new Callable<byte[]>()
+            {
+                @Override
+                public byte[] call() throws IOException
+                {
+                    return inflate(channel, offset, size);
+                }
+            }));
+            nextBlock++;
+        }
+        Future<byte[]> next = pending.poll();
+        if (next == null)
+        {
+            return false;
+        }
+        try
+        {
+            current = ByteBuffer.wrap(next.get());
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while inflating", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Failed to inflate a block", e.getCause());
+        }
+    }
+
+    /* Finds where every block starts.
+     * @return The offsets of the blocks, followed by the size of the file, so block i runs from offset i to i + 1. */
+    static long[] findBlocks(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        long[] offsets = new long[Math.max(16, (int)Math.min(Integer.MAX_VALUE - 8, size / MAX_BLOCK_SIZE + 2))];
+        int count = 0;
+        long offset = 0;
+        while (offset < size)
+        {
+            int blockSize = blockSize(channel, offset);
+            if (blockSize <= 0 || offset + blockSize > size)
+            {
+                throw new IOException("Broken block gzip file, there's no complete block at " + offset);
+            }
+            if (count + 1 >= offsets.length)
+            {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = offset;
+            offset += blockSize;
+        }
+        offsets[count++] = size;
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /* @return The total size of the block whose header starts at an offset, or -1 if there isn't a block gzip header
+     *          there. */
+    static int blockSize(FileChannel channel, long offset) throws IOException
+    {
+        ByteBuffer header = readFully(channel, offset, 12);
+        if (header.limit() < 12 || (header.get(0) & 0xFF) != 0x1F || (header.get(1) & 0xFF) != 0x8B
+                || header.get(2) != 8 || (header.get(3) & FLAG_EXTRA) == 0)
+        {
+            return -1;
+        }
+
+        //look through the extra field's subfields for BC, which holds the block size less one
+        int extraLength = header.getShort(10) & 0xFFFF;
+        ByteBuffer extra = readFully(channel, offset + 12, extraLength);
+        int position = 0;
+        while (position + 4 <= extra.limit())
+        {
+            int length = extra.getShort(position + 2) & 0xFFFF;
+            if (extra.get(position) == 'B' && extra.get(position + 1) == 'C' && length == 2
+                    && position + 6 <= extra.limit())
+            {
+                return (extra.getShort(position + 4) & 0xFFFF) + 1;
+            }
+            position += 4 + length;
+        }
+        return -1;
+    }
+
+    /* Inflates one block, checking its CRC and length.
+     * @return The block's contents. */
+    static byte[] inflate(FileChannel channel, long offset, int size) throws IOException
+    {
+        ByteBuffer block = readFully(channel, offset, size);
+        if (block.limit() < size)
+        {
+            throw new IOException("Block gzip file ends part way through the block at " + offset);
+        }
+        int dataStart = 12 + (block.getShort(10) & 0xFFFF);
+        int dataEnd = size - TRAILER_SIZE;
+        int expectedCRC = block.getInt(dataEnd);
+        int length = block.getInt(dataEnd + 4);
+        if ((block.get(3) & ~FLAG_EXTRA) != 0 || dataStart > dataEnd || length < 0 || length > MAX_BLOCK_SIZE)
+        {
+            throw new IOException("Broken block gzip header at " + offset);
+        }
+
+        byte[] contents = new byte[length];
+        Inflater inflater = new Inflater(true);
+        try
+        {
+            inflater.setInput(block.array(), dataStart, dataEnd - dataStart);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished())
+            {
+                int count = inflater.inflate(contents, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length)
+            {
+                throw new IOException("Block gzip data at " + offset + " is shorter than its header says");
+            }
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Broken block gzip data at " + offset, e);
+        }
+        finally
+        {
+            inflater.end();
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, length);
+        if ((int)crc.getValue() != expectedCRC)
+        {
+            throw new IOException("CRC mismatch in the block gzip block at " + offset);
+        }
+        return contents;
+    }
+
+    /* @return A little endian buffer of the bytes at an offset. Fewer are read if the file ends first. */
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0)
+        {
+            //keep reading
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /* Makes daemon threads, so inflating never keeps the program from exiting. */
+    static class DaemonThreads implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(Runnable runnable)
+        {
+            Thread thread = new Thread(runnable, "BlockGzip");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package louizidis.peter.shapessorter.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Description: Writes a block gzip file, the format BlockGzipReader reads and bgzip writes. What's written is cut
+ *              into blocks of just under 64KB, which are deflated on several threads at once and written in order,
+ *              each as a complete gzip member recording its own size. The file ends with the empty block bgzip uses
+ *              to mark the end.
+ * Notes:   Any gzip tool can read the result, since a series of gzip members is a valid gzip file. With one core the
+ *          blocks are deflated on the writing thread.
+ */
+
+public class BlockGzipWriter implements WritableByteChannel
+{
+    private static final int BLOCK_INPUT_SIZE = 0xFF00; //what bgzip uses, so even stored blocks fit in 64KB
+    private static final int BLOCKS_AHEAD_PER_THREAD = 4;
+    private static final byte[] END_OF_FILE = {0x1F, (byte)0x8B, 8, 4, 0, 0, 0, 0, 0, (byte)0xFF, 6, 0, 'B', 'C', 2, 0,
+            0x1B, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private final FileChannel channel;
+    private final ExecutorService pool;
+    private final int blocksAhead;
+    private final Queue<Future<ByteBuffer>> pending = new ArrayDeque<>();
+    private byte[] block = new byte[BLOCK_INPUT_SIZE];
+    private int blockLength;
+    private boolean open = true;
+
+    /* @param channel The file to write, which is closed along with this writer. */
+    public BlockGzipWriter(FileChannel channel)
+    {
+        this.channel = channel;
+        int threads = Runtime.getRuntime().availableProcessors();
+        pool = threads > 1 ? Executors.newFixedThreadPool(threads, new BlockGzipReader.DaemonThreads()) : null;
+        blocksAhead = threads * BLOCKS_AHEAD_PER_THREAD;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException
+    {
+        int written = source.remaining();
+        while (source.hasRemaining())
+        {
+            int count = Math.min(source.remaining(), BLOCK_INPUT_SIZE - blockLength);
+            source.get(block, blockLength, count);
+            blockLength += count;
+            if (blockLength == BLOCK_INPUT_SIZE)
+            {
+                submitBlock();
+            }
+        }
+        return written;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return open;
+    }
+
+    /* Writes the last part block and the end of file marker, then closes the file. */
+    @Override
+    public void close() throws IOException
+    {
+        if (!open)
+        {
+            return;
+        }
+        open = false;
+        try
+        {
+            if (blockLength > 0)
+            {
+                submitBlock();
+            }
+            while (!pending.isEmpty())
+            {
+                writeNext();
+            }
+            writeFully(ByteBuffer.wrap(END_OF_FILE));
+        }
+        finally
+        {
+            if (pool != null)
+            {
+                pool.shutdownNow();
+            }
+            channel.close();
+        }
+    }
+
+    /* Deflates the block that's been filled, on another thread if there are any. */
+    private void submitBlock() throws IOException
+    {
+        final byte[] contents = block;
+        final int length = blockLength;
+        block = new byte[BLOCK_INPUT_SIZE];
+        blockLength = 0;
+        if (pool == null)
+        {
+            writeFully(deflate(contents, length));
+            return;
+        }
+
+        pending.add(pool.submit(new Callable<ByteBuffer>()
+        {
+            @Override
+            public ByteBuffer call()
+            {
+                return deflate(contents, length);
+            }
+        }));
+        if (pending.size() >= blocksAhead)
+        {
+            writeNext();
+        }
+    }
+
+    /* Waits for the oldest block to be deflated and writes it. */
+    private void writeNext() throws IOException
+    {
+        try
+        {
+            writeFully(pending.remove().get());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while deflating", e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Failed to deflate a block", e.getCause());
+        }
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException
+    {
+        while (bytes.hasRemaining())
+        {
+            channel.write(bytes);
+        }
+    }
+
+    /* @return A complete gzip member holding some bytes, with the BC extra field giving its size. */
+    private static ByteBuffer deflate(byte[] contents, int length)
+    {
+        byte[] compressed = new byte[BlockGzipReader.MAX_BLOCK_SIZE];
+        int dataStart = BlockGzipReader.HEADER_SIZE;
+        int room = compressed.length - dataStart - BlockGzipReader.TRAILER_SIZE;
+        int dataLength = deflate(contents, length, compressed, dataStart, room, Deflater.DEFAULT_COMPRESSION);
+        if (dataLength < 0)
+        {
+            //didn't compress, store it instead, which always fits
+            dataLength = deflate(contents, length, compressed, dataStart, room, Deflater.NO_COMPRESSION);
+        }
+        int size = dataStart + dataLength + BlockGzipReader.TRAILER_SIZE;
+
+        CRC32 crc = new CRC32();
+        crc.update(contents, 0, length);
+        ByteBuffer member = ByteBuffer.wrap(compressed, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+        member.put((byte)0x1F).put((byte)0x8B).put((byte)8).put((byte)BlockGzipReader.FLAG_EXTRA);
+        member.putInt(0).put((byte)0).put((byte)0xFF); //no modification time, no extra flags, unknown OS
+        member.putShort((short)6).put((byte)'B').put((byte)'C').putShort((short)2).putShort((short)(size - 1));
+        member.position(dataStart + dataLength);
+        member.putInt((int)crc.getValue()).putInt(length);
+        member.flip();
+        return member;
+    }
+
+    /* @return The number of bytes of raw deflate data written, or -1 if it didn't fit. */
+    private static int deflate(byte[] contents, int length, byte[] into, int offset, int room, int level)
+    {
+        Deflater deflater = new Deflater(level, true);
+        try
+        {
+            deflater.setInput(contents, 0, length);
+            deflater.finish();
+            int written = 0;
+            while (!deflater.finished() && written < room)
+            {
+                written += deflater.deflate(into, offset + written, room - written);
+            }
+            return deflater.finished() ? written : -1;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+}
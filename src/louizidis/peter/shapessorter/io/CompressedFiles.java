@@ -0,0 +1,125 @@
+package louizidis.peter.shapessorter.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Description: Opens input and output files whether they're compressed or not, so everything that reads or writes
+ *              shapes files can take a .gz file just as well as plain text. Input is recognised by its first bytes,
+ *              not its name, and output is compressed when its name ends in .gz.
+ * Notes:   Gzip files made of independent blocks, as written by bgzip or by this program, are inflated in parallel
+ *          by BlockGzipReader. Any other gzip file is one long stream that can only be inflated from the start, so
+ *          it's read through GZIPInputStream on the calling thread.
+ *          Compressed output is always block gzip, which any gzip tool can read too.
+ *          Zstandard files are recognised but not read, as there's no decoder for them in the JDK.
+ */
+
+public final class CompressedFiles
+{
+    public static final String GZIP_SUFFIX = ".gz";
+
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /* The kinds of file that are recognised. */
+    public enum Format
+    {
+        PLAIN,
+        GZIP,       //a single gzip stream, or several that can't be told apart without inflating them
+        BLOCK_GZIP, //gzip in independent blocks that record their own sizes
+        ZSTD
+    }
+
+    private CompressedFiles()
+    {
+    }
+
+    /* @return The format of a file, going by its first few bytes. */
+    public static Format formatOf(Path path) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            return formatOf(channel);
+        }
+    }
+
+    /* @return The format of an open file, going by its first few bytes. */
+    public static Format formatOf(FileChannel channel) throws IOException
+    {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        channel.read(magic, 0);
+        if (magic.position() >= 2 && (magic.get(0) & 0xFF) == 0x1F && (magic.get(1) & 0xFF) == 0x8B)
+        {
+            return BlockGzipReader.blockSize(channel, 0) > 0 ? Format.BLOCK_GZIP : Format.GZIP;
+        }
+        if (magic.position() == 4 && magic.getInt(0) == 0x28B52FFD)
+        {
+            return Format.ZSTD;
+        }
+        return Format.PLAIN;
+    }
+
+    /* @return Whether a file is in a compressed format. */
+    public static boolean isCompressed(Path path) throws IOException
+    {
+        return formatOf(path) != Format.PLAIN;
+    }
+
+    /* Opens a file for reading its contents, inflating them if it's compressed.
+     * @return A channel of the plain contents, which is a FileChannel if the file isn't compressed. */
+    public static ReadableByteChannel openForReading(Path path) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try
+        {
+            switch (formatOf(channel))
+            {
+                case BLOCK_GZIP:
+                    return new BlockGzipReader(channel);
+
+                case GZIP:
+                    InputStream in = Channels.newInputStream(channel.position(0));
+                    return Channels.newChannel(new GZIPInputStream(in, STREAM_BUFFER_SIZE));
+
+                case ZSTD:
+                    throw new IOException(path + " is zstd compressed, which isn't supported. Recompress it with "
+                            + "gzip, or better bgzip, which can be read in parallel.");
+
+                default:
+                    return channel;
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /* Opens a file for writing, replacing it if it already exists. Files named *.gz are written as block gzip.
+     * @return A channel to write the plain contents to. */
+    public static WritableByteChannel openForWriting(Path path) throws IOException
+    {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        if (path.getFileName().toString().endsWith(GZIP_SUFFIX))
+        {
+            return new BlockGzipWriter(channel);
+        }
+        return channel;
+    }
+
+    /* @return Whether a file exists and has something in it. */
+    public static boolean hasContents(Path path) throws IOException
+    {
+        return Files.isRegularFile(path) && Files.size(path) > 0;
+    }
+}
@@ -0,0 +1,124 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.metrics.ShapesMetrics;
+import louizidis.peter.shapessorter.util.IntBitmap;
+
+/**
+ * Description: Sits in front of another ShapeRowHandler and decides what happens when a shape ID turns up again in
+ *              the same input file, following one of the policies:
+ *              LAST_WINS - the later row replaces the earlier one, as it always has. The default.
+ *              FIRST_WINS - the later row is dropped.
+ *              REJECT - the later row is dropped and reported as a rejected row.
+ *              The policy is chosen by starting the program with -Dshapessorter.duplicates=last-wins, first-wins or
+ *              reject. Repeats are counted whatever the policy, and the count shows up in ShapesMetrics.
+ * Notes:   The IDs seen so far are kept in an IntBitmap, which tells a repeat apart in constant time and takes about a
+ *          bit per ID for the usual runs of sequential IDs.
+ *          InputFileWatcher keeps a filter for the file it watches, so rows appended while the program runs follow
+ *          the same policy as the rows that were there when it started.
+ */
+
+public class DuplicateIdFilter implements ShapeRowHandler
+{
+    public static final String POLICY_PROPERTY = "shapessorter.duplicates";
+
+    public enum Policy
+    {
+        LAST_WINS,
+        FIRST_WINS,
+        REJECT;
+
+        /* @return The policy set by the system property, or LAST_WINS if it isn't set or isn't a policy. */
+        public static Policy configured()
+        {
+            String property = System.getProperty(POLICY_PROPERTY);
+            if (property == null)
+            {
+                return LAST_WINS;
+            }
+            try
+            {
+                return valueOf(property.trim().toUpperCase().replace('-', '_'));
+            }
+            catch (IllegalArgumentException e)
+            {
+                //do proper error handling...
+                System.err.println("Unknown duplicate policy " + property + ", using last-wins.");
+                return LAST_WINS;
+            }
+        }
+    }
+
+    private final ShapeRowHandler handler;
+    private final Policy policy;
+    private final IntBitmap seen = new IntBitmap();
+    private long duplicates;
+
+    /* @param handler Where rows that get through go, along with any rejections. */
+    public DuplicateIdFilter(ShapeRowHandler handler)
+    {
+        this(handler, Policy.configured());
+    }
+
+    public DuplicateIdFilter(ShapeRowHandler handler, Policy policy)
+    {
+        this.handler = handler;
+        this.policy = policy;
+    }
+
+    /* Records the ID of a row, for when the row itself goes somewhere other than the handler.
+     * @return Whether the row should be applied. A rejected row has already been passed to the handler. */
+    public boolean admit(int shapeID)
+    {
+        if (seen.add(shapeID))
+        {
+            return true;
+        }
+
+        duplicates++;
+        ShapesMetrics.countDuplicate(policy == Policy.REJECT);
+        switch (policy)
+        {
+            case LAST_WINS:
+                return true;
+
+            case FIRST_WINS:
+                return false;
+
+            default:
+                handler.rejectRow(RowRejection.DUPLICATE_ID);
+                return false;
+        }
+    }
+
+    /* @return Whether a row with this ID would be dropped, without recording the ID or counting a repeat. */
+    public boolean wouldDrop(int shapeID)
+    {
+        return policy != Policy.LAST_WINS && seen.contains(shapeID);
+    }
+
+    @Override
+    public void acceptRow(int shapeID, int sides, float[] dimensions)
+    {
+        if (admit(shapeID))
+        {
+            handler.acceptRow(shapeID, sides, dimensions);
+        }
+    }
+
+    @Override
+    public void rejectRow(RowRejection reason)
+    {
+        handler.rejectRow(reason);
+    }
+
+    public Policy getPolicy()
+    {
+        return policy;
+    }
+
+    /* @return The number of rows whose ID had already been seen. */
+    public long getDuplicates()
+    {
+        return duplicates;
+    }
+}
@@ -0,0 +1,432 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeStore;
+import louizidis.peter.shapessorter.util.IntIntHashMap;
+import louizidis.peter.shapessorter.util.IntList;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Description: Watches the input file and applies changes to the registered shapes while the program runs, so there's
+ *              no need to restart it after editing the file. Changes are applied as a diff, shape by shape, through
+ *              the registry, which keeps the category and metric indexes up to date too:
+ *              append - if the file has only grown, just the lines after the last line break are parsed.
+ *              rewrite - anything else is a full parse into a compact ShapeStore, after which only shapes that are
+ *                        new or whose data has changed are registered, and only shapes that are no longer in the
+ *                        file are removed.
+ *              Lookups, counts and reports carry on being served from the registry the whole time, and see each
+ *              change as soon as it's made.
+ * Notes:   An append costs time for the new lines only. A rewrite has to read the whole file to find out what
+ *          changed, but the registry and indexes still only do work for the shapes that did.
+ *          The file counts as appended to if it's no shorter than before and its first and last few kilobytes, as
+ *          they were, are unchanged. An edit in the middle of a file that doesn't shrink it and leaves both ends alone
+ *          is taken for an append, so such edits are only picked up by the next rewrite or restart.
+ *          A compressed file can't be read from the middle, so any change to one is treated as a rewrite. Whether
+ *          one has changed at all is decided by its size, modified time and first and last few kilobytes, since its
+ *          line breaks can't be found without inflating it.
+ *          Appended rows go through a DuplicateIdFilter that has seen every ID in the file before them, so a repeated
+ *          ID is resolved by the configured policy just as a full load would resolve it. The filter starts out with
+ *          the IDs of the registered shapes, and a rewrite starts it over with the IDs of the new contents.
+ *          A last line without a line break is parsed, and parsed again once more is appended, since it may have
+ *          been only partly written. Until then its ID isn't counted as seen, and if the policy drops repeats it's
+ *          held back when it repeats an ID. That's why the load should stop at getOffset and leave that line to the
+ *          watcher.
+ */
+
+public class InputFileWatcher implements Closeable
+{
+    private static final int SAMPLE_SIZE = 4096;
+    private static final long SETTLE_MILLIS = 50; //waits this long after a change for more of it to arrive
+
+    private final Path file;
+    private WatchService watchService;
+    private Thread thread;
+
+    private long size;              //the size of the file when it was last read
+    private long modified;          //its modified time then, in milliseconds
+    private boolean compressed;     //whether it was compressed then
+    private long offset;            //just past the last line break, where parsing carries on from after an append.
+                                    //Long.MAX_VALUE for a compressed file, which is always read whole
+    private byte[] head = new byte[0];
+    private byte[] tail = new byte[0];
+
+    private final RowApplier rows = new RowApplier();
+    private DuplicateIdFilter duplicates; //the IDs seen before the offset, made on the first reload
+
+    /* Remembers how the file is now, as the starting point for later changes. Taken before the file is loaded into
+     * the registry, and followed by start and then reload once the load is done, so that whatever changes while
+     * it's loading is still applied.
+     * @param file The input file. */
+    public InputFileWatcher(Path file) throws IOException
+    {
+        this.file = file.toAbsolutePath();
+        try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.READ))
+        {
+            size = channel.size();
+            compressed = CompressedFiles.formatOf(channel) != CompressedFiles.Format.PLAIN;
+            offset = compressed ? Long.MAX_VALUE : findLineStart(channel, size);
+            remember(channel);
+        }
+    }
+
+    /* @return How far the file was read when the watcher was made: just past its last line break, or Long.MAX_VALUE
+     *          for a compressed file. A load that the watcher carries on from should stop here, since the watcher
+     *          parses anything after it itself. */
+    public synchronized long getOffset()
+    {
+        return offset;
+    }
+
+    /* Starts watching the file on a daemon thread. */
+    public synchronized void start() throws IOException
+    {
+        if (thread != null)
+        {
+            return;
+        }
+        watchService = FileSystems.getDefault().newWatchService();
+        file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                watch();
+            }
+        }, "InputFileWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Stops watching. */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        if (watchService != null)
+        {
+            watchService.close();
+        }
+    }
+
+    /* Applies whatever has changed in the file since it was last read. Called by the watching thread, but can be
+     * called directly too. The first call should come after the file has been loaded up to the offset.
+     * @return The number of shapes registered, replaced or removed. */
+    public synchronized int reload() throws IOException
+    {
+        if (duplicates == null)
+        {
+            //the registered shapes are what the load kept of the rows before the offset, so their IDs are all seen
+            duplicates = new DuplicateIdFilter(rows);
+            for (Shape shape : Shape.getRegistry())
+            {
+                duplicates.admit(shape.getShapeID());
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long newSize = channel.size();
+            boolean newCompressed = CompressedFiles.formatOf(channel) != CompressedFiles.Format.PLAIN;
+            int changes;
+            if (compressed && newCompressed && isUnchanged(channel, newSize))
+            {
+                return 0; //touched, or the first reload after loading it, and there's no telling where lines end
+            }
+            else if (!compressed && !newCompressed && isAppend(channel, newSize))
+            {
+                if (newSize == size && newSize == offset)
+                {
+                    return 0; //touched, but nothing to read
+                }
+                rows.changes = 0;
+                offset = parseTail(channel, offset, newSize, duplicates, rows);
+                changes = rows.changes;
+            }
+            else
+            {
+                //collect the rows first, so an ID listed more than once is only compared in its final form
+                ShapeStore parsed = new ShapeStore();
+                DuplicateIdFilter rewritten = new DuplicateIdFilter(rows, duplicates.getPolicy());
+                long newOffset = newCompressed ? Long.MAX_VALUE : findLineStart(channel, newSize);
+                rows.store = parsed;
+                try
+                {
+                    if (!newCompressed)
+                    {
+                        channel.position(0);
+                        new ShapeFileParser(rewritten).parse(channel, newOffset);
+                        parseTail(channel, newOffset, newSize, rewritten, rows);
+                    }
+                    else
+                    {
+                        new ShapeFileParser(rewritten).parseFile(file);
+                    }
+                }
+                finally
+                {
+                    rows.store = null;
+                }
+                changes = applyDifferences(parsed);
+                duplicates = rewritten;
+                offset = newOffset;
+            }
+            size = newSize;
+            compressed = newCompressed;
+            remember(channel);
+            return changes;
+        }
+        catch (NoSuchFileException e)
+        {
+            return 0; //part way through being replaced, the new file will cause another reload
+        }
+    }
+
+    /* The watching thread. Waits for changes to the file, lets them settle and reloads. */
+    private void watch()
+    {
+        Path name = file.getFileName();
+        try
+        {
+            while (true)
+            {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                do
+                {
+                    for (WatchEvent<?> event : key.pollEvents())
+                    {
+                        if (name.equals(event.context()) || event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    key = watchService.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                while (key != null);
+
+                if (changed)
+                {
+                    try
+                    {
+                        reload();
+                    }
+                    catch (IOException e)
+                    {
+                        //do proper error handling...
+                        System.out.println("Couldn't reload " + file + ": " + e);
+                    }
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException e)
+        {
+            //stopped
+        }
+    }
+
+    /* @return Whether the file has only been appended to since it was last read. */
+    private boolean isAppend(FileChannel channel, long newSize) throws IOException
+    {
+        if (newSize < size)
+        {
+            return false;
+        }
+        return Arrays.equals(head, read(channel, 0, head.length))
+                && Arrays.equals(tail, read(channel, size - tail.length, tail.length));
+    }
+
+    /* @return Whether the file has the same size, modified time and first and last few kilobytes as when it was
+     *          last read. */
+    private boolean isUnchanged(FileChannel channel, long newSize) throws IOException
+    {
+        return newSize == size && Files.getLastModifiedTime(file).toMillis() == modified
+                && Arrays.equals(head, read(channel, 0, head.length))
+                && Arrays.equals(tail, read(channel, size - tail.length, tail.length));
+    }
+
+    /* Parses everything from the start of a line to the end of the file.
+     * @param duplicates What the finished lines go through.
+     * @param rows Where rows go once they're through.
+     * @return The position just past the last line break. */
+    private static long parseTail(FileChannel channel, long from, long to, DuplicateIdFilter duplicates,
+                                  ShapeRowHandler rows) throws IOException
+    {
+        long length = to - from;
+        if (length > Integer.MAX_VALUE - 8)
+        {
+            throw new IOException("Too much was appended at once to read in one go");
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(read(channel, from, (int)length));
+        int consumed = new ShapeFileParser(duplicates).parseLines(bytes, 0, bytes.limit(), false);
+        ShapeFileParser unfinished = new ShapeFileParser(new UnfinishedLineHandler(duplicates, rows));
+        unfinished.parseLines(bytes, consumed, bytes.limit(), true); //a last line with no line break, if there is one
+        return from + consumed;
+    }
+
+    /* @return The position just past the last line break before the given position, or 0 if there isn't one. */
+    private static long findLineStart(FileChannel channel, long end) throws IOException
+    {
+        long position = end;
+        while (position > 0)
+        {
+            int length = (int)Math.min(SAMPLE_SIZE, position);
+            byte[] block = read(channel, position - length, length);
+            for (int i = block.length - 1; i >= 0; i--)
+            {
+                if (block[i] == '\n' || block[i] == '\r')
+                {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return 0;
+    }
+
+    /* Keeps the modified time and copies of the first and last few kilobytes, to tell appends and untouched files
+     * apart from other changes next time. */
+    private void remember(FileChannel channel) throws IOException
+    {
+        modified = Files.getLastModifiedTime(file).toMillis();
+        head = read(channel, 0, (int)Math.min(SAMPLE_SIZE, size));
+        tail = read(channel, size - Math.min(SAMPLE_SIZE, size), (int)Math.min(SAMPLE_SIZE, size));
+    }
+
+    /* @return The bytes at a position. Fewer are returned if the file ends first. */
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                break;
+            }
+        }
+        return buffer.position() == length ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /* Registers the shapes in a store that differ from the registered ones, and removes registered shapes that
+     * aren't in the store.
+     * @return The number of shapes registered, replaced or removed. */
+    private static int applyDifferences(ShapeStore parsed)
+    {
+        int changes = 0;
+        float[] dimensions = new float[ShapeFileParser.MAX_DIMENSIONS];
+        for (int row = 0; row < parsed.size(); row++)
+        {
+            for (int i = 0; i < dimensions.length; i++)
+            {
+                dimensions[i] = parsed.getDimension(row, i);
+            }
+            if (apply(parsed.getShapeID(row), parsed.getSides(row), dimensions))
+            {
+                changes++;
+            }
+        }
+
+        IntList removed = new IntList();
+        for (Shape shape : Shape.getRegistry())
+        {
+            if (parsed.rowOf(shape.getShapeID()) == IntIntHashMap.MISSING)
+            {
+                removed.add(shape.getShapeID());
+            }
+        }
+        for (int i = 0; i < removed.size(); i++)
+        {
+            if (Shape.unregisterShape(removed.get(i)) != null)
+            {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /* Registers a shape, unless the registered shape with its ID is made from the same data already.
+     * @return Whether anything changed. */
+    private static boolean apply(int shapeID, int sides, float[] dimensions)
+    {
+        Shape registered = Shape.getRegistry().get(shapeID);
+        if (registered != null && registered.isMadeFrom(sides, dimensions))
+        {
+            return false;
+        }
+        Shape.registerShape(shapeID, sides, dimensions);
+        return true;
+    }
+
+    /* Applies rows as they're parsed, or collects them in a store while a rewrite is being read. */
+    private static class RowApplier implements ShapeRowHandler
+    {
+        private ShapeStore store; //null unless a rewrite is being read
+        private int changes;
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            if (store != null)
+            {
+                store.put(shapeID, sides, dimensions);
+            }
+            else if (apply(shapeID, sides, dimensions))
+            {
+                changes++;
+            }
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            //do proper error handling...
+            System.out.println(reason.getMessage());
+        }
+    }
+
+    /* Takes the last line of the file when it has no line break, and so may not be finished. The line will be parsed
+     * again, so its ID isn't recorded as seen, and it's held back if it repeats an ID that the policy would drop. */
+    private static class UnfinishedLineHandler implements ShapeRowHandler
+    {
+        private final DuplicateIdFilter duplicates;
+        private final ShapeRowHandler rows;
+
+        private UnfinishedLineHandler(DuplicateIdFilter duplicates, ShapeRowHandler rows)
+        {
+            this.duplicates = duplicates;
+            this.rows = rows;
+        }
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            if (!duplicates.wouldDrop(shapeID))
+            {
+                rows.acceptRow(shapeID, sides, dimensions);
+            }
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            rows.rejectRow(reason);
+        }
+    }
+}
@@ -0,0 +1,440 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.util.IntBitmap;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Description: Loads the shapes input file using every core. The file is split into chunks at line boundaries, each
+ *              chunk is parsed and its shapes instantiated on a fork-join pool, the chunks' IDs are then gone through
+ *              in file order to decide which shapes are kept, and the kept shapes of each chunk are registered on the
+ *              pool too.
+ *              A block gzip file is split the same way, but at block boundaries, and each chunk inflates its own
+ *              blocks. Any other compressed file has to be inflated from the start, so it's parsed as a single chunk.
+ * Notes:   Only the IDs are looked at in file order, through a DuplicateIdFilter with the configured policy, so a
+ *          repeated shape ID resolves exactly as it would if the file was loaded one line at a time. Under last-wins a
+ *          second pass from the end of the file keeps just the last row for each repeated ID, which leaves every
+ *          kept shape with its own ID and lets the chunks be registered at the same time in any order. The second
+ *          pass is skipped when there are no repeats, as there usually aren't.
+ *          Rejected rows are reported during the first pass, so the console output doesn't depend on which thread
+ *          finished first.
+ *          A block gzip chunk skips any line it starts part way through, and finishes its own last line by inflating
+ *          as much of the following blocks as it takes, so every line is parsed by exactly one chunk.
+ */
+
+public class ParallelShapeLoader
+{
+    private static final long MIN_CHUNK_SIZE = 4 * 1024 * 1024; //not worth splitting the file more finely than this
+    private static final int CHUNKS_PER_THREAD = 4;             //a few spare chunks keep the threads evenly busy
+    private static final int BOUNDARY_SCAN_SIZE = 64 * 1024;
+    private static final int MIN_BLOCKS_PER_CHUNK = 16;          //about a megabyte of compressed input
+
+    private final ForkJoinPool pool;
+
+    /* @param pool The pool to parse chunks on. */
+    public ParallelShapeLoader(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /* Loads a file into the registry using a pool with one thread per core.
+     * @param path The file to load. */
+    public static void load(Path path) throws IOException
+    {
+        load(path, Long.MAX_VALUE);
+    }
+
+    /* Loads the start of a file into the registry using a pool with one thread per core.
+     * @param path The file to load.
+     * @param length How many bytes of a plain file to load, which should end at a line break. A compressed file is
+     *               always loaded whole. */
+    public static void load(Path path, long length) throws IOException
+    {
+        ForkJoinPool pool = new ForkJoinPool();
+        try
+        {
+            new ParallelShapeLoader(pool).loadFile(path, length);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /* Loads a file into the registry.
+     * @param path The file to load. */
+    public void loadFile(Path path) throws IOException
+    {
+        loadFile(path, Long.MAX_VALUE);
+    }
+
+    /* Loads the start of a file into the registry.
+     * @param path The file to load.
+     * @param length How many bytes of a plain file to load, which should end at a line break. A compressed file is
+     *               always loaded whole. */
+    public void loadFile(Path path, long length) throws IOException
+    {
+        List<Future<ChunkResult>> chunks = new ArrayList<>();
+        switch (CompressedFiles.formatOf(path))
+        {
+            case PLAIN:
+                for (long[] range : splitIntoChunks(path, length))
+                {
+                    chunks.add(pool.submit(new ChunkTask(path, range[0], range[1])));
+                }
+                break;
+
+            case BLOCK_GZIP:
+                long[] blocks;
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+                {
+                    blocks = BlockGzipReader.findBlocks(channel);
+                }
+                int blockCount = blocks.length - 1;
+                int chunkCount = Math.max(1, Math.min(blockCount / MIN_BLOCKS_PER_CHUNK,
+                        pool.getParallelism() * CHUNKS_PER_THREAD));
+                for (int i = 0; i < chunkCount; i++)
+                {
+                    chunks.add(pool.submit(new BlockChunkTask(path, blocks, (int)((long)blockCount * i / chunkCount),
+                            (int)((long)blockCount * (i + 1) / chunkCount))));
+                }
+                break;
+
+            default:
+                chunks.add(pool.submit(new ChunkTask(path, 0, Long.MAX_VALUE)));
+        }
+
+        //decide which shapes to keep in file order, starting as soon as the first chunk is ready
+        DuplicateIdFilter duplicates = new DuplicateIdFilter(new RegistryRowHandler());
+        List<ChunkResult> results = new ArrayList<>(chunks.size());
+        for (Future<ChunkResult> chunk : chunks)
+        {
+            ChunkResult result = waitFor(chunk, path);
+            result.resolve(duplicates);
+            results.add(result);
+        }
+        if (duplicates.getPolicy() == DuplicateIdFilter.Policy.LAST_WINS && duplicates.getDuplicates() > 0)
+        {
+            IntBitmap later = new IntBitmap();
+            for (int i = results.size() - 1; i >= 0; i--)
+            {
+                results.get(i).dropReplaced(later);
+            }
+        }
+
+        //no two chunks share an ID now, so the order they're registered in doesn't matter
+        List<Future<ChunkResult>> registered = new ArrayList<>(results.size());
+        for (ChunkResult result : results)
+        {
+            registered.add(pool.submit(new RegisterTask(result)));
+        }
+        for (Future<ChunkResult> result : registered)
+        {
+            waitFor(result, path);
+        }
+    }
+
+    private static ChunkResult waitFor(Future<ChunkResult> chunk, Path path) throws IOException
+    {
+        try
+        {
+            return chunk.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + path, e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Failed to load " + path, e.getCause());
+        }
+    }
+
+    /* Works out the byte ranges of the chunks, with every chunk starting at the beginning of a line.
+     * @param path The file to split.
+     * @param length How much of the file to split.
+     * @return A list of {start, end} byte offsets. */
+    private List<long[]> splitIntoChunks(Path path, long length) throws IOException
+    {
+        List<long[]> ranges = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = Math.min(channel.size(), length);
+            long chunkCount = Math.max(1, Math.min(size / MIN_CHUNK_SIZE, pool.getParallelism() * CHUNKS_PER_THREAD));
+            long chunkSize = size / chunkCount;
+
+            ByteBuffer scan = ByteBuffer.allocate(BOUNDARY_SCAN_SIZE);
+            long start = 0;
+            for (long i = 1; i < chunkCount && start < size; i++)
+            {
+                long end = Math.min(size, findLineStart(channel, Math.max(start, i * chunkSize), scan));
+                if (end > start)
+                {
+                    ranges.add(new long[] {start, end});
+                    start = end;
+                }
+            }
+            if (start < size)
+            {
+                ranges.add(new long[] {start, size});
+            }
+        }
+        return ranges;
+    }
+
+    /* @return The offset just past the first '\n' at or after the given position, or the end of the file. */
+    private static long findLineStart(FileChannel channel, long position, ByteBuffer scan) throws IOException
+    {
+        while (true)
+        {
+            scan.clear();
+            int read = channel.read(scan, position);
+            if (read <= 0)
+            {
+                return channel.size();
+            }
+            for (int i = 0; i < read; i++)
+            {
+                if (scan.get(i) == '\n')
+                {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+    }
+
+    /* Parses one chunk of the file and instantiates its shapes, without touching the registry. */
+    private static class ChunkTask implements Callable<ChunkResult>
+    {
+        private final Path path;
+        private final long start;
+        private final long end;
+
+        private ChunkTask(Path path, long start, long end)
+        {
+            this.path = path;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public ChunkResult call() throws IOException
+        {
+            ChunkResult result = new ChunkResult();
+            if (end == Long.MAX_VALUE)
+            {
+                new ShapeFileParser(result).parseFile(path); //the whole of a file that can't be split
+                return result;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                channel.position(start);
+                new ShapeFileParser(result).parse(channel, end - start);
+            }
+            return result;
+        }
+    }
+
+    /* Inflates and parses a run of blocks of a block gzip file, without touching the registry. */
+    private static class BlockChunkTask implements Callable<ChunkResult>
+    {
+        private final Path path;
+        private final long[] blocks;
+        private final int from;
+        private final int to;
+
+        private BlockChunkTask(Path path, long[] blocks, int from, int to)
+        {
+            this.path = path;
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public ChunkResult call() throws IOException
+        {
+            ChunkResult result = new ChunkResult();
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                byte[] contents = new byte[0];
+                int length = 0;
+                for (int block = from; block < to; block++)
+                {
+                    byte[] inflated = inflate(channel, block);
+                    contents = ensureCapacity(contents, length + inflated.length);
+                    System.arraycopy(inflated, 0, contents, length, inflated.length);
+                    length += inflated.length;
+                }
+
+                //a line this chunk starts in the middle of belongs to the chunk before
+                int start = 0;
+                if (!followsLineBreak(channel))
+                {
+                    start = indexAfterLineBreak(contents, 0, length);
+                    if (start < 0)
+                    {
+                        return result; //all one line, which started before this chunk
+                    }
+                }
+
+                //finish the last line from the blocks after this chunk
+                if (length == 0 || contents[length - 1] != '\n')
+                {
+                    for (int block = to; block < blocks.length - 1; block++)
+                    {
+                        byte[] inflated = inflate(channel, block);
+                        int end = indexAfterLineBreak(inflated, 0, inflated.length);
+                        int count = end < 0 ? inflated.length : end;
+                        contents = ensureCapacity(contents, length + count);
+                        System.arraycopy(inflated, 0, contents, length, count);
+                        length += count;
+                        if (end >= 0)
+                        {
+                            break;
+                        }
+                    }
+                }
+
+                new ShapeFileParser(result).parseLines(ByteBuffer.wrap(contents), start, length, true);
+            }
+            return result;
+        }
+
+        /* @return Whether the chunk starts at the beginning of a line. */
+        private boolean followsLineBreak(FileChannel channel) throws IOException
+        {
+            for (int block = from - 1; block >= 0; block--)
+            {
+                byte[] inflated = inflate(channel, block);
+                if (inflated.length > 0)
+                {
+                    return inflated[inflated.length - 1] == '\n';
+                }
+            }
+            return true;
+        }
+
+        private byte[] inflate(FileChannel channel, int block) throws IOException
+        {
+            return BlockGzipReader.inflate(channel, blocks[block], (int)(blocks[block + 1] - blocks[block]));
+        }
+
+        /* @return The position just past the first '\n' in a range, or -1 if there isn't one. */
+        private static int indexAfterLineBreak(byte[] bytes, int from, int to)
+        {
+            for (int i = from; i < to; i++)
+            {
+                if (bytes[i] == '\n')
+                {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        private static byte[] ensureCapacity(byte[] bytes, int needed)
+        {
+            if (needed <= bytes.length)
+            {
+                return bytes;
+            }
+            return Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+        }
+    }
+
+    /* Registers the shapes a chunk kept. */
+    private static class RegisterTask implements Callable<ChunkResult>
+    {
+        private final ChunkResult result;
+
+        private RegisterTask(ChunkResult result)
+        {
+            this.result = result;
+        }
+
+        @Override
+        public ChunkResult call()
+        {
+            for (Shape shape : result.shapes)
+            {
+                Shape.registerShape(shape);
+            }
+            return result;
+        }
+    }
+
+    /* The shapes and rejections from one chunk, in the order they appeared. */
+    private static class ChunkResult implements ShapeRowHandler
+    {
+        private final List<Shape> shapes = new ArrayList<>();
+        private final List<RowRejection> rejections = new ArrayList<>();
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            shapes.add(Shape.createShape(shapeID, sides, dimensions));
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            rejections.add(reason);
+        }
+
+        /* Drops the shapes the duplicate policy doesn't want and reports the rejections. Called on the chunks in file
+         * order.
+         * @param duplicates Decides what happens to shapes whose IDs were in an earlier row. */
+        private void resolve(DuplicateIdFilter duplicates)
+        {
+            int kept = 0;
+            for (Shape shape : shapes)
+            {
+                if (duplicates.admit(shape.getShapeID()))
+                {
+                    shapes.set(kept++, shape);
+                }
+            }
+            shapes.subList(kept, shapes.size()).clear();
+
+            for (RowRejection rejection : rejections)
+            {
+                duplicates.rejectRow(rejection);
+            }
+        }
+
+        /* Drops the shapes that a later row replaces. Called on the chunks from the last to the first.
+         * @param later The IDs of the kept shapes after this chunk, which this chunk's kept IDs are added to. */
+        private void dropReplaced(IntBitmap later)
+        {
+            int kept = shapes.size();
+            for (int i = shapes.size() - 1; i >= 0; i--)
+            {
+                Shape shape = shapes.get(i);
+                if (later.add(shape.getShapeID()))
+                {
+                    shapes.set(--kept, shape);
+                }
+            }
+            shapes.subList(0, kept).clear();
+        }
+    }
+}
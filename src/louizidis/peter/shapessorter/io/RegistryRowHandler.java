@@ -0,0 +1,24 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.shapes.Shape;
+
+/**
+ * Description: The usual destination for parsed rows. Accepted rows are registered as shapes and rejected rows are
+ *              reported on the console.
+ */
+
+public class RegistryRowHandler implements ShapeRowHandler
+{
+    @Override
+    public void acceptRow(int shapeID, int sides, float[] dimensions)
+    {
+        Shape.registerShape(shapeID, sides, dimensions);
+    }
+
+    @Override
+    public void rejectRow(RowRejection reason)
+    {
+        //do proper error handling...
+        System.out.println(reason.getMessage());
+    }
+}
@@ -0,0 +1,40 @@
+package louizidis.peter.shapessorter.io;
+
+/**
+ * Description: The reasons a row of the input file can be rejected. Each reason carries the message that has always
+ *              been printed for that kind of row, so the console output is unchanged:
+ *              TOO_FEW_PARTS - fewer than the ID, the number of sides and two data points, unless a ShapeType
+ *                              takes fewer.
+ *              NUMBER_FORMAT - a part that isn't a number.
+ *              ELLIPSE_ARITY, TRIANGLE_ARITY, QUADRILATERAL_ARITY - the wrong number of data points for the shape.
+ *              UNKNOWN_SIDES - a number of sides no shape has.
+ *              ID_OUT_OF_RANGE - an ID that doesn't fit in an int.
+ *              DUPLICATE_ID - an ID already in the file, under DuplicateIdFilter's reject policy.
+ *              PLUGIN_ARITY - the wrong number of data points for a ShapeType's shape.
+ */
+
+public enum RowRejection
+{
+    TOO_FEW_PARTS("Skipping item..."),
+    NUMBER_FORMAT("Skipping item..."),
+    ELLIPSE_ARITY("Case 1 error..."),
+    TRIANGLE_ARITY("Case 3 error..."),
+    QUADRILATERAL_ARITY("Case 4 error..."),
+    UNKNOWN_SIDES("Default case triggered..."),
+    ID_OUT_OF_RANGE("Skipping item..."),
+    DUPLICATE_ID("Skipping duplicate item..."),
+    PLUGIN_ARITY("Skipping item...");
+
+    private final String message;
+
+    private RowRejection(String message)
+    {
+        this.message = message;
+    }
+
+    /* @return The message printed to the console when a row is rejected for this reason. */
+    public String getMessage()
+    {
+        return message;
+    }
+}
@@ -0,0 +1,510 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.metrics.ShapesMetrics;
+import louizidis.peter.shapessorter.shapes.ShapeType;
+import louizidis.peter.shapessorter.shapes.ShapeTypes;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Description: A streaming parser for the shapes input file. The file is read in large blocks into a reusable direct
+ *              buffer and each row is tokenized straight out of the buffer into primitives, which are then handed to
+ *              a ShapeRowHandler. Nothing is allocated per row unless a number is in an unusual format.
+ * Notes:   The rules are the same as the old Scanner + String.split version: lines starting with '#' and empty lines
+ *          are ignored, parts are separated by single spaces (trailing spaces are dropped, just like split did), and
+ *          the number of parts is checked against the number of sides. One difference is that a row containing a
+ *          part that is not a number is now rejected, rather than being turned into a shape with zeroed dimensions.
+ *          IDs are parsed exactly, not through a float, which only holds every integer up to 2^24 and so merged
+ *          neighbouring IDs above that. A decimal part of an ID is dropped as it always was, but an ID outside the int
+ *          range is rejected instead of being clamped to the nearest end of it.
+ *          Side counts other than 1, 3 and 4 are looked up in ShapeTypes, and rows of those types are checked against
+ *          the type's own number of data points, which can be fewer than the built in types need.
+ *          With a RowFilter, the ID is read before anything else, and a row the filter doesn't want is dropped there,
+ *          without being tokenized further, rejected or counted.
+ */
+
+public class ShapeFileParser
+{
+    public static final int MAX_DIMENSIONS = 3; //the most data points any shape has after the ID and side count
+
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int MIN_PARTS = 4;
+
+    /* Numbers with at most this mantissa and at most 10 decimal places are exactly representable as floats, so a
+     * single float division gives the same correctly rounded result as Float.parseFloat. */
+    private static final long FAST_PATH_MAX_MANTISSA = 1 << 24;
+    private static final float[] POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    private static final long ID_OUT_OF_RANGE = Long.MAX_VALUE;
+    private static final BigDecimal ID_LOWER_BOUND = BigDecimal.valueOf(Integer.MIN_VALUE - 1L); //exclusive, since
+    private static final BigDecimal ID_UPPER_BOUND = BigDecimal.valueOf(Integer.MAX_VALUE + 1L); //decimals truncate
+
+    /* Picks out the rows worth parsing past their ID, for when only some of the shapes in a file are wanted. */
+    public interface RowFilter
+    {
+        /* @param shapeID The ID of a row.
+         * @return Whether to parse the rest of the row. */
+        boolean wantsRow(int shapeID);
+
+        /* @return Whether to parse, and so reject, the rows whose ID can't be read. */
+        boolean wantsUnreadableRows();
+    }
+
+    private final ShapeRowHandler handler;
+    private final RowFilter filter;
+    private final float[] dimensions = new float[MAX_DIMENSIONS];
+    private ByteBuffer buffer;
+    private boolean malformed; //set when the number being parsed turns out not to be a number
+    private long rows;         //counted here and added to ShapesMetrics once per block, not once per row
+    private final long[] rejections = new long[RowRejection.values().length];
+
+    public ShapeFileParser(ShapeRowHandler handler)
+    {
+        this(handler, null);
+    }
+
+    /* @param handler Where the parsed rows go.
+     * @param filter Which rows to parse, or null for all of them. */
+    public ShapeFileParser(ShapeRowHandler handler, RowFilter filter)
+    {
+        this.handler = handler;
+        this.filter = filter;
+    }
+
+    /* Convenience method for parsing a single line that is already a String. This allocates, so it is only meant
+     * for the occasional line, not for whole files.
+     * @param line One line of data from the input file.
+     * @param handler Where the parsed row goes. */
+    public static void parseLine(String line, ShapeRowHandler handler)
+    {
+        byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+        ShapeFileParser parser = new ShapeFileParser(handler);
+        parser.parseLine(ByteBuffer.wrap(bytes), 0, bytes.length);
+        parser.flushCounts();
+    }
+
+    /* Parses every row of a file, inflating it first if it's compressed.
+     * @param path The file to parse. */
+    public void parseFile(Path path) throws IOException
+    {
+        try (ReadableByteChannel channel = CompressedFiles.openForReading(path))
+        {
+            parse(channel, channel instanceof FileChannel ? ((FileChannel)channel).size() : Long.MAX_VALUE);
+        }
+    }
+
+    /* Parses rows from a channel until the given number of bytes have been read or the channel runs out. The channel
+     * must be positioned at the start of a line, and the last line is parsed even if it has no line break.
+     * @param channel The channel to read from.
+     * @param length The maximum number of bytes to read, or Long.MAX_VALUE to read to the end. */
+    public void parse(ReadableByteChannel channel, long length) throws IOException
+    {
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        buffer.clear();
+
+        long remaining = length;
+        boolean endOfInput = false;
+        while (!endOfInput)
+        {
+            //fill the buffer, keeping whatever partial line was left over from last time at the front
+            while (buffer.hasRemaining() && remaining > 0)
+            {
+                if (buffer.remaining() > remaining)
+                {
+                    buffer.limit(buffer.position() + (int)remaining);
+                }
+                int read = channel.read(buffer);
+                if (read < 0)
+                {
+                    remaining = 0;
+                    break;
+                }
+                remaining -= read;
+            }
+            endOfInput = remaining <= 0;
+
+            buffer.flip();
+            int consumed = parseLines(buffer, 0, buffer.limit(), endOfInput);
+            buffer.position(consumed);
+            buffer.compact();
+
+            //a line longer than the whole buffer, give it more room
+            if (!endOfInput && !buffer.hasRemaining())
+            {
+                ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+
+    /* Parses all the complete lines between two positions of a buffer.
+     * @param bytes The buffer holding the input.
+     * @param from The position of the start of the first line.
+     * @param to The position just past the last byte available.
+     * @param endOfInput Whether a final line without a line break should be parsed too.
+     * @return The position of the first byte that was not consumed, ie. the start of a trailing partial line. */
+    public int parseLines(ByteBuffer bytes, int from, int to, boolean endOfInput)
+    {
+        int lineStart = from;
+        for (int i = from; i < to; i++)
+        {
+            byte b = bytes.get(i);
+            if (b == '\n' || b == '\r')
+            {
+                parseLine(bytes, lineStart, i);
+                if (b == '\r' && i + 1 < to && bytes.get(i + 1) == '\n')
+                {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+        }
+
+        if (endOfInput && lineStart < to)
+        {
+            parseLine(bytes, lineStart, to);
+            lineStart = to;
+        }
+        flushCounts();
+        return lineStart;
+    }
+
+    /* Adds the rows counted since last time to the metrics. */
+    private void flushCounts()
+    {
+        if (rows > 0)
+        {
+            ShapesMetrics.countRows(rows, rejections);
+            rows = 0;
+            for (int i = 0; i < rejections.length; i++)
+            {
+                rejections[i] = 0;
+            }
+        }
+    }
+
+    private void reject(RowRejection reason)
+    {
+        rejections[reason.ordinal()]++;
+        handler.rejectRow(reason);
+    }
+
+    /* Tokenizes a single line (without its line break) and passes the result to the handler. */
+    private void parseLine(ByteBuffer bytes, int start, int end)
+    {
+        if (start == end || bytes.get(start) == '#')
+        {
+            return; //blank lines and comments
+        }
+
+        malformed = false;
+        int parts = 0;
+        long shapeID = 0;
+        int sides = 0;
+        int partStart = start;
+        if (filter != null)
+        {
+            //read just the ID, so a row that isn't wanted costs no more than that
+            int idEnd = start;
+            while (idEnd < end && bytes.get(idEnd) != ' ')
+            {
+                idEnd++;
+            }
+            shapeID = parseID(bytes, start, idEnd);
+            boolean readable = !malformed && shapeID >= Integer.MIN_VALUE && shapeID <= Integer.MAX_VALUE;
+            if (readable ? !filter.wantsRow((int)shapeID) : !filter.wantsUnreadableRows())
+            {
+                return;
+            }
+            parts = 1;
+            partStart = idEnd + 1;
+        }
+        rows++;
+
+        //String.split drops trailing empty parts, so trailing spaces have never mattered
+        while (end > start && bytes.get(end - 1) == ' ')
+        {
+            end--;
+        }
+        if (end == start)
+        {
+            reject(RowRejection.TOO_FEW_PARTS);
+            return;
+        }
+
+        for (int i = partStart; i <= end; i++)
+        {
+            if (i == end || bytes.get(i) == ' ')
+            {
+                if (parts == 0)
+                {
+                    shapeID = parseID(bytes, partStart, i);
+                }
+                else if (parts == 1)
+                {
+                    sides = (int)parseFloat(bytes, partStart, i);
+                }
+                else if (parts - 2 < MAX_DIMENSIONS)
+                {
+                    dimensions[parts - 2] = parseFloat(bytes, partStart, i);
+                }
+                parts++;
+                partStart = i + 1;
+            }
+        }
+
+        if (parts < MIN_PARTS && !isPluginRow(sides, parts))
+        {
+            reject(RowRejection.TOO_FEW_PARTS);
+            return;
+        }
+        if (malformed)
+        {
+            reject(RowRejection.NUMBER_FORMAT);
+            return;
+        }
+        if (shapeID < Integer.MIN_VALUE || shapeID > Integer.MAX_VALUE)
+        {
+            reject(RowRejection.ID_OUT_OF_RANGE);
+            return;
+        }
+
+        switch (sides)
+        {
+            case 1:
+                if (parts != 4)
+                {
+                    reject(RowRejection.ELLIPSE_ARITY);
+                    return;
+                }
+                break;
+
+            case 3:
+                if (parts != 5)
+                {
+                    reject(RowRejection.TRIANGLE_ARITY);
+                    return;
+                }
+                break;
+
+            case 4:
+                if (parts != 4)
+                {
+                    reject(RowRejection.QUADRILATERAL_ARITY);
+                    return;
+                }
+                break;
+
+            default:
+                ShapeType type = ShapeTypes.forSides(sides);
+                if (type == null)
+                {
+                    reject(RowRejection.UNKNOWN_SIDES);
+                    return;
+                }
+                if (parts != type.getArity() + 2)
+                {
+                    reject(RowRejection.PLUGIN_ARITY);
+                    return;
+                }
+                for (int i = type.getArity(); i < MAX_DIMENSIONS; i++)
+                {
+                    dimensions[i] = 0; //rather than whatever the last row left there
+                }
+        }
+
+        handler.acceptRow((int)shapeID, sides, dimensions);
+    }
+
+    /* @return Whether a row too short for any built in type is the right length for a ShapeType with fewer data
+     *          points. */
+    private static boolean isPluginRow(int sides, int parts)
+    {
+        ShapeType type = ShapeTypes.forSides(sides);
+        return type != null && parts == type.getArity() + 2;
+    }
+
+    /* Parses a shape ID exactly. Plain integers and decimals are handled here directly, dropping any decimal part,
+     * anything else goes through parseIDSlowly. Sets the malformed flag and returns 0 if the part is not a number.
+     * @return The ID, which may be outside the int range, or ID_OUT_OF_RANGE if it's too big even for a long. */
+    private long parseID(ByteBuffer bytes, int start, int end)
+    {
+        int i = start;
+        boolean negative = false;
+        if (i < end)
+        {
+            byte sign = bytes.get(i);
+            if (sign == '-')
+            {
+                negative = true;
+                i++;
+            }
+            else if (sign == '+')
+            {
+                i++;
+            }
+        }
+
+        long value = 0;
+        int digits = 0;
+        boolean decimalPoint = false;
+        for (; i < end; i++)
+        {
+            byte b = bytes.get(i);
+            if (b >= '0' && b <= '9')
+            {
+                digits++;
+                if (!decimalPoint && value != ID_OUT_OF_RANGE)
+                {
+                    value = value * 10 + (b - '0');
+                    if (value > Integer.MAX_VALUE + 1L)
+                    {
+                        value = ID_OUT_OF_RANGE; //keep going, in case it isn't a number at all
+                    }
+                }
+            }
+            else if (b == '.' && !decimalPoint)
+            {
+                decimalPoint = true;
+            }
+            else
+            {
+                return parseIDSlowly(bytes, start, end);
+            }
+        }
+
+        if (digits == 0)
+        {
+            return parseIDSlowly(bytes, start, end);
+        }
+        return negative && value != ID_OUT_OF_RANGE ? -value : value;
+    }
+
+    /* The fallback for parseID, for exponents and anything else Float.parseFloat accepts. Exponents are applied
+     * exactly, the rest (eg. hexadecimal) have only ever been as exact as a float. */
+    private long parseIDSlowly(ByteBuffer bytes, int start, int end)
+    {
+        byte[] part = new byte[end - start];
+        for (int i = 0; i < part.length; i++)
+        {
+            part[i] = bytes.get(start + i);
+        }
+        String text = new String(part, StandardCharsets.ISO_8859_1);
+
+        BigDecimal value;
+        try
+        {
+            value = new BigDecimal(text);
+        }
+        catch (NumberFormatException e)
+        {
+            float approximate = parseFloatSlowly(bytes, start, end);
+            if (malformed || Float.isNaN(approximate) || Float.isInfinite(approximate))
+            {
+                return malformed ? 0 : ID_OUT_OF_RANGE;
+            }
+            value = new BigDecimal(approximate);
+        }
+
+        if (value.compareTo(ID_LOWER_BOUND) <= 0 || value.compareTo(ID_UPPER_BOUND) >= 0)
+        {
+            return ID_OUT_OF_RANGE;
+        }
+        return value.longValue();
+    }
+
+    /* Parses a float from the bytes of a single part. Plain decimals like "-12.75" are handled here directly, anything
+     * else (exponents, very long numbers, garbage) goes through Float.parseFloat so the results are always identical.
+     * Sets the malformed flag and returns 0 if the part is not a number. */
+    private float parseFloat(ByteBuffer bytes, int start, int end)
+    {
+        int i = start;
+        boolean negative = false;
+        if (i < end)
+        {
+            byte sign = bytes.get(i);
+            if (sign == '-')
+            {
+                negative = true;
+                i++;
+            }
+            else if (sign == '+')
+            {
+                i++;
+            }
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int decimalPlaces = 0;
+        boolean decimalPoint = false;
+        for (; i < end; i++)
+        {
+            byte b = bytes.get(i);
+            if (b >= '0' && b <= '9')
+            {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (decimalPoint)
+                {
+                    decimalPlaces++;
+                }
+                if (mantissa > FAST_PATH_MAX_MANTISSA)
+                {
+                    return parseFloatSlowly(bytes, start, end);
+                }
+            }
+            else if (b == '.' && !decimalPoint)
+            {
+                decimalPoint = true;
+            }
+            else
+            {
+                return parseFloatSlowly(bytes, start, end);
+            }
+        }
+
+        if (digits == 0 || decimalPlaces >= POWERS_OF_TEN.length)
+        {
+            return parseFloatSlowly(bytes, start, end);
+        }
+
+        float value = (float)mantissa;
+        if (decimalPlaces > 0)
+        {
+            value /= POWERS_OF_TEN[decimalPlaces];
+        }
+        return negative ? -value : value;
+    }
+
+    /* The fallback for parseFloat, which copies the part into a String for Float.parseFloat. */
+    private float parseFloatSlowly(ByteBuffer bytes, int start, int end)
+    {
+        byte[] part = new byte[end - start];
+        for (int i = 0; i < part.length; i++)
+        {
+            part[i] = bytes.get(start + i);
+        }
+
+        try
+        {
+            return Float.parseFloat(new String(part, StandardCharsets.ISO_8859_1));
+        }
+        catch (NumberFormatException e)
+        {
+            malformed = true;
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package louizidis.peter.shapessorter.io;
+
+/**
+ * Description: Receives the rows tokenized by a ShapeFileParser. Rows arrive as primitives so that nothing has to be
+ *              allocated per row between the input bytes and wherever the shape ends up.
+ */
+
+public interface ShapeRowHandler
+{
+    /* Called for every row that parsed cleanly and has the right number of parts for its side count.
+     * @param shapeID The shape ID from the first column.
+     * @param sides The number of sides from the second column.
+     * @param dimensions The remaining columns. The array is reused for the next row, so copy what you need. */
+    void acceptRow(int shapeID, int sides, float[] dimensions);
+
+    /* Called for every row that could not be turned into a shape.
+     * @param reason Why the row was rejected. */
+    void rejectRow(RowRejection reason);
+}
@@ -0,0 +1,41 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.shapes.ShapeStore;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Description: Sends parsed rows into a columnar ShapeStore instead of the registry.
+ */
+
+public class StoreRowHandler implements ShapeRowHandler
+{
+    private final ShapeStore store;
+
+    public StoreRowHandler(ShapeStore store)
+    {
+        this.store = store;
+    }
+
+    /* Parses a whole input file into a store, resolving repeated IDs by the configured DuplicateIdFilter policy.
+     * @param path The file to load.
+     * @param store The store to fill. */
+    public static void load(Path path, ShapeStore store) throws IOException
+    {
+        new ShapeFileParser(new DuplicateIdFilter(new StoreRowHandler(store))).parseFile(path);
+    }
+
+    @Override
+    public void acceptRow(int shapeID, int sides, float[] dimensions)
+    {
+        store.put(shapeID, sides, dimensions);
+    }
+
+    @Override
+    public void rejectRow(RowRejection reason)
+    {
+        //do proper error handling...
+        System.out.println(reason.getMessage());
+    }
+}
@@ -0,0 +1,113 @@
+package louizidis.peter.shapessorter.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Description: Counts how long something took, in buckets, so that percentiles can be read off at any time without
+ *              keeping every measurement. Safe to record to from any thread.
+ * Notes:   Each power of two of nanoseconds is split into 8 equal buckets, so a percentile is within about 6% of the
+ *          real value, and the whole range up to centuries takes under 500 buckets.
+ */
+
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /* @param nanos How long something took. */
+    public void record(long nanos)
+    {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        long max = maxNanos.get();
+        while (value > max && !maxNanos.compareAndSet(max, value))
+        {
+            max = maxNanos.get();
+        }
+    }
+
+    /* @param startNanos A System.nanoTime taken when the thing started.
+     * @return How long ago it started, which has been recorded. */
+    public long recordSince(long startNanos)
+    {
+        long nanos = System.nanoTime() - startNanos;
+        record(nanos);
+        return nanos;
+    }
+
+    /* @return A consistent enough copy of the histogram, in milliseconds. */
+    public LatencySummary summarize()
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        long max = maxNanos.get();
+        return new LatencySummary(total, toMillis(total == 0 ? 0 : totalNanos.get() / total),
+                toMillis(Math.min(max, percentile(snapshot, total, 0.5))),
+                toMillis(Math.min(max, percentile(snapshot, total, 0.99))), toMillis(max));
+    }
+
+    /* @return The middle of the bucket holding the given fraction of the measurements, which for the top bucket can be
+     *          past the largest measurement. */
+    private static long percentile(long[] snapshot, long total, double fraction)
+    {
+        if (total == 0)
+        {
+            return 0;
+        }
+        long rank = (long)Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= rank)
+            {
+                long low = lowestValueOf(i);
+                long high = i + 1 < BUCKETS ? lowestValueOf(i + 1) : Long.MAX_VALUE;
+                return low + (high - low) / 2;
+            }
+        }
+        return 0;
+    }
+
+    private static int bucketOf(long value)
+    {
+        if (value < SUB_BUCKETS)
+        {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) | subBucket;
+    }
+
+    private static long lowestValueOf(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        int exponent = (bucket >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket & (SUB_BUCKETS - 1);
+        return (SUB_BUCKETS | subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    private static double toMillis(long nanos)
+    {
+        return nanos / (double)TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
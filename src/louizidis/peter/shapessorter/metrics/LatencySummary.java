@@ -0,0 +1,63 @@
+package louizidis.peter.shapessorter.metrics;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Description: A copy of a LatencyHistogram's numbers at one point in time, in milliseconds. JMX shows it as a
+ *              composite value with one item per getter.
+ */
+
+public class LatencySummary
+{
+    private final long count;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({"count", "meanMillis", "p50Millis", "p99Millis", "maxMillis"})
+    public LatencySummary(long count, double meanMillis, double p50Millis, double p99Millis, double maxMillis)
+    {
+        this.count = count;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /* @return How many times were recorded. */
+    public long getCount()
+    {
+        return count;
+    }
+
+    public double getMeanMillis()
+    {
+        return meanMillis;
+    }
+
+    public double getP50Millis()
+    {
+        return p50Millis;
+    }
+
+    public double getP99Millis()
+    {
+        return p99Millis;
+    }
+
+    public double getMaxMillis()
+    {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        if (count == 0)
+        {
+            return "none";
+        }
+        return String.format("n=%d p50=%.1fms p99=%.1fms max=%.1fms", count, p50Millis, p99Millis, maxMillis);
+    }
+}
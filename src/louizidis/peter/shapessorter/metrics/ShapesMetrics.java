@@ -0,0 +1,296 @@
+package louizidis.peter.shapessorter.metrics;
+
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.shapes.Shape;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Description: The program's statistics: rows parsed, rejected (by reason) and repeating an earlier ID, how long
+ *              loading, grouping and writing the report take, the number of registered shapes and the heap in use.
+ *              They can be watched through JMX, and printed to the error stream every few seconds by starting the
+ *              program with -Dshapessorter.metrics.log=<seconds>. -Dshapessorter.metrics.jmx=false leaves JMX out.
+ * Notes:   Row counts are added from every parsing thread at once, so they're striped counters, and each parser
+ *          only adds its counts once per block of input rather than once per row.
+ */
+
+public final class ShapesMetrics implements ShapesMetricsMXBean
+{
+    public static final String LOG_INTERVAL_PROPERTY = "shapessorter.metrics.log";
+    public static final String JMX_PROPERTY = "shapessorter.metrics.jmx";
+    public static final String OBJECT_NAME = "louizidis.peter.shapessorter:type=ShapesMetrics";
+
+    public static final LatencyHistogram LOAD_LATENCY = new LatencyHistogram();
+    public static final LatencyHistogram GROUPING_LATENCY = new LatencyHistogram();
+    public static final LatencyHistogram REPORT_WRITE_LATENCY = new LatencyHistogram();
+
+    private static final RowRejection[] REASONS = RowRejection.values();
+    private static final StripedCounter rowsParsed = new StripedCounter();
+    private static final StripedCounter[] rowsRejected = new StripedCounter[REASONS.length];
+    private static final StripedCounter duplicateRows = new StripedCounter();
+    private static volatile double lastLoadRowsPerSecond;
+    private static final ShapesMetrics instance = new ShapesMetrics();
+    private static ScheduledExecutorService logger;
+
+    static
+    {
+        for (int i = 0; i < rowsRejected.length; i++)
+        {
+            rowsRejected[i] = new StripedCounter();
+        }
+    }
+
+    private ShapesMetrics()
+    {
+    }
+
+    /* @return The statistics, as an MXBean. */
+    public static ShapesMetrics getInstance()
+    {
+        return instance;
+    }
+
+    /* Adds to the row counts. Called by parsers after each block of input.
+     * @param rows The rows parsed, rejected or not.
+     * @param rejected The rows rejected, indexed by RowRejection ordinal. */
+    public static void countRows(long rows, long[] rejected)
+    {
+        rowsParsed.add(rows);
+        for (int i = 0; i < rejected.length; i++)
+        {
+            if (rejected[i] != 0)
+            {
+                rowsRejected[i].add(rejected[i]);
+            }
+        }
+    }
+
+    /* Counts a row whose shape ID was already in the file. Called by DuplicateIdFilter.
+     * @param rejected Whether the row was rejected for it. */
+    public static void countDuplicate(boolean rejected)
+    {
+        duplicateRows.add(1);
+        if (rejected)
+        {
+            rowsRejected[RowRejection.DUPLICATE_ID.ordinal()].add(1);
+        }
+    }
+
+    /* Records a load of the input file.
+     * @param startNanos A System.nanoTime taken when the load started.
+     * @param rowsBefore getRowsParsed when the load started. */
+    public static void recordLoad(long startNanos, long rowsBefore)
+    {
+        long nanos = LOAD_LATENCY.recordSince(startNanos);
+        lastLoadRowsPerSecond = (instance.getRowsParsed() - rowsBefore) * 1e9 / Math.max(1, nanos);
+    }
+
+    /* Makes the statistics visible through the platform MBean server in the background, since starting the server
+     * takes a few hundred milliseconds that the program shouldn't wait for. */
+    public static void registerMBeanInBackground()
+    {
+        if ("false".equalsIgnoreCase(System.getProperty(JMX_PROPERTY)))
+        {
+            return;
+        }
+        Thread thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                registerMBean();
+            }
+        }, "ShapesMetrics");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* Makes the statistics visible through the platform MBean server. Does nothing if they already are. */
+    public static synchronized void registerMBean()
+    {
+        try
+        {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(instance, name);
+            }
+        }
+        catch (JMException e)
+        {
+            //do proper error handling...
+            System.err.println("Couldn't register the metrics MBean: " + e);
+        }
+    }
+
+    /* Starts printing a line of statistics to the error stream every few seconds, if the log interval property is
+     * set to a number of seconds. */
+    public static synchronized void startPeriodicLog()
+    {
+        String property = System.getProperty(LOG_INTERVAL_PROPERTY);
+        if (property == null || logger != null)
+        {
+            return;
+        }
+        final long seconds;
+        try
+        {
+            seconds = Long.parseLong(property.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            System.err.println(LOG_INTERVAL_PROPERTY + " must be a number of seconds");
+            return;
+        }
+        if (seconds <= 0)
+        {
+            return;
+        }
+
+        logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "ShapesMetrics");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger.scheduleAtFixedRate(new Runnable()
+        {
+            private long lastRows = instance.getRowsParsed();
+            private long lastNanos = System.nanoTime();
+
+            @Override
+            public void run()
+            {
+                long rows = instance.getRowsParsed();
+                long nanos = System.nanoTime();
+                double rowsPerSecond = (rows - lastRows) * 1e9 / Math.max(1, nanos - lastNanos);
+                lastRows = rows;
+                lastNanos = nanos;
+                System.err.println(describe(rowsPerSecond));
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /* Stops the periodic log, if it's running. */
+    public static synchronized void stopPeriodicLog()
+    {
+        if (logger != null)
+        {
+            logger.shutdown();
+            logger = null;
+        }
+    }
+
+    /* @return One line with all the statistics. */
+    public static String describe(double rowsPerSecond)
+    {
+        StringBuilder line = new StringBuilder(256);
+        line.append("[metrics] rows=").append(instance.getRowsParsed());
+        line.append(String.format(" (%.0f/s)", rowsPerSecond));
+        line.append(" rejected=").append(instance.getRowsRejected());
+        for (Map.Entry<String, Long> reason : instance.getRowsRejectedByReason().entrySet())
+        {
+            if (reason.getValue() != 0)
+            {
+                line.append(' ').append(reason.getKey()).append('=').append(reason.getValue());
+            }
+        }
+        line.append(" duplicates=").append(instance.getDuplicateRows());
+        line.append(" shapes=").append(instance.getRegistrySize());
+        line.append(" heap=").append(instance.getHeapUsedBytes() >> 20).append('/');
+        line.append(instance.getHeapMaxBytes() >> 20).append("MB");
+        line.append(" load[").append(instance.getLoadLatency()).append(']');
+        line.append(" grouping[").append(instance.getGroupingLatency()).append(']');
+        line.append(" report[").append(instance.getReportWriteLatency()).append(']');
+        return line.toString();
+    }
+
+    @Override
+    public long getRowsParsed()
+    {
+        return rowsParsed.sum();
+    }
+
+    @Override
+    public long getRowsRejected()
+    {
+        long rejected = 0;
+        for (StripedCounter counter : rowsRejected)
+        {
+            rejected += counter.sum();
+        }
+        return rejected;
+    }
+
+    @Override
+    public Map<String, Long> getRowsRejectedByReason()
+    {
+        Map<String, Long> byReason = new LinkedHashMap<>();
+        for (int i = 0; i < REASONS.length; i++)
+        {
+            byReason.put(REASONS[i].name(), rowsRejected[i].sum());
+        }
+        return byReason;
+    }
+
+    @Override
+    public long getDuplicateRows()
+    {
+        return duplicateRows.sum();
+    }
+
+    @Override
+    public double getLastLoadRowsPerSecond()
+    {
+        return lastLoadRowsPerSecond;
+    }
+
+    @Override
+    public int getRegistrySize()
+    {
+        return Shape.getRegistry().size();
+    }
+
+    @Override
+    public long getHeapUsedBytes()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Override
+    public long getHeapMaxBytes()
+    {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public LatencySummary getLoadLatency()
+    {
+        return LOAD_LATENCY.summarize();
+    }
+
+    @Override
+    public LatencySummary getGroupingLatency()
+    {
+        return GROUPING_LATENCY.summarize();
+    }
+
+    @Override
+    public LatencySummary getReportWriteLatency()
+    {
+        return REPORT_WRITE_LATENCY.summarize();
+    }
+}
@@ -0,0 +1,43 @@
+package louizidis.peter.shapessorter.metrics;
+
+import java.util.Map;
+
+/**
+ * Description: What ShapesMetrics shows through JMX, eg. in JConsole or VisualVM, under
+ *              louizidis.peter.shapessorter:type=ShapesMetrics.
+ */
+
+public interface ShapesMetricsMXBean
+{
+    /* @return Every row parsed from any input file, rejected or not. Blank lines and comments aren't rows. */
+    long getRowsParsed();
+
+    /* @return The rows that couldn't be turned into shapes. */
+    long getRowsRejected();
+
+    /* @return The rejected rows by RowRejection name. */
+    Map<String, Long> getRowsRejectedByReason();
+
+    /* @return The rows whose shape ID had already appeared in the same file, whatever the duplicate policy did with
+     *          them. */
+    long getDuplicateRows();
+
+    /* @return How many rows a second the last load of the input file parsed, or 0 if it was restored from a
+     *          snapshot without parsing. */
+    double getLastLoadRowsPerSecond();
+
+    int getRegistrySize();
+
+    long getHeapUsedBytes();
+
+    long getHeapMaxBytes();
+
+    /* @return How long loading the input file takes. */
+    LatencySummary getLoadLatency();
+
+    /* @return How long grouping the shapes by category for the report takes. */
+    LatencySummary getGroupingLatency();
+
+    /* @return How long writing the output file takes. */
+    LatencySummary getReportWriteLatency();
+}
@@ -0,0 +1,73 @@
+package louizidis.peter.shapessorter.report;
+
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+import louizidis.peter.shapessorter.util.IntList;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description: Shape IDs grouped by category, with the categories sorted alphabetically by base type and then by sub
+ *              type, the same order the sorted output file has always used. Empty categories are left out.
+ */
+
+public class CategoryGrouping
+{
+    private final int[] categories;
+    private final IntList[] shapeIDs;
+
+    /* @param shapeIDsByCategory Lists of shape IDs indexed by ShapeCategory code. Missing or empty lists are
+     *                           skipped. */
+    public CategoryGrouping(IntList[] shapeIDsByCategory)
+    {
+        List<Integer> codes = new ArrayList<>();
+        for (int code = 0; code < shapeIDsByCategory.length; code++)
+        {
+            if (shapeIDsByCategory[code] != null && !shapeIDsByCategory[code].isEmpty())
+            {
+                codes.add(code);
+            }
+        }
+        Collections.sort(codes, ShapeCategory.ALPHABETICAL);
+
+        categories = new int[codes.size()];
+        shapeIDs = new IntList[codes.size()];
+        for (int i = 0; i < categories.length; i++)
+        {
+            categories[i] = codes.get(i);
+            shapeIDs[i] = shapeIDsByCategory[categories[i]];
+        }
+    }
+
+    /* @return The number of non-empty categories. */
+    public int size()
+    {
+        return categories.length;
+    }
+
+    /* @param index A position in the sorted order, from zero up to one less than size.
+     * @return The ShapeCategory code of the category at that position. */
+    public int getCategory(int index)
+    {
+        return categories[index];
+    }
+
+    /* @return The base type label of the category at a position. */
+    public String getBaseType(int index)
+    {
+        return ShapeCategory.getBaseType(categories[index]);
+    }
+
+    /* @return The sub type label of the category at a position. */
+    public String getSubType(int index)
+    {
+        return ShapeCategory.getSubType(categories[index]);
+    }
+
+    /* @return The IDs of the shapes in the category at a position. */
+    public IntList getShapeIDs(int index)
+    {
+        return shapeIDs[index];
+    }
+}
@@ -0,0 +1,220 @@
+package louizidis.peter.shapessorter.report;
+
+/**
+ * Description: Summarizes a stream of numbers in a fixed amount of memory: the exact count, minimum, maximum and sum,
+ *              and counts in logarithmic buckets from which any quantile can be estimated. Two sketches merge into
+ *              one that is exactly what a single sketch of both streams would have been, so parts of a stream can be
+ *              summarized on separate threads and merged at the end.
+ * Notes:   Bucket i holds the values between gamma^(i-1) and gamma^i, with gamma = 1.02/0.98, so a quantile is always
+ *          within 2% of the value actually at that rank. Negative values are kept in a mirror image set of buckets,
+ *          and zeroes, along with anything too small to have a bucket, are just counted.
+ *          2048 buckets cover values spanning 35 orders of magnitude. If a sketch ever needs more than that, its lowest
+ *          buckets are merged together, which makes the lowest quantiles less accurate but nothing else.
+ *          Not thread safe: each thread needs its own sketch.
+ */
+
+public class QuantileSketch
+{
+    private static final double RELATIVE_ACCURACY = 0.02;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_INDEXABLE = 1e-12; //anything closer to zero counts as zero
+    private static final int MAX_BUCKETS = 2048;
+
+    private final Buckets positives = new Buckets();
+    private final Buckets negatives = new Buckets(); //indexed by the magnitude of the value
+    private long zeroes;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double sum;
+
+    /* @param value A number from the stream. NaN is ignored. */
+    public void add(double value)
+    {
+        if (Double.isNaN(value))
+        {
+            return;
+        }
+        if (value > MIN_INDEXABLE)
+        {
+            positives.add(indexOf(value), 1);
+        }
+        else if (value < -MIN_INDEXABLE)
+        {
+            negatives.add(indexOf(-value), 1);
+        }
+        else
+        {
+            zeroes++;
+        }
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /* Adds everything another sketch has seen to this one. */
+    public void merge(QuantileSketch other)
+    {
+        positives.merge(other.positives);
+        negatives.merge(other.negatives);
+        zeroes += other.zeroes;
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /* @return How many numbers have been added. */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /* @return The smallest number added, or NaN if there haven't been any. */
+    public double getMin()
+    {
+        return count == 0 ? Double.NaN : min;
+    }
+
+    /* @return The largest number added, or NaN if there haven't been any. */
+    public double getMax()
+    {
+        return count == 0 ? Double.NaN : max;
+    }
+
+    /* @return The mean of the numbers added, or NaN if there haven't been any. */
+    public double getMean()
+    {
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    /* @param fraction Which quantile, from 0 to 1. eg. 0.5 for the median.
+     * @return An estimate of the number that this fraction of the numbers are at or below, within the sketch's
+     *          accuracy and never outside the smallest and largest. NaN if no numbers have been added. */
+    public double getQuantile(double fraction)
+    {
+        if (count == 0)
+        {
+            return Double.NaN;
+        }
+        long rank = Math.max(1, (long)Math.ceil(count * fraction));
+
+        //negatives run from the largest magnitude down, then the zeroes, then the positives up
+        double estimate;
+        long negativeCount = negatives.total();
+        if (rank <= negativeCount)
+        {
+            estimate = -valueOf(negatives.indexAtRank(negativeCount - rank + 1));
+        }
+        else if (rank <= negativeCount + zeroes)
+        {
+            estimate = 0;
+        }
+        else
+        {
+            estimate = valueOf(positives.indexAtRank(rank - negativeCount - zeroes));
+        }
+        return Math.max(min, Math.min(max, estimate));
+    }
+
+    private static int indexOf(double magnitude)
+    {
+        return (int)Math.ceil(Math.log(Math.min(magnitude, Double.MAX_VALUE)) / LOG_GAMMA); //infinity in the top one
+    }
+
+    /* @return The value that's within the relative accuracy of everything in a bucket. */
+    private static double valueOf(int index)
+    {
+        return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+    }
+
+    /* Counts for a contiguous range of bucket indexes, which grows as it needs to. */
+    private static class Buckets
+    {
+        private long[] counts = new long[0];
+        private int offset; //the bucket index of counts[0]
+        private long total;
+
+        private void add(int index, long number)
+        {
+            if (counts.length == 0)
+            {
+                counts = new long[1];
+                offset = index;
+            }
+            else if (index < offset || index >= offset + counts.length)
+            {
+                cover(index);
+            }
+            counts[Math.max(index, offset) - offset] += number; //below the range only if the lowest were merged
+            total += number;
+        }
+
+        private void merge(Buckets other)
+        {
+            for (int i = 0; i < other.counts.length; i++)
+            {
+                if (other.counts[i] != 0)
+                {
+                    add(other.offset + i, other.counts[i]);
+                }
+            }
+        }
+
+        private long total()
+        {
+            return total;
+        }
+
+        /* @param rank From 1 up to the total.
+         * @return The index of the bucket holding the value at that rank, counting up from the lowest. */
+        private int indexAtRank(long rank)
+        {
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank)
+                {
+                    return offset + i;
+                }
+            }
+            return offset + counts.length - 1;
+        }
+
+        /* Widens the range to include an index, with some room to spare, merging the lowest buckets if the range
+         * would get too big. */
+        private void cover(int index)
+        {
+            int low = Math.min(offset, index);
+            int high = Math.max(offset + counts.length - 1, index);
+            int spare = Math.min(counts.length, MAX_BUCKETS - (high - low + 1));
+            if (spare > 0)
+            {
+                //grow towards where the new index was, since more are likely to follow it
+                if (index < offset)
+                {
+                    low -= spare;
+                }
+                else
+                {
+                    high += spare;
+                }
+            }
+            if (high - low + 1 > MAX_BUCKETS)
+            {
+                low = high - MAX_BUCKETS + 1;
+            }
+
+            long[] covering = new long[high - low + 1];
+            for (int i = 0; i < counts.length; i++)
+            {
+                covering[Math.max(offset + i, low) - low] += counts[i];
+            }
+            counts = covering;
+            offset = low;
+        }
+    }
+}
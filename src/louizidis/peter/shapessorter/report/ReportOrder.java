@@ -0,0 +1,157 @@
+package louizidis.peter.shapessorter.report;
+
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeRegistry;
+import louizidis.peter.shapessorter.util.IntList;
+import louizidis.peter.shapessorter.util.LongKeySorter;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Description: The order of the shapes within each category of the sorted output file: by ID, area or perimeter,
+ *              ascending or descending. Chosen by starting the program with -Dshapessorter.report.order=id, id-desc,
+ *              area, area-desc, perimeter or perimeter-desc. The default is ascending IDs, the order the file has
+ *              always had.
+ *              Ordering by a measurement looks each shape up once to make a key from its area or perimeter, then
+ *              sorts the IDs by those keys with LongKeySorter, both on a fork-join pool.
+ * Notes:   Shapes with the same area or perimeter stay in ascending ID order, whichever way the measurement is
+ *          sorted, since the IDs start out ascending and the sort is stable.
+ *          Only the interactive mode's report can be ordered. --sort and --sharded always write ascending IDs.
+ */
+
+public enum ReportOrder
+{
+    ID_ASCENDING,
+    ID_DESCENDING,
+    AREA_ASCENDING,
+    AREA_DESCENDING,
+    PERIMETER_ASCENDING,
+    PERIMETER_DESCENDING;
+
+    public static final String PROPERTY = "shapessorter.report.order";
+
+    private static final int KEY_PARTITION_SIZE = 64 * 1024;
+
+    /* @return The order set by the system property, or ID_ASCENDING if it isn't set or isn't an order. */
+    public static ReportOrder configured()
+    {
+        String property = System.getProperty(PROPERTY);
+        if (property == null)
+        {
+            return ID_ASCENDING;
+        }
+        String name = property.trim().toUpperCase().replace('-', '_');
+        if (name.endsWith("_DESC"))
+        {
+            name = name.substring(0, name.length() - "_DESC".length()) + "_DESCENDING";
+        }
+        else
+        {
+            name += "_ASCENDING";
+        }
+        try
+        {
+            return valueOf(name);
+        }
+        catch (IllegalArgumentException e)
+        {
+            //do proper error handling...
+            System.err.println("Unknown report order " + property + ", using id.");
+            return ID_ASCENDING;
+        }
+    }
+
+    /* Puts the IDs in each category of a grouping into this order.
+     * @param grouping A grouping with its IDs in ascending order, as CategoryIndex.snapshot gives, which is changed.
+     * @param shapes Where to find the shape for each ID. IDs that aren't there any more go last.
+     * @param pool The pool to sort on. */
+    public void apply(CategoryGrouping grouping, ShapeRegistry shapes, ForkJoinPool pool)
+    {
+        for (int category = 0; category < grouping.size(); category++)
+        {
+            IntList shapeIDs = grouping.getShapeIDs(category);
+            switch (this)
+            {
+                case ID_ASCENDING:
+                    break;
+
+                case ID_DESCENDING:
+                    reverse(shapeIDs);
+                    break;
+
+                default:
+                    int[] sorted = shapeIDs.toArray();
+                    long[] keys = new long[sorted.length];
+                    pool.invoke(new KeyTask(this, shapes, sorted, keys, 0, sorted.length));
+                    LongKeySorter.sort(keys, sorted, 0, sorted.length, pool);
+                    for (int i = 0; i < sorted.length; i++)
+                    {
+                        shapeIDs.set(i, sorted[i]);
+                    }
+            }
+        }
+    }
+
+    /* @return The sort key for a shape, ascending in this order. */
+    private long keyOf(Shape shape)
+    {
+        if (shape == null)
+        {
+            return Long.MAX_VALUE; //removed since the grouping was taken, and left out of the report anyway
+        }
+        double measurement = this == AREA_ASCENDING || this == AREA_DESCENDING ? shape.getSurfaceArea()
+                : shape.getPermimeter();
+        long key = LongKeySorter.keyOf(measurement);
+        return this == AREA_DESCENDING || this == PERIMETER_DESCENDING ? ~key : key;
+    }
+
+    private static void reverse(IntList list)
+    {
+        for (int i = 0, j = list.size() - 1; i < j; i++, j--)
+        {
+            int swap = list.get(i);
+            list.set(i, list.get(j));
+            list.set(j, swap);
+        }
+    }
+
+    /* Works out the sort keys for a range of IDs, splitting it in half until the pieces are small enough. */
+    private static class KeyTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ReportOrder order;
+        private final ShapeRegistry shapes;
+        private final int[] shapeIDs;
+        private final long[] keys;
+        private final int from;
+        private final int to;
+
+        private KeyTask(ReportOrder order, ShapeRegistry shapes, int[] shapeIDs, long[] keys, int from, int to)
+        {
+            this.order = order;
+            this.shapes = shapes;
+            this.shapeIDs = shapeIDs;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from > KEY_PARTITION_SIZE)
+            {
+                int middle = (from + to) >>> 1;
+                invokeAll(new KeyTask(order, shapes, shapeIDs, keys, from, middle),
+                        new KeyTask(order, shapes, shapeIDs, keys, middle, to));
+                return;
+            }
+            for (int i = from; i < to; i++)
+            {
+                keys[i] = order.keyOf(shapes.get(shapeIDs[i]));
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package louizidis.peter.shapessorter.report;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Description: Writes the lines of the sorted shapes output file. Lines are formatted straight into a large reusable
+ *              buffer, numbers included, and the buffer is handed to the channel in big blocks. Writing a shape
+ *              doesn't create any Strings.
+ * Notes:   The output is byte for byte what BufferedWriter produced from String concatenation: numbers look exactly
+ *          like Double.toString and lines end with the platform line separator. Areas and perimeters are always
+ *          rounded to two decimal places, which is what the fast number formatting handles; anything else is passed
+ *          through Double.toString.
+ */
+
+public class ReportWriter implements Closeable
+{
+    private static final byte[] LINE_SEPARATOR = System.getProperty("line.separator").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] AREA = " (area: ".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PERIMETER = ", permimeter: ".getBytes(StandardCharsets.UTF_8);
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_LINE_LENGTH = 128; //more than any shape line can need
+
+    /* Double.toString only uses plain notation between 10^-3 and 10^7. With at most 9 significant digits, the two
+     * decimal place form is also the shortest one that identifies the double, so it's what Double.toString prints. */
+    private static final double PLAIN_LIMIT = 1e7;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final byte[] digits = new byte[20];
+
+    /* @param channel Where to write the report. It is closed when this writer is. */
+    public ReportWriter(WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /* Writes the heading for a base type, eg. "Triangle". */
+    public void writeBaseType(String baseType) throws IOException
+    {
+        writeLabel(baseType, 0);
+    }
+
+    /* Writes the indented heading for a sub type, eg. "Scalene Triangle". */
+    public void writeSubType(String subType) throws IOException
+    {
+        writeLabel(subType, 1);
+    }
+
+    /* Writes the line for one shape, eg. "\t\t6 (area: 78.41, permimeter: 50.45)". */
+    public void writeShape(int shapeID, double area, double perimeter) throws IOException
+    {
+        if (buffer.remaining() < MAX_LINE_LENGTH)
+        {
+            flush();
+        }
+
+        buffer.put((byte)'\t');
+        buffer.put((byte)'\t');
+        putLong(shapeID);
+        buffer.put(AREA);
+        putDouble(area);
+        buffer.put(PERIMETER);
+        putDouble(perimeter);
+        buffer.put((byte)')');
+        buffer.put(LINE_SEPARATOR);
+    }
+
+    /* Hands everything buffered so far to the channel. */
+    public void flush() throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private void writeLabel(String label, int indent) throws IOException
+    {
+        byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+        int length = indent + bytes.length + LINE_SEPARATOR.length;
+        if (buffer.remaining() < length)
+        {
+            flush();
+        }
+
+        ByteBuffer target = buffer;
+        if (buffer.remaining() < length)
+        {
+            target = ByteBuffer.allocate(length); //a ridiculously long label, don't bother buffering it
+        }
+        for (int i = 0; i < indent; i++)
+        {
+            target.put((byte)'\t');
+        }
+        target.put(bytes);
+        target.put(LINE_SEPARATOR);
+
+        if (target != buffer)
+        {
+            target.flip();
+            while (target.hasRemaining())
+            {
+                channel.write(target);
+            }
+        }
+    }
+
+    /* Writes a whole number in decimal. */
+    private void putLong(long value)
+    {
+        if (value < 0)
+        {
+            buffer.put((byte)'-');
+            if (value == Long.MIN_VALUE)
+            {
+                buffer.put(Long.toString(value).substring(1).getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            value = -value;
+        }
+
+        int length = 0;
+        do
+        {
+            digits[length++] = (byte)('0' + value % 10);
+            value /= 10;
+        }
+        while (value != 0);
+
+        while (length > 0)
+        {
+            buffer.put(digits[--length]);
+        }
+    }
+
+    /* Writes a number exactly as Double.toString would. */
+    private void putDouble(double value)
+    {
+        double magnitude = Math.abs(value);
+        if (magnitude >= 0.01 && magnitude < PLAIN_LIMIT)
+        {
+            long hundredths = Math.round(magnitude * 100);
+            if (hundredths / 100.0 == magnitude)
+            {
+                if (value < 0)
+                {
+                    buffer.put((byte)'-');
+                }
+                putLong(hundredths / 100);
+                buffer.put((byte)'.');
+
+                //Double.toString drops trailing zeros but always keeps at least one decimal place
+                int fraction = (int)(hundredths % 100);
+                buffer.put((byte)('0' + fraction / 10));
+                if (fraction % 10 != 0)
+                {
+                    buffer.put((byte)('0' + fraction % 10));
+                }
+                return;
+            }
+        }
+        else if (value == 0 && Double.doubleToRawLongBits(value) == 0)
+        {
+            buffer.put((byte)'0');
+            buffer.put((byte)'.');
+            buffer.put((byte)'0');
+            return;
+        }
+
+        buffer.put(Double.toString(value).getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,153 @@
+package louizidis.peter.shapessorter.report;
+
+import louizidis.peter.shapessorter.ShapesSorter;
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description: The number of shapes in each category, with the distribution of their areas and perimeters: exact
+ *              minimums, maximums and means, and quantiles estimated by QuantileSketches. Takes the same memory
+ *              however many shapes are added, and summaries of separate parts of the input merge into the summary of
+ *              the whole.
+ * Notes:   Not thread safe: each thread adds to its own summary, and they're merged at the end.
+ */
+
+public class ShapesSummary
+{
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+    private static final String[] QUANTILE_NAMES = {"p50", "p90", "p99"};
+
+    private QuantileSketch[] surfaceAreas = new QuantileSketch[0]; //indexed by ShapeCategory code
+    private QuantileSketch[] perimeters = new QuantileSketch[0];
+
+    /* Adds one shape.
+     * @param category The shape's ShapeCategory code. */
+    public void add(int category, double surfaceArea, double perimeter)
+    {
+        if (category >= surfaceAreas.length)
+        {
+            grow(category + 1);
+        }
+        if (surfaceAreas[category] == null)
+        {
+            surfaceAreas[category] = new QuantileSketch();
+            perimeters[category] = new QuantileSketch();
+        }
+        surfaceAreas[category].add(surfaceArea);
+        perimeters[category].add(perimeter);
+    }
+
+    /* Adds everything in another summary to this one. */
+    public void merge(ShapesSummary other)
+    {
+        if (other.surfaceAreas.length > surfaceAreas.length)
+        {
+            grow(other.surfaceAreas.length);
+        }
+        for (int category = 0; category < other.surfaceAreas.length; category++)
+        {
+            if (other.surfaceAreas[category] == null)
+            {
+                continue;
+            }
+            if (surfaceAreas[category] == null)
+            {
+                surfaceAreas[category] = new QuantileSketch();
+                perimeters[category] = new QuantileSketch();
+            }
+            surfaceAreas[category].merge(other.surfaceAreas[category]);
+            perimeters[category].merge(other.perimeters[category]);
+        }
+    }
+
+    /* @return The number of shapes added in a category. */
+    public long count(int category)
+    {
+        return category < surfaceAreas.length && surfaceAreas[category] != null ? surfaceAreas[category].getCount() : 0;
+    }
+
+    /* @return The number of shapes added in all. */
+    public long count()
+    {
+        long total = 0;
+        for (int category = 0; category < surfaceAreas.length; category++)
+        {
+            total += count(category);
+        }
+        return total;
+    }
+
+    /* @return The areas of the shapes in a category, or null if there aren't any. */
+    public QuantileSketch getSurfaceAreas(int category)
+    {
+        return category < surfaceAreas.length ? surfaceAreas[category] : null;
+    }
+
+    /* @return The perimeters of the shapes in a category, or null if there aren't any. */
+    public QuantileSketch getPerimeters(int category)
+    {
+        return category < perimeters.length ? perimeters[category] : null;
+    }
+
+    /* Writes the summary as text, with the categories in the same order and under the same headings as the sorted
+     * output file. */
+    public void write(Appendable out) throws IOException
+    {
+        List<Integer> categories = new ArrayList<>();
+        for (int category = 0; category < surfaceAreas.length; category++)
+        {
+            if (count(category) > 0)
+            {
+                categories.add(category);
+            }
+        }
+        Collections.sort(categories, ShapeCategory.ALPHABETICAL);
+
+        String lineSeparator = System.getProperty("line.separator");
+        String baseType = null;
+        for (int category : categories)
+        {
+            if (!ShapeCategory.getBaseType(category).equals(baseType))
+            {
+                baseType = ShapeCategory.getBaseType(category);
+                out.append(baseType).append(lineSeparator);
+            }
+            out.append('\t').append(ShapeCategory.getSubType(category)).append(": ")
+                    .append(String.valueOf(count(category))).append(lineSeparator);
+            writeDistribution(out, "area", surfaceAreas[category], lineSeparator);
+            writeDistribution(out, "perimeter", perimeters[category], lineSeparator);
+        }
+    }
+
+    private static void writeDistribution(Appendable out, String name, QuantileSketch sketch, String lineSeparator)
+            throws IOException
+    {
+        out.append("\t\t").append(name).append(": min ").append(format(sketch.getMin()))
+                .append(", mean ").append(format(sketch.getMean()));
+        for (int i = 0; i < QUANTILES.length; i++)
+        {
+            out.append(", ").append(QUANTILE_NAMES[i]).append(' ').append(format(sketch.getQuantile(QUANTILES[i])));
+        }
+        out.append(", max ").append(format(sketch.getMax())).append(lineSeparator);
+    }
+
+    private static String format(double value)
+    {
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            return String.valueOf(value); //can't be rounded
+        }
+        return String.valueOf(ShapesSorter.round(value, 2));
+    }
+
+    private void grow(int categories)
+    {
+        surfaceAreas = Arrays.copyOf(surfaceAreas, categories);
+        perimeters = Arrays.copyOf(perimeters, categories);
+    }
+}
@@ -0,0 +1,198 @@
+package louizidis.peter.shapessorter.report;
+
+import louizidis.peter.shapessorter.io.CompressedFiles;
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeRegistry;
+import louizidis.peter.shapessorter.util.IntList;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Description: Writes the sorted shapes output file from a grouping of shape IDs. Small reports are written straight
+ *              through one ReportWriter. Big ones can be cut into segments of at most a few hundred thousand shapes,
+ *              each formatted into its own temporary file on a fork-join pool, and the segments are then stitched
+ *              together in order with FileChannel.transferTo, which lets the operating system copy them without
+ *              passing the bytes through Java.
+ * Notes:   Both ways produce exactly the same bytes. Shapes are looked up in the registry without locking while the
+ *          report is written, so a shape removed since the grouping was taken is left out, and one replaced since
+ *          then is written with its new measurements.
+ */
+
+public class SortedShapesReport
+{
+    private static final int SEGMENT_SIZE = 256 * 1024; //shapes per segment when writing in parallel
+
+    private final CategoryGrouping grouping;
+    private final ShapeRegistry shapes;
+
+    /* @param grouping The shape IDs to write, grouped and sorted by category.
+     * @param shapes Where to find the shape for each ID. */
+    public SortedShapesReport(CategoryGrouping grouping, ShapeRegistry shapes)
+    {
+        this.grouping = grouping;
+        this.shapes = shapes;
+    }
+
+    /* Writes the whole report on the calling thread.
+     * @param path The output file, which is replaced if it already exists. */
+    public void write(Path path) throws IOException
+    {
+        try (ReportWriter writer = new ReportWriter(openForWriting(path)))
+        {
+            for (int category = 0; category < grouping.size(); category++)
+            {
+                writeSegment(writer, category, 0, grouping.getShapeIDs(category).size());
+            }
+        }
+    }
+
+    /* Writes the report as segments formatted in parallel and then stitched together.
+     * @param path The output file, which is replaced if it already exists.
+     * @param pool The pool to format segments on. */
+    public void writeInParallel(Path path, ForkJoinPool pool) throws IOException
+    {
+        List<Future<Path>> segments = new ArrayList<>();
+        try
+        {
+            for (int category = 0; category < grouping.size(); category++)
+            {
+                int size = grouping.getShapeIDs(category).size();
+                for (int from = 0; from < size; from += SEGMENT_SIZE)
+                {
+                    int to = Math.min(size, from + SEGMENT_SIZE);
+                    segments.add(pool.submit(new SegmentTask(path, category, from, to)));
+                }
+            }
+
+            try (WritableByteChannel output = openForWriting(path))
+            {
+                for (Future<Path> segment : segments)
+                {
+                    try (FileChannel input = FileChannel.open(getSegment(segment), StandardOpenOption.READ))
+                    {
+                        long position = 0;
+                        long size = input.size();
+                        while (position < size)
+                        {
+                            position += input.transferTo(position, size - position, output);
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            for (Future<Path> segment : segments)
+            {
+                deleteSegment(segment);
+            }
+        }
+    }
+
+    /* Writes some of the shapes of one category, with the headings in front if this is where they belong. */
+    private void writeSegment(ReportWriter writer, int category, int from, int to) throws IOException
+    {
+        if (from == 0)
+        {
+            //the base type heading goes before the first sub type of each base type
+            if (category == 0 || !grouping.getBaseType(category).equals(grouping.getBaseType(category - 1)))
+            {
+                writer.writeBaseType(grouping.getBaseType(category));
+            }
+            writer.writeSubType(grouping.getSubType(category));
+        }
+
+        IntList shapeIDs = grouping.getShapeIDs(category);
+        for (int i = from; i < to; i++)
+        {
+            Shape shape = shapes.get(shapeIDs.get(i));
+            if (shape == null)
+            {
+                continue; //removed since the grouping was taken
+            }
+            writer.writeShape(shape.getShapeID(), shape.getSurfaceArea(), shape.getPermimeter());
+        }
+    }
+
+    private static WritableByteChannel openForWriting(Path path) throws IOException
+    {
+        return CompressedFiles.openForWriting(path);
+    }
+
+    private static Path getSegment(Future<Path> segment) throws IOException
+    {
+        try
+        {
+            return segment.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing the report", e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException("Failed to write the report", e.getCause());
+        }
+    }
+
+    private static void deleteSegment(Future<Path> segment)
+    {
+        try
+        {
+            Files.deleteIfExists(segment.get());
+        }
+        catch (Exception e)
+        {
+            //the segment was never written, or is already gone
+        }
+    }
+
+    /* Formats one segment into a temporary file next to the output file. */
+    private class SegmentTask implements Callable<Path>
+    {
+        private final Path output;
+        private final int category;
+        private final int from;
+        private final int to;
+
+        private SegmentTask(Path output, int category, int from, int to)
+        {
+            this.output = output;
+            this.category = category;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Path call() throws IOException
+        {
+            Path segment = Files.createTempFile(output.toAbsolutePath().getParent(), "SortedShapes", ".part");
+            try (ReportWriter writer = new ReportWriter(openForWriting(segment)))
+            {
+                writeSegment(writer, category, from, to);
+            }
+            catch (IOException e)
+            {
+                Files.deleteIfExists(segment);
+                throw e;
+            }
+            return segment;
+        }
+    }
+}
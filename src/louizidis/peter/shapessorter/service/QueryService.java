@@ -0,0 +1,473 @@
+package louizidis.peter.shapessorter.service;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import louizidis.peter.shapessorter.shapes.CategoryIndex;
+import louizidis.peter.shapessorter.shapes.MetricIndex;
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Description: A small HTTP service for looking shapes up from other programs while ShapesSorter is running. It only
+ *              listens on the loopback interface and answers in JSON:
+ *              GET /shapes/{id}    the details of one shape, or 404 if there's no shape with that ID.
+ *              GET /counts         how many shapes there are of each base type and sub type.
+ *              GET /ids?base=Triangle&sub=Scalene%20Triangle&offset=0&limit=100
+ *                                  one page of the IDs in a category, in ascending order, with the total.
+ *              GET /range?metric=area&min=10&max=20&limit=100
+ *                                  the IDs of shapes with an area (or perimeter) from min to max, smallest first.
+ *              GET /top?metric=perimeter&base=Ellipse&sub=Oval&count=100
+ *                                  the IDs of the shapes with the largest area (or perimeter), largest first.
+ *              Range and top queries can be given a base and sub type to only look at one category.
+ * Notes:   Lookups read the shape registry without locking, so they never wait on a load that's running at the same
+ *          time. Counts and ID pages briefly lock one category of the category index, and range and top queries the
+ *          metric index. Requests are served on virtual threads when the JVM has them (Java 21 onwards), otherwise on
+ *          a fixed pool of platform threads; the handlers never block on anything but the index, so a pool the size of
+ *          the machine keeps up just as well.
+ */
+
+public class QueryService
+{
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 10000;
+    private static final int BACKLOG = 1024;
+    private static final String NO_DELAY_PROPERTY = "sun.net.httpserver.nodelay";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /* Starts the service.
+     * @param port The port to listen on, or 0 for any free port. */
+    public QueryService(int port) throws IOException
+    {
+        //the JDK server writes the headers and the body separately, and with Nagle's algorithm on the body of every
+        //small response then waits for the client's delayed ACK, around 40ms. Read when the first server is made.
+        if (System.getProperty(NO_DELAY_PROPERTY) == null)
+        {
+            System.setProperty(NO_DELAY_PROPERTY, "true");
+        }
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.createContext("/shapes/", new LookupHandler());
+        server.createContext("/counts", new CountsHandler());
+        server.createContext("/ids", new IDsHandler());
+        server.createContext("/range", new RangeHandler());
+        server.createContext("/top", new TopHandler());
+        executor = newExecutor();
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /* @return The port the service is listening on. */
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    /* Stops taking requests, gives the ones in progress a moment to finish, and shuts down the threads. */
+    public void stop()
+    {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /* @return A virtual thread per request executor if this JVM has one, otherwise a fixed pool. Looked up by
+     *          reflection so the code still builds and runs on older JVMs. */
+    private static ExecutorService newExecutor()
+    {
+        try
+        {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            return Executors.newFixedThreadPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+        }
+    }
+
+    /* GET /shapes/{id} */
+    private static class LookupHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!isGet(exchange))
+            {
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            int shapeID;
+            try
+            {
+                shapeID = Integer.parseInt(path.substring("/shapes/".length()));
+            }
+            catch (NumberFormatException e)
+            {
+                sendError(exchange, 400, "The shape ID must be an integer.");
+                return;
+            }
+
+            Shape shape = Shape.getRegistry().get(shapeID);
+            if (shape == null)
+            {
+                sendError(exchange, 404, "There is no shape with that ID.");
+                return;
+            }
+
+            StringBuilder json = new StringBuilder(128);
+            json.append("{\"id\":").append(shapeID);
+            json.append(",\"baseType\":");
+            appendString(json, shape.getBaseType());
+            json.append(",\"subType\":");
+            appendString(json, shape.getSubType());
+            json.append(",\"area\":").append(shape.getSurfaceArea());
+            json.append(",\"perimeter\":").append(shape.getPermimeter());
+            json.append('}');
+            send(exchange, 200, json);
+        }
+    }
+
+    /* GET /counts */
+    private static class CountsHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!isGet(exchange))
+            {
+                return;
+            }
+
+            CategoryIndex index = Shape.getCategoryIndex();
+            StringBuilder json = new StringBuilder(256);
+            json.append('{');
+            String baseType = null;
+            for (int category : index.getCategories())
+            {
+                if (!ShapeCategory.getBaseType(category).equals(baseType))
+                {
+                    if (baseType != null)
+                    {
+                        json.append("},");
+                    }
+                    baseType = ShapeCategory.getBaseType(category);
+                    appendString(json, baseType);
+                    json.append(":{");
+                }
+                else
+                {
+                    json.append(',');
+                }
+                appendString(json, ShapeCategory.getSubType(category));
+                json.append(':').append(index.count(category));
+            }
+            if (baseType != null)
+            {
+                json.append('}');
+            }
+            json.append('}');
+            send(exchange, 200, json);
+        }
+    }
+
+    /* GET /ids?base=...&sub=...&offset=...&limit=... */
+    private static class IDsHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!isGet(exchange))
+            {
+                return;
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            if (!query.containsKey("base") || !query.containsKey("sub"))
+            {
+                sendError(exchange, 400, "Both base and sub are needed, eg. ?base=Quadrilateral&sub=Square");
+                return;
+            }
+            int offset;
+            int limit;
+            try
+            {
+                offset = query.containsKey("offset") ? Integer.parseInt(query.get("offset")) : 0;
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_PAGE_SIZE;
+            }
+            catch (NumberFormatException e)
+            {
+                sendError(exchange, 400, "The offset and limit must be integers.");
+                return;
+            }
+            if (offset < 0 || limit < 0 || limit > MAX_PAGE_SIZE)
+            {
+                sendError(exchange, 400, "The offset can't be negative and the limit must be 0 to " + MAX_PAGE_SIZE);
+                return;
+            }
+
+            //unknown categories are just empty, rather than being created by whoever asks
+            int category = ShapeCategory.find(query.get("base"), query.get("sub"));
+            CategoryIndex index = Shape.getCategoryIndex();
+            int total = category < 0 ? 0 : index.count(category);
+            int[] shapeIDs = category < 0 ? new int[0] : index.getShapeIDs(category, offset, limit);
+
+            StringBuilder json = new StringBuilder(64 + shapeIDs.length * 8);
+            json.append("{\"total\":").append(total);
+            json.append(",\"offset\":").append(offset);
+            json.append(',');
+            appendIDs(json, shapeIDs);
+            json.append('}');
+            send(exchange, 200, json);
+        }
+    }
+
+    /* GET /range?metric=...&min=...&max=...&limit=...[&base=...&sub=...] */
+    private static class RangeHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!isGet(exchange))
+            {
+                return;
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            MetricIndex index = getMetricIndex(exchange, query);
+            if (index == null)
+            {
+                return;
+            }
+            double min;
+            double max;
+            int limit;
+            try
+            {
+                min = query.containsKey("min") ? Double.parseDouble(query.get("min")) : Double.NEGATIVE_INFINITY;
+                max = query.containsKey("max") ? Double.parseDouble(query.get("max")) : Double.POSITIVE_INFINITY;
+                limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_PAGE_SIZE;
+            }
+            catch (NumberFormatException e)
+            {
+                sendError(exchange, 400, "The min and max must be numbers and the limit an integer.");
+                return;
+            }
+            if (limit < 0 || limit > MAX_PAGE_SIZE)
+            {
+                sendError(exchange, 400, "The limit must be 0 to " + MAX_PAGE_SIZE);
+                return;
+            }
+
+            int[] shapeIDs;
+            if (query.containsKey("base") || query.containsKey("sub"))
+            {
+                int category = getCategory(exchange, query);
+                if (category == -2)
+                {
+                    return;
+                }
+                shapeIDs = category < 0 ? new int[0] : index.range(category, min, max, limit);
+            }
+            else
+            {
+                shapeIDs = index.range(min, max, limit);
+            }
+            sendIDs(exchange, shapeIDs);
+        }
+    }
+
+    /* GET /top?metric=...&count=...[&base=...&sub=...] */
+    private static class TopHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!isGet(exchange))
+            {
+                return;
+            }
+
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            MetricIndex index = getMetricIndex(exchange, query);
+            if (index == null)
+            {
+                return;
+            }
+            int count;
+            try
+            {
+                count = query.containsKey("count") ? Integer.parseInt(query.get("count")) : DEFAULT_PAGE_SIZE;
+            }
+            catch (NumberFormatException e)
+            {
+                sendError(exchange, 400, "The count must be an integer.");
+                return;
+            }
+            if (count < 0 || count > MAX_PAGE_SIZE)
+            {
+                sendError(exchange, 400, "The count must be 0 to " + MAX_PAGE_SIZE);
+                return;
+            }
+
+            int[] shapeIDs;
+            if (query.containsKey("base") || query.containsKey("sub"))
+            {
+                int category = getCategory(exchange, query);
+                if (category == -2)
+                {
+                    return;
+                }
+                shapeIDs = category < 0 ? new int[0] : index.top(category, count);
+            }
+            else
+            {
+                shapeIDs = index.top(count);
+            }
+            sendIDs(exchange, shapeIDs);
+        }
+    }
+
+    /* Sends a 400 if the metric parameter is missing or isn't area or perimeter.
+     * @return The index for the metric asked for, or null if an error was sent. */
+    private static MetricIndex getMetricIndex(HttpExchange exchange, Map<String, String> query) throws IOException
+    {
+        String metric = query.get("metric");
+        if ("area".equalsIgnoreCase(metric))
+        {
+            return Shape.getMetricIndex(MetricIndex.Metric.AREA);
+        }
+        if ("perimeter".equalsIgnoreCase(metric))
+        {
+            return Shape.getMetricIndex(MetricIndex.Metric.PERIMETER);
+        }
+        sendError(exchange, 400, "The metric must be area or perimeter.");
+        return null;
+    }
+
+    /* Sends a 400 unless both the base and sub parameters are there.
+     * @return The category's code, -1 if there's no such category, or -2 if an error was sent. */
+    private static int getCategory(HttpExchange exchange, Map<String, String> query) throws IOException
+    {
+        if (!query.containsKey("base") || !query.containsKey("sub"))
+        {
+            sendError(exchange, 400, "Both base and sub are needed, eg. ?base=Quadrilateral&sub=Square");
+            return -2;
+        }
+        return ShapeCategory.find(query.get("base"), query.get("sub"));
+    }
+
+    private static void sendIDs(HttpExchange exchange, int[] shapeIDs) throws IOException
+    {
+        StringBuilder json = new StringBuilder(16 + shapeIDs.length * 8);
+        json.append('{');
+        appendIDs(json, shapeIDs);
+        json.append('}');
+        send(exchange, 200, json);
+    }
+
+    /* Appends "ids":[...] */
+    private static void appendIDs(StringBuilder json, int[] shapeIDs)
+    {
+        json.append("\"ids\":[");
+        for (int i = 0; i < shapeIDs.length; i++)
+        {
+            if (i > 0)
+            {
+                json.append(',');
+            }
+            json.append(shapeIDs[i]);
+        }
+        json.append(']');
+    }
+
+    /* Sends a 405 for anything but GET.
+     * @return Whether the request is a GET. */
+    private static boolean isGet(HttpExchange exchange) throws IOException
+    {
+        if (exchange.getRequestMethod().equals("GET"))
+        {
+            return true;
+        }
+        exchange.getResponseHeaders().set("Allow", "GET");
+        sendError(exchange, 405, "Only GET is supported.");
+        return false;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException
+    {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null)
+        {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&"))
+        {
+            int equals = parameter.indexOf('=');
+            if (equals > 0)
+            {
+                parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"error\":");
+        appendString(json, message);
+        json.append('}');
+        send(exchange, status, json);
+    }
+
+    private static void send(HttpExchange exchange, int status, CharSequence json) throws IOException
+    {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody())
+        {
+            output.write(body);
+        }
+    }
+
+    /* Appends a JSON string, escaping what needs escaping. */
+    private static void appendString(StringBuilder json, String value)
+    {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                json.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                json.append(String.format("\\u%04x", (int)c));
+            }
+            else
+            {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
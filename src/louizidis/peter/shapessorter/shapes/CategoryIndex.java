@@ -0,0 +1,234 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.report.CategoryGrouping;
+import louizidis.peter.shapessorter.util.IntIntHashMap;
+import louizidis.peter.shapessorter.util.IntList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Description: Keeps the IDs of the registered shapes grouped by category as shapes come and go, so that counting
+ *              the shapes of a type is a single lookup and producing the sorted output doesn't need to look at every
+ *              shape again. It listens to the shape registry, so it's kept up to date whenever a shape is registered,
+ *              replaced or removed.
+ * Notes:   IDs are handed out in ascending order within each category. Keeping every list sorted on each insert
+ *          would be wasteful, so a list is only sorted when it's asked for after going out of order, and stays
+ *          sorted until the next out of order change. Input files listing IDs in order never need a sort at all.
+ *          Thread safe. Each category has its own lock, held only long enough to update or copy its list, so threads
+ *          registering shapes of different categories don't wait for each other. The registry calls in with one of
+ *          its stripes locked, and a category lock is never held while taking another, so there's no lock ordering
+ *          to get wrong.
+ *          A shape that moves to another category is taken out of one before it's put in the other, and snapshot
+ *          copies the categories one at a time, so a snapshot taken during changes is weakly consistent, like the
+ *          registry's iterator: every ID in it is in the category it had at some point while the snapshot was taken.
+ */
+
+public class CategoryIndex implements ShapeRegistry.Listener
+{
+    private volatile Category[] categories = new Category[0]; //indexed by category code, only ever grows
+
+    /* Adds a shape to its category. The shape must not already be in the index. */
+    @Override
+    public void shapeAdded(Shape shape)
+    {
+        categoryFor(shape.getCategory()).add(shape.getShapeID());
+    }
+
+    /* Removes a shape from its category. The shape must be in the index. */
+    @Override
+    public void shapeRemoved(Shape shape)
+    {
+        categories[shape.getCategory()].remove(shape.getShapeID());
+    }
+
+    /* Moves a shape that has been replaced by another with the same ID into the new shape's category. */
+    @Override
+    public void shapeReplaced(Shape previous, Shape shape)
+    {
+        if (previous.getCategory() != shape.getCategory())
+        {
+            shapeRemoved(previous);
+            shapeAdded(shape);
+        }
+    }
+
+    /* @param category A ShapeCategory code.
+     * @return How many shapes are in that category. */
+    public int count(int category)
+    {
+        Category[] current = categories;
+        if (category >= current.length || current[category] == null)
+        {
+            return 0;
+        }
+        return current[category].size();
+    }
+
+    /* @return How many shapes there are of a given base type and sub type, eg. "Quadrilateral" and "Square". */
+    public int count(String baseType, String subType)
+    {
+        return count(ShapeCategory.codeOf(baseType, subType));
+    }
+
+    /* @return The codes of the categories that have shapes in them, sorted alphabetically. */
+    public List<Integer> getCategories()
+    {
+        List<Integer> codes = new ArrayList<>();
+        for (int category = 0; category < categories.length; category++)
+        {
+            if (count(category) > 0)
+            {
+                codes.add(category);
+            }
+        }
+        Collections.sort(codes, ShapeCategory.ALPHABETICAL);
+        return codes;
+    }
+
+    /* @return A copy of the index with the categories sorted alphabetically and the IDs in ascending order. */
+    public CategoryGrouping snapshot()
+    {
+        Category[] current = categories;
+        IntList[] copy = new IntList[current.length];
+        for (int category = 0; category < current.length; category++)
+        {
+            if (current[category] != null)
+            {
+                copy[category] = current[category].copy();
+            }
+        }
+        return new CategoryGrouping(copy);
+    }
+
+    /* @param category A ShapeCategory code.
+     * @param offset How many of the category's IDs to skip.
+     * @param limit The most IDs to return.
+     * @return One page of the category's IDs, in ascending order. Empty if the offset is past the end. */
+    public int[] getShapeIDs(int category, int offset, int limit)
+    {
+        if (offset < 0 || limit < 0)
+        {
+            throw new IllegalArgumentException("The offset and limit can't be negative.");
+        }
+        Category[] current = categories;
+        if (category >= current.length || current[category] == null)
+        {
+            return new int[0];
+        }
+        return current[category].page(offset, limit);
+    }
+
+    /* @return The category with the given code, made if this is its first shape. */
+    private Category categoryFor(int category)
+    {
+        Category[] current = categories;
+        if (category < current.length && current[category] != null)
+        {
+            return current[category];
+        }
+
+        synchronized (this)
+        {
+            current = categories;
+            if (category >= current.length)
+            {
+                current = Arrays.copyOf(current, category + 1);
+            }
+            else if (current[category] != null)
+            {
+                return current[category]; //made by another thread since the first look
+            }
+            else
+            {
+                current = current.clone(); //readers must never see the table change under them
+            }
+            current[category] = new Category();
+            categories = current;
+            return current[category];
+        }
+    }
+
+    /* The IDs in one category, and where each one is in the list. Every method locks the category. */
+    private static class Category
+    {
+        private final IntList shapeIDs = new IntList();
+        private final IntIntHashMap positions = new IntIntHashMap(); //shape ID -> position in shapeIDs
+        private boolean outOfOrder;                                  //whether the list needs sorting before use
+
+        private synchronized void add(int shapeID)
+        {
+            if (!shapeIDs.isEmpty() && shapeID < shapeIDs.get(shapeIDs.size() - 1))
+            {
+                outOfOrder = true;
+            }
+            positions.put(shapeID, shapeIDs.size());
+            shapeIDs.add(shapeID);
+        }
+
+        private synchronized void remove(int shapeID)
+        {
+            int position = positions.remove(shapeID);
+
+            //fill the gap with the last ID, which is O(1) but may leave the list out of order
+            int last = shapeIDs.removeLast();
+            if (position < shapeIDs.size())
+            {
+                shapeIDs.set(position, last);
+                positions.put(last, position);
+                outOfOrder = true;
+            }
+        }
+
+        private synchronized int size()
+        {
+            return shapeIDs.size();
+        }
+
+        /* @return A sorted copy of the IDs, or null if there aren't any. */
+        private synchronized IntList copy()
+        {
+            if (shapeIDs.isEmpty())
+            {
+                return null;
+            }
+            sortIfNeeded();
+            IntList copy = new IntList(shapeIDs.size());
+            copy.addAll(shapeIDs);
+            return copy;
+        }
+
+        private synchronized int[] page(int offset, int limit)
+        {
+            int count = shapeIDs.size();
+            if (offset >= count)
+            {
+                return new int[0];
+            }
+
+            sortIfNeeded();
+            int[] page = new int[(int)Math.min(limit, (long)count - offset)];
+            for (int i = 0; i < page.length; i++)
+            {
+                page[i] = shapeIDs.get(offset + i);
+            }
+            return page;
+        }
+
+        /* Sorts the list if it has gone out of order since it was last sorted. */
+        private void sortIfNeeded()
+        {
+            if (outOfOrder)
+            {
+                shapeIDs.sort();
+                for (int i = 0; i < shapeIDs.size(); i++)
+                {
+                    positions.put(shapeIDs.get(i), i);
+                }
+                outOfOrder = false;
+            }
+        }
+    }
+}
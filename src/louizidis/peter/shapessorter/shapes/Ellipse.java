@@ -17,6 +17,10 @@ public class Ellipse extends Shape
     public static final String CIRCLE = "Circle";
     public static final String OVAL = "Oval";
 
+    /* ShapeCategory codes for the sub-shapes, which are what each ellipse actually stores. */
+    public static final int CIRCLE_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, CIRCLE);
+    public static final int OVAL_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, OVAL);
+
     private float semiMajorAxis; //the largest radius of an ellipse
     private float semiMinorAxis; //the smallest radius of an ellipse
 
@@ -24,33 +28,66 @@ public class Ellipse extends Shape
      * @param semiMinorAxis The smallest radius. */
     public Ellipse(int shapeID, float semiMajorAxis, float semiMinorAxis)
     {
-        super(shapeID, BASE_SHAPE);
+        super(shapeID);
+        bind(shapeID, semiMajorAxis, semiMinorAxis);
+    }
+
+    /* Creates an ellipse with no data yet, to be bound to data later as a flyweight view. */
+    Ellipse()
+    {
+        super(0);
+    }
+
+    /* Points this ellipse at a new set of data. This is how flyweight views move from one stored shape to the next.
+     * @param semiMajorAxis The largest radius.
+     * @param semiMinorAxis The smallest radius. */
+    void bind(int shapeID, float semiMajorAxis, float semiMinorAxis)
+    {
+        rebind(shapeID);
         this.semiMajorAxis = semiMajorAxis;
         this.semiMinorAxis = semiMinorAxis;
-        subType = getShapeTypeLabel();
     }
 
     @Override
-    public String getShapeTypeLabel()
+    protected int classify()
     {
         if (semiMajorAxis == semiMinorAxis)
         {
-            return CIRCLE;
+            return CIRCLE_CATEGORY;
         }
         else
         {
-            return OVAL;
+            return OVAL_CATEGORY;
         }
     }
 
     @Override
-    public double getSurfaceArea()
+    int getSides()
+    {
+        return 1;
+    }
+
+    @Override
+    float getDimension(int index)
+    {
+        return index == 0 ? semiMajorAxis : index == 1 ? semiMinorAxis : 0;
+    }
+
+    @Override
+    void restoreDimensions(float[] dimensions, double derivedLength)
+    {
+        semiMajorAxis = dimensions[0];
+        semiMinorAxis = dimensions[1];
+    }
+
+    @Override
+    protected double calculateSurfaceArea()
     {
         return ShapesSorter.round(Math.PI * semiMajorAxis * semiMinorAxis, 2);
     }
 
     @Override
-    public double getPermimeter()
+    protected double calculatePerimeter()
     {
         //this is an approximation, ellipse perimeters are apparently not practical to calculate accurately
         return ShapesSorter.round(Math.PI * (3 * (semiMajorAxis + semiMinorAxis)
@@ -0,0 +1,620 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.util.IntIntHashMap;
+import louizidis.peter.shapessorter.util.IntList;
+
+import java.util.Arrays;
+
+/**
+ * Description: Keeps the registered shapes sorted by surface area or by perimeter, for questions like "all shapes with
+ *              an area between 10 and 20" or "the 100 ovals with the longest perimeters". Finding where a range starts
+ *              is a binary search, and the largest shapes are simply the end of the list, so a query costs a logarithm
+ *              of the list's size plus the shapes it returns, plus at most a few removed entries it skips, see below.
+ *              There's one list for all shapes and, if asked for, one per category.
+ *              It listens to the shape registry, so it's kept up to date whenever a shape is registered, replaced or
+ *              removed.
+ * Notes:   Each list is a sorted main part plus a small sorted part holding what's been added since the last merge.
+ *          Inserting into the middle of a big sorted array every time would cost a copy of half of it, so new shapes
+ *          are inserted into the small part instead, which is merged into the main part once it grows past four times
+ *          the square root of the list's size. A removed or replaced shape is found by its old value with a binary
+ *          search. It's taken straight out of the small part, but in the main part it's only marked as removed, to be
+ *          dropped at the next merge. Marked entries are capped the same way, so that's the most a query ever skips
+ *          over, about forty thousand entries in a hundred million shapes.
+ *          The values are kept as doubles and IDs as ints in flat arrays, with no objects per shape. Merges write into
+ *          a spare set of arrays, which the old main part becomes afterwards, and queries allocate nothing but their
+ *          result. Filling an index works out the area or perimeter of every shape in it, if that hasn't happened
+ *          already, and sorts them all at once.
+ *          Thread safe. Every method locks the index, which is only held long enough to update or read a list.
+ */
+
+public class MetricIndex implements ShapeRegistry.Listener
+{
+    /* What a MetricIndex sorts by. */
+    public enum Metric
+    {
+        AREA
+        {
+            @Override
+            public double of(Shape shape)
+            {
+                return shape.getSurfaceArea();
+            }
+        },
+        PERIMETER
+        {
+            @Override
+            public double of(Shape shape)
+            {
+                return shape.getPermimeter();
+            }
+        };
+
+        public abstract double of(Shape shape);
+    }
+
+    private final Metric metric;
+    private final boolean byCategory;
+    private final SortedList all = new SortedList();
+    private SortedList[] categories = new SortedList[0]; //indexed by category code, empty unless byCategory
+    private boolean filling; //while attach adds the registered shapes, which are sorted all at once at the end
+
+    /* @param metric What to sort the shapes by.
+     * @param byCategory Whether to also keep a list per category, which is needed to query within a category. */
+    public MetricIndex(Metric metric, boolean byCategory)
+    {
+        this.metric = metric;
+        this.byCategory = byCategory;
+    }
+
+    /* Starts listening to a registry and adds the shapes already in it. Shapes registered, replaced or removed while
+     * this is running are handled correctly too, but the index can't be queried until it returns.
+     * @param registry The registry to index. */
+    public void attach(ShapeRegistry registry)
+    {
+        synchronized (this)
+        {
+            filling = true;
+            all.filling = true;
+        }
+        registry.addListener(this);
+        for (Shape shape : registry)
+        {
+            synchronized (this)
+            {
+                //only if no change since has been heard about, and it's still the registered shape
+                if (!all.contains(shape.getShapeID()) && registry.get(shape.getShapeID()) == shape)
+                {
+                    shapeAdded(shape);
+                }
+            }
+        }
+        synchronized (this)
+        {
+            filling = false;
+            all.finishFilling();
+            for (SortedList list : categories)
+            {
+                if (list != null)
+                {
+                    list.finishFilling();
+                }
+            }
+        }
+    }
+
+    /* @return What the shapes are sorted by. */
+    public Metric getMetric()
+    {
+        return metric;
+    }
+
+    /* @return Whether there's a list per category as well, so the category queries can be used. */
+    public boolean isByCategory()
+    {
+        return byCategory;
+    }
+
+    @Override
+    public synchronized void shapeAdded(Shape shape)
+    {
+        double value = metric.of(shape);
+        all.add(shape.getShapeID(), value);
+        if (byCategory)
+        {
+            int category = shape.getCategory();
+            if (category >= categories.length)
+            {
+                categories = Arrays.copyOf(categories, category + 1);
+            }
+            if (categories[category] == null)
+            {
+                categories[category] = new SortedList();
+                categories[category].filling = filling;
+            }
+            categories[category].add(shape.getShapeID(), value);
+        }
+    }
+
+    @Override
+    public synchronized void shapeReplaced(Shape previous, Shape shape)
+    {
+        shapeRemoved(previous);
+        shapeAdded(shape);
+    }
+
+    @Override
+    public synchronized void shapeRemoved(Shape shape)
+    {
+        double value = metric.of(shape); //already worked out when the shape was added
+        all.remove(shape.getShapeID(), value);
+        if (byCategory && shape.getCategory() < categories.length && categories[shape.getCategory()] != null)
+        {
+            categories[shape.getCategory()].remove(shape.getShapeID(), value);
+        }
+    }
+
+    /* @return How many shapes are in the index. */
+    public synchronized int size()
+    {
+        return all.size();
+    }
+
+    /* @param min The smallest value to include.
+     * @param max The largest value to include.
+     * @param limit The most IDs to return.
+     * @return The IDs of the shapes with values from min to max inclusive, smallest value first. Shapes with equal
+     *          values are in ascending ID order. */
+    public synchronized int[] range(double min, double max, int limit)
+    {
+        return all.range(min, max, limit);
+    }
+
+    /* The same as range(min, max, limit), but only for shapes of one category.
+     * @param category A ShapeCategory code. */
+    public synchronized int[] range(int category, double min, double max, int limit)
+    {
+        SortedList list = categoryList(category);
+        return list == null ? new int[0] : list.range(min, max, limit);
+    }
+
+    /* @param count The most IDs to return.
+     * @return The IDs of the shapes with the largest values, largest first. Shapes with equal values are in
+     *          descending ID order. */
+    public synchronized int[] top(int count)
+    {
+        return all.top(count);
+    }
+
+    /* The same as top(count), but only for shapes of one category.
+     * @param category A ShapeCategory code. */
+    public synchronized int[] top(int category, int count)
+    {
+        SortedList list = categoryList(category);
+        return list == null ? new int[0] : list.top(count);
+    }
+
+    private SortedList categoryList(int category)
+    {
+        if (!byCategory)
+        {
+            throw new IllegalStateException("This index isn't kept by category");
+        }
+        return category >= 0 && category < categories.length ? categories[category] : null;
+    }
+
+    /* The shapes of one list, sorted by value and then by ID. Not thread safe on its own. */
+    private static class SortedList
+    {
+        private static final int MIN_MERGE_SIZE = 1024;
+        private static final int MERGE_FACTOR = 4; //times the square root of the size, measured as a good balance
+
+        private double[] values = new double[0]; //the main part
+        private int[] shapeIDs = new int[0];
+        private long[] removed = new long[0];    //a bit for each entry of the main part, set once it no longer counts
+        private int size;
+        private int removedCount;
+        private double[] spareValues = new double[0]; //what the next merge writes into, the old main part after it
+        private int[] spareShapeIDs = new int[0];
+
+        private double[] newValues = new double[16]; //added since the last merge, kept sorted unless filling
+        private int[] newShapeIDs = new int[16];
+        private int[] newVersions = new int[16]; //only used while filling
+        private int newSize;
+        private boolean filling; //while set, additions are only appended, and sorted by finishFilling
+
+        private final IntIntHashMap current = new IntIntHashMap(); //shape ID -> 0, or the version while filling
+        private int nextVersion = 1;
+
+        private boolean contains(int shapeID)
+        {
+            return current.containsKey(shapeID);
+        }
+
+        private int size()
+        {
+            return current.size();
+        }
+
+        private void add(int shapeID, double value)
+        {
+            if (current.put(shapeID, filling ? nextVersion : 0) != IntIntHashMap.MISSING && !filling)
+            {
+                removeAnywhere(shapeID); //added again without being removed first, which listeners never do
+            }
+            if (newSize == newValues.length)
+            {
+                newValues = Arrays.copyOf(newValues, newSize * 2);
+                newShapeIDs = Arrays.copyOf(newShapeIDs, newSize * 2);
+                newVersions = Arrays.copyOf(newVersions, newSize * 2);
+            }
+            if (filling)
+            {
+                newValues[newSize] = value;
+                newShapeIDs[newSize] = shapeID;
+                newVersions[newSize++] = nextVersion++;
+                return;
+            }
+
+            //insert in order, which moves no more than the new part along, and that is kept small
+            int position = lowerBound(newValues, newShapeIDs, newSize, value, shapeID);
+            System.arraycopy(newValues, position, newValues, position + 1, newSize - position);
+            System.arraycopy(newShapeIDs, position, newShapeIDs, position + 1, newSize - position);
+            newValues[position] = value;
+            newShapeIDs[position] = shapeID;
+            newSize++;
+            mergeIfNeeded();
+        }
+
+        /* @param value The value the shape was added with, which is how its entry is found. */
+        private void remove(int shapeID, double value)
+        {
+            if (current.remove(shapeID) == IntIntHashMap.MISSING || filling)
+            {
+                return; //while filling, finishFilling drops entries whose ID has gone
+            }
+            int position = find(newValues, newShapeIDs, newSize, value, shapeID);
+            if (position >= 0)
+            {
+                removeNew(position);
+                return;
+            }
+            position = find(values, shapeIDs, size, value, shapeID);
+            if (position >= 0 && !isRemoved(position))
+            {
+                markRemoved(position);
+            }
+            else
+            {
+                removeAnywhere(shapeID);
+            }
+        }
+
+        /* Removes the entry for an ID without knowing its value, by looking at every entry. Only for the cases the
+         * listener methods never lead to. */
+        private void removeAnywhere(int shapeID)
+        {
+            for (int i = 0; i < newSize; i++)
+            {
+                if (newShapeIDs[i] == shapeID)
+                {
+                    removeNew(i);
+                    return;
+                }
+            }
+            for (int i = 0; i < size; i++)
+            {
+                if (shapeIDs[i] == shapeID && !isRemoved(i))
+                {
+                    markRemoved(i);
+                    return;
+                }
+            }
+        }
+
+        private void removeNew(int position)
+        {
+            System.arraycopy(newValues, position + 1, newValues, position, newSize - position - 1);
+            System.arraycopy(newShapeIDs, position + 1, newShapeIDs, position, newSize - position - 1);
+            newSize--;
+        }
+
+        private void markRemoved(int position)
+        {
+            removed[position >>> 6] |= 1L << position;
+            removedCount++;
+            mergeIfNeeded();
+        }
+
+        private boolean isRemoved(int position)
+        {
+            return (removed[position >>> 6] & 1L << position) != 0;
+        }
+
+        /* Sorts everything added while filling, drops what's been removed or replaced since, and merges the rest
+         * in. That fills a list in n log n, rather than the n times the square root of n that adding the shapes one
+         * by one would take. */
+        private void finishFilling()
+        {
+            filling = false;
+            sort(newValues, newShapeIDs, newVersions, 0, newSize, new double[newSize], new int[newSize],
+                    new int[newSize]);
+            int kept = 0;
+            for (int i = 0; i < newSize; i++)
+            {
+                if (current.get(newShapeIDs[i]) == newVersions[i])
+                {
+                    current.put(newShapeIDs[i], 0);
+                    newValues[kept] = newValues[i];
+                    newShapeIDs[kept++] = newShapeIDs[i];
+                }
+            }
+            newSize = kept;
+            merge();
+        }
+
+        private int[] range(double min, double max, int limit)
+        {
+            IntList found = new IntList();
+            int i = lowerBound(values, size, min);
+            int j = lowerBound(newValues, newSize, min);
+            while (found.size() < limit)
+            {
+                //take whichever part has the next smallest entry
+                boolean fromMain;
+                if (i < size && j < newSize)
+                {
+                    fromMain = compareEntries(values[i], shapeIDs[i], newValues[j], newShapeIDs[j]) <= 0;
+                }
+                else if (i < size)
+                {
+                    fromMain = true;
+                }
+                else if (j < newSize)
+                {
+                    fromMain = false;
+                }
+                else
+                {
+                    break;
+                }
+
+                if (fromMain)
+                {
+                    if (values[i] > max)
+                    {
+                        break;
+                    }
+                    if (!isRemoved(i))
+                    {
+                        found.add(shapeIDs[i]);
+                    }
+                    i++;
+                }
+                else
+                {
+                    if (newValues[j] > max)
+                    {
+                        break;
+                    }
+                    found.add(newShapeIDs[j++]);
+                }
+            }
+            return found.toArray();
+        }
+
+        private int[] top(int count)
+        {
+            IntList found = new IntList(Math.max(0, Math.min(count, current.size())));
+            int i = size - 1;
+            int j = newSize - 1;
+            while (found.size() < count && (i >= 0 || j >= 0))
+            {
+                //take whichever part has the next largest entry
+                if (j < 0 || (i >= 0 && compareEntries(values[i], shapeIDs[i], newValues[j], newShapeIDs[j]) >= 0))
+                {
+                    if (!isRemoved(i))
+                    {
+                        found.add(shapeIDs[i]);
+                    }
+                    i--;
+                }
+                else
+                {
+                    found.add(newShapeIDs[j--]);
+                }
+            }
+            return found.toArray();
+        }
+
+        /* Merges the new part into the main part once either it or the removed entries outgrow a few times the square
+         * root of the list's size. A merge is one pass over the list, so spread over the changes since the last one
+         * that's in the order of the square root of the size per change, the same as inserting into the new part. */
+        private void mergeIfNeeded()
+        {
+            int threshold = Math.max(MIN_MERGE_SIZE, (int)(MERGE_FACTOR * Math.sqrt(size)));
+            if (!filling && (newSize > threshold || removedCount > threshold))
+            {
+                merge();
+            }
+        }
+
+        private void merge()
+        {
+            int capacity = size - removedCount + newSize;
+            if (spareValues.length < capacity)
+            {
+                //some room to grow, so a list that's filling up doesn't reallocate at every merge
+                spareValues = new double[capacity + capacity / 8];
+                spareShapeIDs = new int[spareValues.length];
+            }
+            double[] mergedValues = spareValues;
+            int[] mergedShapeIDs = spareShapeIDs;
+            int merged = 0;
+            int i = 0;
+            int j = 0;
+            while (i < size || j < newSize)
+            {
+                if (j == newSize || (i < size
+                        && compareEntries(values[i], shapeIDs[i], newValues[j], newShapeIDs[j]) <= 0))
+                {
+                    if (!isRemoved(i))
+                    {
+                        mergedValues[merged] = values[i];
+                        mergedShapeIDs[merged++] = shapeIDs[i];
+                    }
+                    i++;
+                }
+                else
+                {
+                    mergedValues[merged] = newValues[j];
+                    mergedShapeIDs[merged++] = newShapeIDs[j++];
+                }
+            }
+
+            spareValues = values;
+            spareShapeIDs = shapeIDs;
+            values = mergedValues;
+            shapeIDs = mergedShapeIDs;
+            size = merged;
+            int words = (mergedValues.length + 63) >>> 6;
+            if (removed.length < words)
+            {
+                removed = new long[words];
+            }
+            else
+            {
+                Arrays.fill(removed, 0);
+            }
+            removedCount = 0;
+            newSize = 0;
+            nextVersion = 1;
+        }
+
+        /* @return The first position in the sorted values that isn't less than the given value. */
+        private static int lowerBound(double[] values, int size, double value)
+        {
+            int low = 0;
+            int high = size;
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (values[middle] < value)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /* @return The first position in the sorted entries that isn't before the given entry. */
+        private static int lowerBound(double[] values, int[] shapeIDs, int size, double value, int shapeID)
+        {
+            int low = 0;
+            int high = size;
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (compareEntries(values[middle], shapeIDs[middle], value, shapeID) < 0)
+                {
+                    low = middle + 1;
+                }
+                else
+                {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /* @return The position of an entry in sorted entries, or -1 if it isn't there. */
+        private static int find(double[] values, int[] shapeIDs, int size, double value, int shapeID)
+        {
+            int position = lowerBound(values, shapeIDs, size, value, shapeID);
+            return position < size && compareEntries(values[position], shapeIDs[position], value, shapeID) == 0
+                    ? position : -1;
+        }
+
+        private static int compare(double[] values, int[] shapeIDs, int a, int b)
+        {
+            return compareEntries(values[a], shapeIDs[a], values[b], shapeIDs[b]);
+        }
+
+        private static int compareEntries(double value, int shapeID, double otherValue, int otherShapeID)
+        {
+            if (value != otherValue)
+            {
+                return value < otherValue ? -1 : 1;
+            }
+            return shapeID < otherShapeID ? -1 : (shapeID == otherShapeID ? 0 : 1);
+        }
+
+        /* Merge sorts the entries from start to end of three parallel arrays, using the scratch arrays, which must be
+         * at least as long as the range being sorted. There's no primitive sort that takes a comparator, and sorting
+         * boxed entries would make an object per shape. */
+        private static void sort(double[] values, int[] shapeIDs, int[] versions, int start, int end,
+                                 double[] scratchValues, int[] scratchShapeIDs, int[] scratchVersions)
+        {
+            if (end - start < 2)
+            {
+                return;
+            }
+            if (end - start <= 16)
+            {
+                for (int i = start + 1; i < end; i++)
+                {
+                    double value = values[i];
+                    int shapeID = shapeIDs[i];
+                    int version = versions[i];
+                    int j = i - 1;
+                    while (j >= start && compareEntries(values[j], shapeIDs[j], value, shapeID) > 0)
+                    {
+                        values[j + 1] = values[j];
+                        shapeIDs[j + 1] = shapeIDs[j];
+                        versions[j + 1] = versions[j];
+                        j--;
+                    }
+                    values[j + 1] = value;
+                    shapeIDs[j + 1] = shapeID;
+                    versions[j + 1] = version;
+                }
+                return;
+            }
+
+            int middle = (start + end) >>> 1;
+            sort(values, shapeIDs, versions, start, middle, scratchValues, scratchShapeIDs, scratchVersions);
+            sort(values, shapeIDs, versions, middle, end, scratchValues, scratchShapeIDs, scratchVersions);
+            if (compare(values, shapeIDs, middle - 1, middle) <= 0)
+            {
+                return; //already in order
+            }
+
+            int length = end - start;
+            System.arraycopy(values, start, scratchValues, 0, length);
+            System.arraycopy(shapeIDs, start, scratchShapeIDs, 0, length);
+            System.arraycopy(versions, start, scratchVersions, 0, length);
+            int left = 0;
+            int leftEnd = middle - start;
+            int right = leftEnd;
+            for (int k = start; k < end; k++)
+            {
+                if (right == length || (left < leftEnd && compareEntries(scratchValues[left], scratchShapeIDs[left],
+                        scratchValues[right], scratchShapeIDs[right]) <= 0))
+                {
+                    values[k] = scratchValues[left];
+                    shapeIDs[k] = scratchShapeIDs[left];
+                    versions[k] = scratchVersions[left++];
+                }
+                else
+                {
+                    values[k] = scratchValues[right];
+                    shapeIDs[k] = scratchShapeIDs[right];
+                    versions[k] = scratchVersions[right++];
+                }
+            }
+        }
+    }
+}
@@ -16,6 +16,10 @@ public class Quadrilateral extends Shape
     public static final String RECTANGLE = "Rectangle";
     public static final String SQUARE = "Square";
 
+    /* ShapeCategory codes for the sub-shapes, which are what each quadrilateral actually stores. */
+    public static final int RECTANGLE_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, RECTANGLE);
+    public static final int SQUARE_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, SQUARE);
+
     private float sideALength;
     private float sideBLength;
 
@@ -23,33 +27,67 @@ public class Quadrilateral extends Shape
     *  @param sideBLength Length of side B where side B is perpendicular to side A. */
     public Quadrilateral(int shapeID, float sideALength, float sideBLength)
     {
-        super(shapeID, BASE_SHAPE);
+        super(shapeID);
+        bind(shapeID, sideALength, sideBLength);
+    }
+
+    /* Creates a quadrilateral with no data yet, to be bound to data later as a flyweight view. */
+    Quadrilateral()
+    {
+        super(0);
+    }
+
+    /* Points this quadrilateral at a new set of data. This is how flyweight views move from one stored shape to the
+     * next.
+     * @param sideALength Length of side A.
+     * @param sideBLength Length of side B where side B is perpendicular to side A. */
+    void bind(int shapeID, float sideALength, float sideBLength)
+    {
+        rebind(shapeID);
         this.sideALength = sideALength;
         this.sideBLength = sideBLength;
-        subType = getShapeTypeLabel();
     }
 
     @Override
-    public String getShapeTypeLabel()
+    protected int classify()
     {
         if (sideALength == sideBLength)
         {
-            return SQUARE;
+            return SQUARE_CATEGORY;
         }
         else
         {
-            return RECTANGLE;
+            return RECTANGLE_CATEGORY;
         }
     }
 
     @Override
-    public double getSurfaceArea()
+    int getSides()
+    {
+        return 4;
+    }
+
+    @Override
+    float getDimension(int index)
+    {
+        return index == 0 ? sideALength : index == 1 ? sideBLength : 0;
+    }
+
+    @Override
+    void restoreDimensions(float[] dimensions, double derivedLength)
+    {
+        sideALength = dimensions[0];
+        sideBLength = dimensions[1];
+    }
+
+    @Override
+    protected double calculateSurfaceArea()
     {
         return ShapesSorter.round(sideALength * sideBLength, 2);
     }
 
     @Override
-    public double getPermimeter()
+    protected double calculatePerimeter()
     {
         return ShapesSorter.round(sideALength * 2 + sideBLength * 2, 2);
     }
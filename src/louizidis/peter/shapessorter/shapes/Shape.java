@@ -1,5 +1,8 @@
 package louizidis.peter.shapessorter.shapes;
 
+import louizidis.peter.shapessorter.io.RegistryRowHandler;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+
 import java.util.*;
 
 /**
@@ -12,111 +15,174 @@ import java.util.*;
 
 public abstract class Shape
 {
-    private static Map<Integer, Shape> shapesMap = new HashMap<>(); //stores all instantiated shapes objects
+    private static final ShapeRegistry registry = new ShapeRegistry(); //stores all instantiated shapes objects
+    private static final CategoryIndex categoryIndex = new CategoryIndex(); //the registered shapes by category
+    private static final MetricIndex[] metricIndexes = new MetricIndex[MetricIndex.Metric.values().length];
+
+    static
+    {
+        registry.addListener(categoryIndex);
+    }
 
     private int shapeID;
-    protected String baseType;
-    protected String subType;   //Integers are much cheaper to store than Strings, but as this is a demo,
-                                //I'm keeping things simple and not worrying about the redundancy of having
-                                //many identical strings. You can store a type ID here instead and use a
-                                //lookup table to get the actual String label small efficiency gains are important.
+    private volatile double surfaceArea = Double.NaN; //worked out on first use, NaN until then. Rounding never
+    private volatile double perimeter = Double.NaN;   //produces NaN so it can't be mistaken for a real value.
+    private short category = -1; //the ShapeCategory code, which stands in for the base and sub type labels.
+                                 //Worked out on first use, and the labels are only looked up for output.
 
 
-    protected Shape(int shapeID, String baseType)
+    protected Shape(int shapeID)
     {
         this.shapeID = shapeID;
-        this.baseType = baseType;
     }
 
-    /* Takes one line from the input file and instantiates a shape from it.
-         * @param inputString One line of data from the input file. */
+    /* Takes one line from the input file and instantiates a shape from it, replacing any existing shape with the same
+     * ID. A single line has no file to be a duplicate in, so the DuplicateIdFilter policy doesn't apply.
+     * @param inputString One line of data from the input file. */
     public static void instantiateShapeFromInputString(String inputString)
     {
-        //first, we're going to split the inputString on space characters, then try converting each string to a float.
-        String[] stringPart = inputString.split(" ");
-        float[] part = new float[stringPart.length];
-        try
-        {
-            for (int i = 0; i < stringPart.length; i++)
-            {
-                part[i] = Float.parseFloat(stringPart[i]);
-            }
-        }
-        catch (NumberFormatException e)
-        {
-            //Do some proper error handling etc...
-//            System.exit(4);
-        }
+        ShapeFileParser.parseLine(inputString, new RegistryRowHandler());
+    }
 
-        if (part.length < 4) //this is the minimum parts there should be
-        {
-            //do proper error handling...
-            System.out.println("Skipping item...");
-            return;
-        }
+    /* Instantiates a shape from data that has already been parsed and checked, and stores it in the registry.
+     * An existing shape with the same ID is replaced.
+     * @param shapeID The unique ID of the shape.
+     * @param sides The number of sides, which decides the type of shape.
+     * @param dimensions The data points for the shape, as described in the input file format. */
+    public static void registerShape(int shapeID, int sides, float[] dimensions)
+    {
+        registerShape(createShape(shapeID, sides, dimensions));
+    }
 
-        int shapeID = (int)part[0]; //I'm aware of how bad this is to do haha. Just a demo app so go easy! :P
-        int sides = (int)part[1];
+    /* Stores a shape in the registry, replacing any existing shape with the same ID. Safe to call from any thread.
+     * @param shape The shape to store. */
+    public static void registerShape(Shape shape)
+    {
+        registry.put(shape);
+    }
 
+    /* Removes a shape from the registry. Safe to call from any thread.
+     * @param shapeID The ID of the shape to remove.
+     * @return The removed shape, or null if there was no shape with that ID. */
+    public static Shape unregisterShape(int shapeID)
+    {
+        return registry.remove(shapeID);
+    }
+
+    /* Instantiates a shape from data that has already been parsed and checked, without storing it anywhere.
+     * @param shapeID The unique ID of the shape.
+     * @param sides The number of sides, which decides the type of shape.
+     * @param dimensions The data points for the shape, as described in the input file format.
+     * @return The new shape. */
+    public static Shape createShape(int shapeID, int sides, float[] dimensions)
+    {
         switch (sides)
         {
             case 1:
-                if (part.length != 4)
-                {
-                    //do proper error handling...
-                    System.out.println("Case 1 error...");
-                    return;
-                }
-                shapesMap.put(shapeID, new Ellipse(shapeID, part[2], part[3]));
-                break;
+                return new Ellipse(shapeID, dimensions[0], dimensions[1]);
 
             case 3:
-                if (part.length != 5)
-                {
-                    //do proper error handling...
-                    System.out.println("Case 3 error...");
-                    return;
-                }
-                shapesMap.put(shapeID, new Triangle(shapeID, part[2], part[3], part[4]));
-                break;
+                return new Triangle(shapeID, dimensions[0], dimensions[1], dimensions[2]);
 
             case 4:
-                if (part.length != 4)
-                {
-                    //do proper error handling...
-                    System.out.println("Case 4 error...");
-                    return;
-                }
-                shapesMap.put(shapeID, new Quadrilateral(shapeID, part[2], part[3]));
-                break;
+                return new Quadrilateral(shapeID, dimensions[0], dimensions[1]);
 
             default:
-                //do proper error handling...
-                System.out.println("Default case triggered...");
-                return;
+                ShapeType type = ShapeTypes.forSides(sides);
+                if (type == null)
+                {
+                    throw new IllegalArgumentException("Shapes with " + sides + " sides are not supported.");
+                }
+                return type.createShape(shapeID, dimensions);
         }
-
     }
 
     /* @Return The surface area for this shape. */
-    public abstract double getSurfaceArea();
+    public double getSurfaceArea()
+    {
+        double area = surfaceArea;
+        if (Double.isNaN(area))
+        {
+            area = calculateSurfaceArea();
+            surfaceArea = area;
+        }
+        return area;
+    }
 
     /* @Return The perimeter for this shape. */
-    public abstract double getPermimeter();
+    public double getPermimeter()
+    {
+        double length = perimeter;
+        if (Double.isNaN(length))
+        {
+            length = calculatePerimeter();
+            perimeter = length;
+        }
+        return length;
+    }
+
+    /* Works out the surface area, rounded to two decimal places. Only called the first time it's needed, after that
+     * getSurfaceArea returns the cached value. */
+    protected abstract double calculateSurfaceArea();
 
-    /* Determines the concrete subtype shape based on data available about the shape. */
-    public abstract String getShapeTypeLabel();
+    /* Works out the perimeter, rounded to two decimal places. Only called the first time it's needed, after that
+     * getPermimeter returns the cached value. */
+    protected abstract double calculatePerimeter();
+
+    /* Determines the concrete subtype shape based on data available about the shape.
+     * @return The ShapeCategory code for the shape's base type and sub type, one of those declared by its class.
+     *          Only called the first time it's needed, after that getCategory returns the cached code. */
+    protected abstract int classify();
+
+    /* @return A string label indicating the specific name for this type of shape. eg. "Rectangle" */
+    public String getShapeTypeLabel()
+    {
+        return getSubType();
+    }
 
     /* @return A string label indicating the name for this type of base shape. eg. "Quadrilateral" */
     public String getBaseType()
     {
-        return baseType;
+        return ShapeCategory.getBaseType(getCategory());
     }
 
     /* @return A string label indicating the specific name for this type of shape. eg. "Rectangle" */
     public String getSubType()
     {
-        return subType;
+        return ShapeCategory.getSubType(getCategory());
+    }
+
+    /* @return The ShapeCategory code for this shape's base type and sub type. */
+    public int getCategory()
+    {
+        int code = category;
+        if (code < 0)
+        {
+            code = classify();
+            category = (short)code;
+        }
+        return code;
+    }
+
+    /* @param sides The number of sides, as in the input file format.
+     * @param dimensions The data points, as in the input file format.
+     * @return Whether this shape would be made from the given data, ie. whether a row with it would change nothing.
+     *          Always false for types that don't say what they were made from. */
+    public boolean isMadeFrom(int sides, float[] dimensions)
+    {
+        if (sides != getSides())
+        {
+            return false;
+        }
+        int count = sides == 3 ? 3 : 2; //only triangles use the third data point
+        for (int i = 0; i < count; i++)
+        {
+            if (Float.floatToIntBits(getDimension(i)) != Float.floatToIntBits(dimensions[i]))
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
     /* @return The shape ID for this shape. */
@@ -125,8 +191,78 @@ public abstract class Shape
         return shapeID;
     }
 
-    public static Map<Integer, Shape> getShapesMap()
+    /* Only for flyweight views that get re-pointed at different shapes. Takes the new ID and forgets the
+     * cached area, perimeter and category of the previous shape. */
+    void rebind(int shapeID)
+    {
+        this.shapeID = shapeID;
+        surfaceArea = Double.NaN;
+        perimeter = Double.NaN;
+        category = -1;
+    }
+
+    /* Only for snapshots. Fills in a shape made with the flyweight constructor from saved state, including the work
+     * the normal constructors would do, so nothing needs working out again. */
+    void restore(int shapeID, float[] dimensions, double derivedLength, int category, double area, double perimeter)
+    {
+        this.shapeID = shapeID;
+        this.category = (short)category;
+        surfaceArea = area;
+        this.perimeter = perimeter;
+        restoreDimensions(dimensions, derivedLength);
+    }
+
+    /* Only for snapshots. @return The number of sides in the input file format, or 0 for types snapshots can't save. */
+    int getSides()
     {
-        return shapesMap;
+        return 0;
+    }
+
+    /* Only for snapshots. @return One of the data points the shape was made from, as in the input file format. */
+    float getDimension(int index)
+    {
+        return 0;
+    }
+
+    /* Only for snapshots. @return A length the shape works out from its data points when it's made, if it has one. */
+    double getDerivedLength()
+    {
+        return 0;
+    }
+
+    /* Only for snapshots. Sets the data points and derived length saved by getDimension and getDerivedLength. */
+    void restoreDimensions(float[] dimensions, double derivedLength)
+    {
+    }
+
+    /* @return All the registered shapes by ID. Reading it never blocks, even while shapes are being loaded on
+     *          other threads. Use registerShape and unregisterShape to change it. */
+    public static ShapeRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    /* @return The registered shapes grouped by category. */
+    public static CategoryIndex getCategoryIndex()
+    {
+        return categoryIndex;
+    }
+
+    /* @param metric What the shapes should be sorted by.
+     * @return The registered shapes sorted by the metric, overall and within each category. Each index is made and
+     *          filled the first time it's asked for, so programs that never ask don't pay for keeping it. */
+    public static MetricIndex getMetricIndex(MetricIndex.Metric metric)
+    {
+        synchronized (metricIndexes)
+        {
+            MetricIndex index = metricIndexes[metric.ordinal()];
+            if (index == null)
+            {
+                index = new MetricIndex(metric, true);
+                index.attach(registry);
+                metricIndexes[metric.ordinal()] = index;
+            }
+            return index;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,143 @@
+package louizidis.peter.shapessorter.shapes;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Description: Hands out small integer codes for each combination of base type and sub type, eg. Quadrilateral and
+ *              Square. Anything that keeps a lot of shapes around can store one of these codes instead of two String
+ *              references and look the labels up again when it needs them.
+ * Notes:   Codes are assigned in the order categories are first seen, so they are only meaningful within one run.
+ *          The categories of the built in shapes are declared by their classes, so they always have codes and
+ *          shapes never need to hold on to the labels at all.
+ */
+
+public final class ShapeCategory
+{
+    private static final Map<String, Integer> codes = new HashMap<>(); //"base/sub" -> code, guarded by the class
+    private static volatile String[] baseTypes = new String[0];
+    private static volatile String[] subTypes = new String[0];
+    private static volatile int[] ranks = new int[0]; //each code's position in alphabetical order
+
+    /* Orders category codes alphabetically by base type, then sub type. Compares precomputed ranks, so the labels
+     * themselves are never compared while sorting or grouping. */
+    public static final Comparator<Integer> ALPHABETICAL = new Comparator<Integer>()
+    {
+        @Override
+        public int compare(Integer a, Integer b)
+        {
+            int[] known = ranks;
+            return Integer.compare(known[a], known[b]);
+        }
+    };
+
+    private ShapeCategory()
+    {
+    }
+
+    /* @param baseType A base type label, eg. "Triangle".
+     * @param subType A sub type label, eg. "Scalene Triangle".
+     * @return The code for that category, assigning a new one if it hasn't been seen before. */
+    public static int codeOf(String baseType, String subType)
+    {
+        //the labels are almost always the constants declared by the shape classes, so try matching references
+        //before taking the lock
+        String[] knownBaseTypes = baseTypes;
+        String[] knownSubTypes = subTypes;
+        for (int code = 0; code < knownBaseTypes.length; code++)
+        {
+            if (knownSubTypes[code] == subType && knownBaseTypes[code] == baseType)
+            {
+                return code;
+            }
+        }
+        return assignCode(baseType, subType);
+    }
+
+    /* Looks up a category without creating it, for labels that come from outside, eg. a user's query.
+     * @return The code for that category, or -1 if it hasn't been seen. */
+    public static int find(String baseType, String subType)
+    {
+        String[] knownBaseTypes = baseTypes;
+        String[] knownSubTypes = subTypes;
+        for (int code = 0; code < knownBaseTypes.length; code++)
+        {
+            if (knownSubTypes[code].equals(subType) && knownBaseTypes[code].equals(baseType))
+            {
+                return code;
+            }
+        }
+        return -1;
+    }
+
+    private static synchronized int assignCode(String baseType, String subType)
+    {
+        String key = baseType + '/' + subType;
+        Integer code = codes.get(key);
+        if (code == null)
+        {
+            code = baseTypes.length;
+            codes.put(key, code);
+
+            //publish the labels with new arrays so readers never need the lock
+            String[] newBaseTypes = Arrays.copyOf(baseTypes, code + 1);
+            String[] newSubTypes = Arrays.copyOf(subTypes, code + 1);
+            newBaseTypes[code] = baseType;
+            newSubTypes[code] = subType;
+            int[] newRanks = rank(newBaseTypes, newSubTypes);
+            subTypes = newSubTypes;
+            ranks = newRanks;
+            baseTypes = newBaseTypes; //written last, as readers size their loops by it
+        }
+        return code;
+    }
+
+    /* @return The position of each code when the codes are sorted by base type, then sub type. */
+    private static int[] rank(final String[] baseTypes, final String[] subTypes)
+    {
+        Integer[] order = new Integer[baseTypes.length];
+        for (int code = 0; code < order.length; code++)
+        {
+            order[code] = code;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer a, Integer b)
+            {
+                int byBase = baseTypes[a].compareTo(baseTypes[b]);
+                if (byBase != 0)
+                {
+                    return byBase;
+                }
+                return subTypes[a].compareTo(subTypes[b]);
+            }
+        });
+        int[] ranks = new int[order.length];
+        for (int position = 0; position < order.length; position++)
+        {
+            ranks[order[position]] = position;
+        }
+        return ranks;
+    }
+
+    /* @return The base type label of a category code. */
+    public static String getBaseType(int code)
+    {
+        return baseTypes[code];
+    }
+
+    /* @return The sub type label of a category code. */
+    public static String getSubType(int code)
+    {
+        return subTypes[code];
+    }
+
+    /* @return How many categories have codes so far. Codes run from zero up to one less than this. */
+    public static int count()
+    {
+        return baseTypes.length;
+    }
+}
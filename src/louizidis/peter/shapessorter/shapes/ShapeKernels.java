@@ -0,0 +1,260 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.ShapesSorter;
+
+/**
+ * Description: Works out the category, area and perimeter of a whole block of shapes held in primitive columns,
+ *              without making or re-pointing a shape object for each one. The rows of each kind of shape are gathered
+ *              into their own contiguous columns and run through one kernel per kind: a plain counted loop of
+ *              arithmetic with no calls or branches in it, which the JIT compiler can turn into SIMD instructions by
+ *              itself, followed by a loop that rounds the results and picks the sub types.
+ * Notes:   The results are exactly what Ellipse, Triangle and Quadrilateral give, because each kernel does the same
+ *          arithmetic in the same types (the triangle's third side, for one, is worked out from float products).
+ *          Any change to the formulas in those classes must be made here too.
+ *          The ellipse and quadrilateral arithmetic loops are the kind HotSpot's C2 compiler vectorizes; the triangle
+ *          loop isn't, because Math.cos and Math.sin have no SIMD form, but it still saves the virtual calls.
+ *          Rounding is scalar everywhere. The JDK's Vector API would allow hand written SIMD, but it needs a newer
+ *          JDK than this program is built for, and the compiler already vectorizes the loops that can be.
+ *          Rows of a ShapeType are gathered the same way and passed to that type's own kernel, after the built in
+ *          kinds, so the built in loops are the same with or without any types loaded.
+ *          Not thread safe: each thread needs its own kernels, which hold the scratch columns for one block.
+ */
+
+public class ShapeKernels
+{
+    private static final int MIN_CAPACITY = 64;
+
+    //scratch columns, holding the rows of one kind of shape at a time
+    private int[] ellipseRows = new int[0];
+    private int[] triangleRows = new int[0];
+    private int[] quadrilateralRows = new int[0];
+    private int[] otherRows = new int[0]; //rows of ShapeTypes, one type at a time taken from the front
+    private int[] typeRows = new int[0];
+    private float[] dimensionA = new float[0];
+    private float[] dimensionB = new float[0];
+    private float[] dimensionC = new float[0];
+    private double[] derived = new double[0]; //the triangles' third sides
+    private double[] surfaceAreas = new double[0];
+    private double[] perimeters = new double[0];
+    private int[] codes = new int[0];
+
+    /* Works out the category, area and perimeter of the shapes from start to end of the input columns. Dimension
+     * C is only read for triangles and ShapeTypes.
+     * @param sides The number of sides of each shape, which decides the type of shape.
+     * @param dimensionA The first data point of each shape, as in the input file format.
+     * @param dimensionB The second data point.
+     * @param dimensionC The third data point.
+     * @param categories Where to put each shape's ShapeCategory code.
+     * @param surfaceAreas Where to put each shape's area, rounded as Shape.getSurfaceArea rounds it.
+     * @param perimeters Where to put each shape's perimeter, rounded as Shape.getPermimeter rounds it. */
+    public void classify(byte[] sides, float[] dimensionA, float[] dimensionB, float[] dimensionC, int start, int end,
+                         int[] categories, double[] surfaceAreas, double[] perimeters)
+    {
+        ensureCapacity(end - start);
+        int ellipses = 0;
+        int triangles = 0;
+        int quadrilaterals = 0;
+        int others = 0;
+        for (int row = start; row < end; row++)
+        {
+            switch (sides[row])
+            {
+                case 1:
+                    ellipseRows[ellipses++] = row;
+                    break;
+
+                case 3:
+                    triangleRows[triangles++] = row;
+                    break;
+
+                case 4:
+                    quadrilateralRows[quadrilaterals++] = row;
+                    break;
+
+                default:
+                    if (ShapeTypes.forSides(sides[row]) == null)
+                    {
+                        throw new IllegalArgumentException("Shapes with " + sides[row] + " sides are not supported.");
+                    }
+                    otherRows[others++] = row;
+            }
+        }
+
+        if (ellipses > 0)
+        {
+            gather(ellipseRows, ellipses, dimensionA, dimensionB, null);
+            ellipses(ellipses);
+            scatter(ellipseRows, ellipses, categories, surfaceAreas, perimeters);
+        }
+        if (triangles > 0)
+        {
+            gather(triangleRows, triangles, dimensionA, dimensionB, dimensionC);
+            triangles(triangles);
+            scatter(triangleRows, triangles, categories, surfaceAreas, perimeters);
+        }
+        if (quadrilaterals > 0)
+        {
+            gather(quadrilateralRows, quadrilaterals, dimensionA, dimensionB, null);
+            quadrilaterals(quadrilaterals);
+            scatter(quadrilateralRows, quadrilaterals, categories, surfaceAreas, perimeters);
+        }
+
+        //each ShapeType's rows go through its own kernel, which only ever sees that type
+        while (others > 0)
+        {
+            byte typeSides = sides[otherRows[0]];
+            int matching = 0;
+            int remaining = 0;
+            for (int i = 0; i < others; i++)
+            {
+                int row = otherRows[i];
+                if (sides[row] == typeSides)
+                {
+                    typeRows[matching++] = row;
+                }
+                else
+                {
+                    otherRows[remaining++] = row;
+                }
+            }
+            gather(typeRows, matching, dimensionA, dimensionB, dimensionC);
+            ShapeTypes.forSides(typeSides).classify(this.dimensionA, this.dimensionB, this.dimensionC, matching, codes,
+                    this.surfaceAreas, this.perimeters);
+            scatter(typeRows, matching, categories, surfaceAreas, perimeters);
+            others = remaining;
+        }
+    }
+
+    /* The Ellipse kernel, over the gathered semi-major and semi-minor axes. */
+    private void ellipses(int count)
+    {
+        float[] a = dimensionA;
+        float[] b = dimensionB;
+        double[] areas = surfaceAreas;
+        double[] lengths = perimeters;
+        for (int i = 0; i < count; i++)
+        {
+            areas[i] = Math.PI * a[i] * b[i];
+            lengths[i] = Math.PI * (3 * (a[i] + b[i]) - Math.sqrt((3 * a[i] + b[i]) * (a[i] + 3 * b[i])));
+        }
+        for (int i = 0; i < count; i++)
+        {
+            areas[i] = ShapesSorter.round(areas[i], 2);
+            lengths[i] = ShapesSorter.round(lengths[i], 2);
+        }
+        for (int i = 0; i < count; i++)
+        {
+            codes[i] = a[i] == b[i] ? Ellipse.CIRCLE_CATEGORY : Ellipse.OVAL_CATEGORY;
+        }
+    }
+
+    /* The Triangle kernel, over the gathered sides A and B and the angle between them. */
+    private void triangles(int count)
+    {
+        float[] a = dimensionA;
+        float[] b = dimensionB;
+        float[] angle = dimensionC;
+        double[] c = derived;
+        double[] areas = surfaceAreas;
+        double[] lengths = perimeters;
+        for (int i = 0; i < count; i++)
+        {
+            //the same float and double arithmetic as Triangle.bind and calculateSurfaceArea
+            double radians = Math.toRadians(angle[i]);
+            c[i] = Math.sqrt((a[i] * a[i]) + (b[i] * b[i]) - (2 * a[i] * b[i] * Math.cos(radians)));
+            areas[i] = 0.5 * (double)a[i] * (double)b[i] * Math.sin(radians);
+            lengths[i] = (double)a[i] + (double)b[i] + c[i];
+        }
+        for (int i = 0; i < count; i++)
+        {
+            areas[i] = ShapesSorter.round(areas[i], 2);
+            lengths[i] = ShapesSorter.round(lengths[i], 2);
+        }
+        for (int i = 0; i < count; i++)
+        {
+            if (a[i] == b[i])
+            {
+                codes[i] = angle[i] == 60 ? Triangle.EQUILATERAL_CATEGORY : Triangle.ISOSCELES_CATEGORY;
+            }
+            else if (c[i] == a[i] || c[i] == b[i])
+            {
+                codes[i] = Triangle.ISOSCELES_CATEGORY;
+            }
+            else
+            {
+                codes[i] = Triangle.SCALENE_CATEGORY;
+            }
+        }
+    }
+
+    /* The Quadrilateral kernel, over the gathered sides A and B. */
+    private void quadrilaterals(int count)
+    {
+        float[] a = dimensionA;
+        float[] b = dimensionB;
+        double[] areas = surfaceAreas;
+        double[] lengths = perimeters;
+        for (int i = 0; i < count; i++)
+        {
+            areas[i] = a[i] * b[i];
+            lengths[i] = a[i] * 2 + b[i] * 2;
+        }
+        for (int i = 0; i < count; i++)
+        {
+            areas[i] = ShapesSorter.round(areas[i], 2);
+            lengths[i] = ShapesSorter.round(lengths[i], 2);
+        }
+        for (int i = 0; i < count; i++)
+        {
+            codes[i] = a[i] == b[i] ? Quadrilateral.SQUARE_CATEGORY : Quadrilateral.RECTANGLE_CATEGORY;
+        }
+    }
+
+    /* Copies the dimensions of the given rows into the scratch columns. */
+    private void gather(int[] rows, int count, float[] fromA, float[] fromB, float[] fromC)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            dimensionA[i] = fromA[rows[i]];
+            dimensionB[i] = fromB[rows[i]];
+        }
+        if (fromC != null)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                dimensionC[i] = fromC[rows[i]];
+            }
+        }
+    }
+
+    /* Copies the results of a kernel back to the given rows. */
+    private void scatter(int[] rows, int count, int[] categories, double[] toAreas, double[] toPerimeters)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            categories[rows[i]] = codes[i];
+            toAreas[rows[i]] = surfaceAreas[i];
+            toPerimeters[rows[i]] = perimeters[i];
+        }
+    }
+
+    private void ensureCapacity(int count)
+    {
+        if (dimensionA.length < count)
+        {
+            int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, count - 1)) << 1);
+            ellipseRows = new int[capacity];
+            triangleRows = new int[capacity];
+            quadrilateralRows = new int[capacity];
+            otherRows = new int[capacity];
+            typeRows = new int[capacity];
+            dimensionA = new float[capacity];
+            dimensionB = new float[capacity];
+            dimensionC = new float[capacity];
+            derived = new double[capacity];
+            surfaceAreas = new double[capacity];
+            perimeters = new double[capacity];
+            codes = new int[capacity];
+        }
+    }
+}
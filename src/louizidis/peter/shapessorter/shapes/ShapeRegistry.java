@@ -0,0 +1,308 @@
+package louizidis.peter.shapessorter.shapes;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Description: The registered shapes by ID, safe to read and write from any number of threads. Reads never lock or
+ *              wait: a lookup follows a chain of slots in an AtomicReferenceArray and compares the IDs of the shapes
+ *              it finds, so there are no boxed keys or map entries either. Writes lock one of 64 stripes, chosen by
+ *              the ID's hash, so loads on several threads rarely get in each other's way.
+ * Notes:   Each stripe is an open addressing table with linear probing. Removed shapes leave a tombstone so that
+ *          readers part way along a chain still find what's beyond it, and tombstones are reused by later inserts
+ *          and dropped whenever a stripe is rebuilt. A rebuilt table is filled in completely before it's published,
+ *          so readers see either the old table or the new one, never something in between.
+ *          Iteration is weakly consistent, like ConcurrentHashMap's: it never fails or blocks, sees every shape that
+ *          was registered for the whole time it ran, and may or may not see changes made while it was running.
+ *          Listeners are told about every change while the stripe is still locked, so they see the changes to any
+ *          one ID in the order they happened.
+ */
+
+public class ShapeRegistry implements Iterable<Shape>
+{
+    private static final int STRIPE_BITS = 6;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+    private static final int INITIAL_STRIPE_CAPACITY = 16; //must be a power of two
+    private static final Object TOMBSTONE = new Object();
+
+    /* Something that wants to hear about registry changes, eg. an index. Calls are made by the writing thread. */
+    public interface Listener
+    {
+        void shapeAdded(Shape shape);
+
+        void shapeReplaced(Shape previous, Shape shape);
+
+        void shapeRemoved(Shape shape);
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public ShapeRegistry()
+    {
+        for (int i = 0; i < STRIPES; i++)
+        {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /* @param listener Told about every change from now on. */
+    public void addListener(Listener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /* @return The shape with the given ID, or null if there isn't one. Never blocks. */
+    public Shape get(int shapeID)
+    {
+        int hash = hash(shapeID);
+        AtomicReferenceArray<Object> table = stripes[hash & (STRIPES - 1)].table;
+        int mask = table.length() - 1;
+        for (int slot = (hash >>> STRIPE_BITS) & mask; ; slot = (slot + 1) & mask)
+        {
+            Object entry = table.get(slot);
+            if (entry == null)
+            {
+                return null;
+            }
+            if (entry != TOMBSTONE && ((Shape)entry).getShapeID() == shapeID)
+            {
+                return (Shape)entry;
+            }
+        }
+    }
+
+    /* @return Whether there is a shape with the given ID. Never blocks. */
+    public boolean contains(int shapeID)
+    {
+        return get(shapeID) != null;
+    }
+
+    /* Registers a shape, replacing any shape with the same ID.
+     * @return The shape that was replaced, or null if there wasn't one. */
+    public Shape put(Shape shape)
+    {
+        int shapeID = shape.getShapeID();
+        int hash = hash(shapeID);
+        Stripe stripe = stripes[hash & (STRIPES - 1)];
+        synchronized (stripe)
+        {
+            AtomicReferenceArray<Object> table = stripe.table;
+            int mask = table.length() - 1;
+            int free = -1; //the first tombstone along the chain, which can be reused
+            int slot = (hash >>> STRIPE_BITS) & mask;
+            for (; ; slot = (slot + 1) & mask)
+            {
+                Object entry = table.get(slot);
+                if (entry == null)
+                {
+                    break;
+                }
+                if (entry == TOMBSTONE)
+                {
+                    if (free < 0)
+                    {
+                        free = slot;
+                    }
+                }
+                else if (((Shape)entry).getShapeID() == shapeID)
+                {
+                    table.set(slot, shape);
+                    for (Listener listener : listeners)
+                    {
+                        listener.shapeReplaced((Shape)entry, shape);
+                    }
+                    return (Shape)entry;
+                }
+            }
+
+            if (free >= 0)
+            {
+                table.set(free, shape);
+            }
+            else
+            {
+                table.set(slot, shape);
+                stripe.used++;
+            }
+            stripe.size++;
+            if (stripe.used * 2 > table.length()) //keep chains short, and always leave an empty slot to stop at
+            {
+                stripe.rebuild();
+            }
+
+            for (Listener listener : listeners)
+            {
+                listener.shapeAdded(shape);
+            }
+            return null;
+        }
+    }
+
+    /* Removes the shape with the given ID.
+     * @return The removed shape, or null if there was no shape with that ID. */
+    public Shape remove(int shapeID)
+    {
+        int hash = hash(shapeID);
+        Stripe stripe = stripes[hash & (STRIPES - 1)];
+        synchronized (stripe)
+        {
+            AtomicReferenceArray<Object> table = stripe.table;
+            int mask = table.length() - 1;
+            for (int slot = (hash >>> STRIPE_BITS) & mask; ; slot = (slot + 1) & mask)
+            {
+                Object entry = table.get(slot);
+                if (entry == null)
+                {
+                    return null;
+                }
+                if (entry != TOMBSTONE && ((Shape)entry).getShapeID() == shapeID)
+                {
+                    table.set(slot, TOMBSTONE);
+                    stripe.size--;
+                    for (Listener listener : listeners)
+                    {
+                        listener.shapeRemoved((Shape)entry);
+                    }
+                    return (Shape)entry;
+                }
+            }
+        }
+    }
+
+    /* @return How many shapes are registered. Changes made while this is adding up the stripes may or may not be
+     *          counted. */
+    public int size()
+    {
+        int size = 0;
+        for (Stripe stripe : stripes)
+        {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    /* @return The registered shapes in no particular order, as a weakly consistent copy. */
+    public List<Shape> toList()
+    {
+        List<Shape> shapes = new ArrayList<>(size());
+        for (Shape shape : this)
+        {
+            shapes.add(shape);
+        }
+        return shapes;
+    }
+
+    /* @return A weakly consistent iterator over the registered shapes, in no particular order. It doesn't support
+     *          remove. */
+    @Override
+    public Iterator<Shape> iterator()
+    {
+        return new Iterator<Shape>()
+        {
+            private int stripe = -1;
+            private AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(0);
+            private int slot;
+            private Shape next = advance();
+
+            @Override
+            public boolean hasNext()
+            {
+                return next != null;
+            }
+
+            @Override
+            public Shape next()
+            {
+                if (next == null)
+                {
+                    throw new NoSuchElementException();
+                }
+                Shape shape = next;
+                next = advance();
+                return shape;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException("Use ShapeRegistry.remove");
+            }
+
+            private Shape advance()
+            {
+                while (true)
+                {
+                    while (slot < table.length())
+                    {
+                        Object entry = table.get(slot++);
+                        if (entry != null && entry != TOMBSTONE)
+                        {
+                            return (Shape)entry;
+                        }
+                    }
+                    if (++stripe == STRIPES)
+                    {
+                        return null;
+                    }
+                    table = stripes[stripe].table;
+                    slot = 0;
+                }
+            }
+        };
+    }
+
+    /* Spreads the bits of an ID so that sequential IDs land all over the stripes and tables (MurmurHash3's
+     * finalizer). */
+    private static int hash(int shapeID)
+    {
+        int hash = shapeID;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /* One independently locked part of the registry. Only written while locked, but read without locking. */
+    private static class Stripe
+    {
+        private volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(INITIAL_STRIPE_CAPACITY);
+        private volatile int size; //live shapes
+        private int used;          //live shapes and tombstones
+
+        /* Copies the live shapes into a fresh table, bigger if need be, and publishes it. */
+        private void rebuild()
+        {
+            AtomicReferenceArray<Object> old = table;
+            int capacity = INITIAL_STRIPE_CAPACITY;
+            while (capacity < size * 4)
+            {
+                capacity *= 2;
+            }
+
+            AtomicReferenceArray<Object> rebuilt = new AtomicReferenceArray<>(capacity);
+            int mask = capacity - 1;
+            for (int i = 0; i < old.length(); i++)
+            {
+                Object entry = old.get(i);
+                if (entry != null && entry != TOMBSTONE)
+                {
+                    int slot = (hash(((Shape)entry).getShapeID()) >>> STRIPE_BITS) & mask;
+                    while (rebuilt.get(slot) != null)
+                    {
+                        slot = (slot + 1) & mask;
+                    }
+                    rebuilt.set(slot, entry);
+                }
+            }
+            used = size;
+            table = rebuilt;
+        }
+    }
+}
@@ -0,0 +1,357 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.io.DuplicateIdFilter;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Description: Saves the registered shapes to a binary snapshot file, and restores them from it on later starts far
+ *              faster than the text input file can be parsed. Restored shapes already have their sub type, category,
+ *              derived lengths (eg. a triangle's third side) and rounded area and perimeter, so nothing is worked out
+ *              again.
+ * Notes:   The snapshot remembers the size and modified time the input file had before it was loaded, and the
+ *          duplicate policy and ShapeTypes it was loaded with, and is ignored once any of them changes. No snapshot is
+ *          written if the input file changed while it was being loaded. The layout is a header
+ *          followed by one column per field, so each column is read from the memory mapped file with a single bulk
+ *          copy:
+ *          int magic, int version, long source size, long source modified time, int DuplicateIdFilter policy,
+ *          int ShapeTypes fingerprint,
+ *          int category count, then each category's base type and sub type as length prefixed UTF-8,
+ *          int shape count, then the columns int ID, byte sides, short category, float dimension A, B and C,
+ *          double derived length, double area and double perimeter.
+ *          Category codes are only meaningful within one run of the program, so they're mapped through the labels
+ *          when restoring.
+ */
+
+public final class ShapeSnapshot
+{
+    private static final int MAGIC = 0x53485053; //"SHPS"
+    private static final int VERSION = 3;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long MAX_MAPPING = 1 << 30; //columns bigger than this are mapped a piece at a time
+
+    private ShapeSnapshot()
+    {
+    }
+
+    /* Saves the registered shapes, unless the input file has changed since they were loaded. The snapshot is written
+     * to a temporary file first and moved into place, so a half written snapshot is never left behind.
+     * @param snapshot The snapshot file to write, replacing any existing one.
+     * @param source The input file the shapes were loaded from.
+     * @param sourceSize The size of the input file, taken before the shapes were loaded.
+     * @param sourceModified The modified time of the input file in milliseconds, taken at the same time.
+     * @return Whether the snapshot was written. */
+    public static boolean write(Path snapshot, Path source, long sourceSize, long sourceModified) throws IOException
+    {
+        if (Files.size(source) != sourceSize || Files.getLastModifiedTime(source).toMillis() != sourceModified)
+        {
+            return false; //the shapes may be from part of each version of the file, so they'd match neither
+        }
+
+        List<Shape> registered = Shape.getRegistry().toList();
+        Shape[] shapes = registered.toArray(new Shape[registered.size()]);
+        for (Shape shape : shapes)
+        {
+            if (shape.getSides() == 0)
+            {
+                throw new IOException("Shapes of type " + shape.getClass().getName() + " can't be saved in a snapshot");
+            }
+        }
+
+        Path temporary = Files.createTempFile(snapshot.toAbsolutePath().getParent(), "Shapes", ".tmp");
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE))
+            {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                buffer.putInt(MAGIC);
+                buffer.putInt(VERSION);
+                buffer.putLong(sourceSize);
+                buffer.putLong(sourceModified);
+                buffer.putInt(DuplicateIdFilter.Policy.configured().ordinal());
+                buffer.putInt(ShapeTypes.fingerprint());
+                buffer.putInt(ShapeCategory.count());
+                for (int category = 0; category < ShapeCategory.count(); category++)
+                {
+                    putLabel(channel, buffer, ShapeCategory.getBaseType(category));
+                    putLabel(channel, buffer, ShapeCategory.getSubType(category));
+                }
+                buffer.putInt(shapes.length);
+
+                for (Column column : Column.values())
+                {
+                    for (Shape shape : shapes)
+                    {
+                        if (buffer.remaining() < column.width)
+                        {
+                            flush(channel, buffer);
+                        }
+                        column.put(buffer, shape);
+                    }
+                }
+                flush(channel, buffer);
+                channel.force(false);
+            }
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        finally
+        {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /* Registers the shapes saved in a snapshot, if the snapshot is there and still matches its input file. Nothing
+     * is registered unless the whole snapshot is read successfully.
+     * @param snapshot The snapshot file.
+     * @param source The input file the snapshot should have been made from.
+     * @return Whether the shapes were restored. If not, the input file needs loading the normal way. */
+    public static boolean load(Path snapshot, Path source)
+    {
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ))
+        {
+            long length = channel.size();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(length, BUFFER_SIZE));
+            if (header.getInt() != MAGIC || header.getInt() != VERSION
+                    || header.getLong() != Files.size(source)
+                    || header.getLong() != Files.getLastModifiedTime(source).toMillis()
+                    || header.getInt() != DuplicateIdFilter.Policy.configured().ordinal()
+                    || header.getInt() != ShapeTypes.fingerprint())
+            {
+                return false; //stale, or not a snapshot this version understands
+            }
+
+            int[] categories = new int[header.getInt()];
+            for (int i = 0; i < categories.length; i++)
+            {
+                categories[i] = ShapeCategory.codeOf(getLabel(header), getLabel(header));
+            }
+            int count = header.getInt();
+
+            long expectedLength = header.position();
+            for (Column column : Column.values())
+            {
+                expectedLength += (long)count * column.width;
+            }
+            if (count < 0 || expectedLength != length)
+            {
+                return false; //truncated or corrupt
+            }
+
+            long position = header.position();
+            int[] shapeIDs = new int[count];
+            byte[] sides = new byte[count];
+            short[] categoryCodes = new short[count];
+            float[][] dimensions = new float[3][count];
+            double[] derivedLengths = new double[count];
+            double[] surfaceAreas = new double[count];
+            double[] perimeters = new double[count];
+            for (Column column : Column.values())
+            {
+                long end = position + (long)count * column.width;
+                int index = 0;
+                while (position < end)
+                {
+                    //map in whole elements so none is split between two mappings
+                    long size = Math.min(end - position, MAX_MAPPING / column.width * column.width);
+                    ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                    int elements = (int)(size / column.width);
+                    switch (column)
+                    {
+                        case ID:            bytes.asIntBuffer().get(shapeIDs, index, elements); break;
+                        case SIDES:         bytes.get(sides, index, elements); break;
+                        case CATEGORY:      bytes.asShortBuffer().get(categoryCodes, index, elements); break;
+                        case DIMENSION_A:   bytes.asFloatBuffer().get(dimensions[0], index, elements); break;
+                        case DIMENSION_B:   bytes.asFloatBuffer().get(dimensions[1], index, elements); break;
+                        case DIMENSION_C:   bytes.asFloatBuffer().get(dimensions[2], index, elements); break;
+                        case DERIVED:       bytes.asDoubleBuffer().get(derivedLengths, index, elements); break;
+                        case AREA:          bytes.asDoubleBuffer().get(surfaceAreas, index, elements); break;
+                        case PERIMETER:     bytes.asDoubleBuffer().get(perimeters, index, elements); break;
+                    }
+                    index += elements;
+                    position += size;
+                }
+            }
+
+            Shape[] shapes = new Shape[count];
+            float[] shapeDimensions = new float[3];
+            for (int i = 0; i < count; i++)
+            {
+                Shape shape = newShape(sides[i]);
+                if (shape == null || categoryCodes[i] < 0 || categoryCodes[i] >= categories.length)
+                {
+                    return false; //corrupt
+                }
+                shapeDimensions[0] = dimensions[0][i];
+                shapeDimensions[1] = dimensions[1][i];
+                shapeDimensions[2] = dimensions[2][i];
+                shape.restore(shapeIDs[i], shapeDimensions, derivedLengths[i], categories[categoryCodes[i]],
+                        surfaceAreas[i], perimeters[i]);
+                shapes[i] = shape;
+            }
+
+            for (Shape shape : shapes)
+            {
+                Shape.registerShape(shape);
+            }
+            return true;
+        }
+        catch (NoSuchFileException e)
+        {
+            return false; //there's no snapshot yet
+        }
+        catch (IOException | BufferUnderflowException | IllegalArgumentException e)
+        {
+            //do proper error handling
+            return false;
+        }
+    }
+
+    /* @return An empty shape of the type with the given number of sides, or null if there isn't one. */
+    private static Shape newShape(int sides)
+    {
+        switch (sides)
+        {
+            case 1:
+                return new Ellipse();
+
+            case 3:
+                return new Triangle();
+
+            case 4:
+                return new Quadrilateral();
+
+            default:
+                return null;
+        }
+    }
+
+    private static void putLabel(FileChannel channel, ByteBuffer buffer, String label) throws IOException
+    {
+        byte[] bytes = label.getBytes(StandardCharsets.UTF_8);
+        if (buffer.remaining() < 4 + bytes.length)
+        {
+            flush(channel, buffer);
+        }
+        if (buffer.remaining() < 4 + bytes.length)
+        {
+            throw new IOException("A shape type label is too long for a snapshot");
+        }
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static String getLabel(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /* The columns of a snapshot, in file order, with how to write each one. */
+    private enum Column
+    {
+        ID(4)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putInt(shape.getShapeID());
+            }
+        },
+        SIDES(1)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.put((byte)shape.getSides());
+            }
+        },
+        CATEGORY(2)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putShort((short)shape.getCategory());
+            }
+        },
+        DIMENSION_A(4)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putFloat(shape.getDimension(0));
+            }
+        },
+        DIMENSION_B(4)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putFloat(shape.getDimension(1));
+            }
+        },
+        DIMENSION_C(4)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putFloat(shape.getDimension(2));
+            }
+        },
+        DERIVED(8)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putDouble(shape.getDerivedLength());
+            }
+        },
+        AREA(8)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putDouble(shape.getSurfaceArea());
+            }
+        },
+        PERIMETER(8)
+        {
+            @Override
+            void put(ByteBuffer buffer, Shape shape)
+            {
+                buffer.putDouble(shape.getPermimeter());
+            }
+        };
+
+        private final int width;
+
+        Column(int width)
+        {
+            this.width = width;
+        }
+
+        abstract void put(ByteBuffer buffer, Shape shape);
+    }
+}
@@ -0,0 +1,238 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.util.IntIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * Description: A compact alternative to the registry for very large numbers of shapes. Instead of one object per
+ *              shape, the IDs, side counts, category codes and data points are kept in parallel primitive arrays
+ *              (columns), and an int keyed hash index finds the row of a shape ID. A shape costs around 50 bytes here,
+ *              against well over 100 for a boxed key, a map entry and a shape object.
+ *              The area and perimeter of each shape are cached in two more columns the first time they're asked for.
+ * Notes:   Shapes are read back through a Views object, which re-points one reusable Ellipse, Triangle and
+ *          Quadrilateral at whichever row is asked for. Shapes of a ShapeType are made afresh for each row instead.
+ *          Not thread safe for writing.
+ */
+
+public class ShapeStore
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private int[] shapeIDs;
+    private byte[] sides;
+    private short[] categories; //codes from ShapeCategory
+    private float[] dimensionA;
+    private float[] dimensionB;
+    private float[] dimensionC;
+    private double[] surfaceAreas; //NaN until worked out, like the cache in Shape
+    private double[] perimeters;
+    private int size;
+
+    private final IntIntHashMap rowsByID;
+    private final Views classifier = new Views(); //works out categories and fills in the metric columns
+
+    public ShapeStore()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /* @param expectedSize How many shapes to make room for up front. */
+    public ShapeStore(int expectedSize)
+    {
+        int capacity = Math.max(expectedSize, 16);
+        shapeIDs = new int[capacity];
+        sides = new byte[capacity];
+        categories = new short[capacity];
+        dimensionA = new float[capacity];
+        dimensionB = new float[capacity];
+        dimensionC = new float[capacity];
+        surfaceAreas = new double[capacity];
+        perimeters = new double[capacity];
+        rowsByID = new IntIntHashMap(capacity);
+    }
+
+    /* Stores a shape, replacing any existing shape with the same ID in place.
+     * @param shapeID The unique ID of the shape.
+     * @param sideCount The number of sides, which decides the type of shape.
+     * @param dimensions The data points for the shape, as described in the input file format.
+     * @return The row the shape was stored in. */
+    public int put(int shapeID, int sideCount, float[] dimensions)
+    {
+        int row = rowsByID.get(shapeID);
+        if (row == IntIntHashMap.MISSING)
+        {
+            ensureCapacity(size + 1);
+            row = size++;
+            rowsByID.put(shapeID, row);
+        }
+
+        shapeIDs[row] = shapeID;
+        sides[row] = (byte)sideCount;
+        dimensionA[row] = dimensions[0];
+        dimensionB[row] = dimensions[1];
+        dimensionC[row] = sideCount == 1 || sideCount == 4 ? 0 : dimensions[2]; //triangles and some ShapeTypes
+        surfaceAreas[row] = Double.NaN;
+        perimeters[row] = Double.NaN;
+
+        categories[row] = (short)classifier.get(this, row).getCategory();
+        return row;
+    }
+
+    /* Removes a shape. The last row is moved into its place, so rows are not stable across removals.
+     * @return Whether there was a shape with that ID. */
+    public boolean remove(int shapeID)
+    {
+        int row = rowsByID.remove(shapeID);
+        if (row == IntIntHashMap.MISSING)
+        {
+            return false;
+        }
+
+        int last = --size;
+        if (row != last)
+        {
+            shapeIDs[row] = shapeIDs[last];
+            sides[row] = sides[last];
+            categories[row] = categories[last];
+            dimensionA[row] = dimensionA[last];
+            dimensionB[row] = dimensionB[last];
+            dimensionC[row] = dimensionC[last];
+            surfaceAreas[row] = surfaceAreas[last];
+            perimeters[row] = perimeters[last];
+            rowsByID.put(shapeIDs[row], row);
+        }
+        return true;
+    }
+
+    /* @return The row holding a shape ID, or -1 if there is no such shape. */
+    public int rowOf(int shapeID)
+    {
+        return rowsByID.get(shapeID);
+    }
+
+    /* @return The number of shapes stored. Rows run from zero up to one less than this. */
+    public int size()
+    {
+        return size;
+    }
+
+    public int getShapeID(int row)
+    {
+        return shapeIDs[row];
+    }
+
+    public int getSides(int row)
+    {
+        return sides[row];
+    }
+
+    /* @return The ShapeCategory code of the shape in a row. */
+    public int getCategory(int row)
+    {
+        return categories[row];
+    }
+
+    /* @param index Which data point, in input file order.
+     * @return One of the data points of the shape in a row. */
+    public float getDimension(int row, int index)
+    {
+        switch (index)
+        {
+            case 0:
+                return dimensionA[row];
+            case 1:
+                return dimensionB[row];
+            case 2:
+                return dimensionC[row];
+            default:
+                throw new IndexOutOfBoundsException("No dimension " + index);
+        }
+    }
+
+    /* @return The surface area of the shape in a row, the same as Shape.getSurfaceArea would give. */
+    public double getSurfaceArea(int row)
+    {
+        double area = surfaceAreas[row];
+        if (Double.isNaN(area))
+        {
+            area = classifier.get(this, row).getSurfaceArea();
+            surfaceAreas[row] = area;
+        }
+        return area;
+    }
+
+    /* @return The perimeter of the shape in a row, the same as Shape.getPermimeter would give. */
+    public double getPermimeter(int row)
+    {
+        double perimeter = perimeters[row];
+        if (Double.isNaN(perimeter))
+        {
+            perimeter = classifier.get(this, row).getPermimeter();
+            perimeters[row] = perimeter;
+        }
+        return perimeter;
+    }
+
+    private void ensureCapacity(int needed)
+    {
+        if (needed <= shapeIDs.length)
+        {
+            return;
+        }
+
+        int capacity = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(needed, shapeIDs.length * 3L / 2));
+        shapeIDs = Arrays.copyOf(shapeIDs, capacity);
+        sides = Arrays.copyOf(sides, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        dimensionA = Arrays.copyOf(dimensionA, capacity);
+        dimensionB = Arrays.copyOf(dimensionB, capacity);
+        dimensionC = Arrays.copyOf(dimensionC, capacity);
+        surfaceAreas = Arrays.copyOf(surfaceAreas, capacity);
+        perimeters = Arrays.copyOf(perimeters, capacity);
+    }
+
+    /* A set of reusable shape objects that can be pointed at any row of a store. Each call to get re-points and
+     * returns the view for that row's type, so a view is only valid until the next call. One per thread. */
+    public static class Views
+    {
+        private final Ellipse ellipse = new Ellipse();
+        private final Triangle triangle = new Triangle();
+        private final Quadrilateral quadrilateral = new Quadrilateral();
+
+        /* @return A view of the shape in a row of the store. */
+        public Shape get(ShapeStore store, int row)
+        {
+            return get(store.shapeIDs[row], store.sides[row], store.dimensionA[row], store.dimensionB[row],
+                    store.dimensionC[row]);
+        }
+
+        /* @return A view of a shape that isn't in any store, straight from its parsed data. Unused data points are
+         *          ignored, eg. the third one for an ellipse. */
+        public Shape get(int shapeID, int sides, float dimensionA, float dimensionB, float dimensionC)
+        {
+            switch (sides)
+            {
+                case 1:
+                    ellipse.bind(shapeID, dimensionA, dimensionB);
+                    return ellipse;
+
+                case 3:
+                    triangle.bind(shapeID, dimensionA, dimensionB, dimensionC);
+                    return triangle;
+
+                case 4:
+                    quadrilateral.bind(shapeID, dimensionA, dimensionB);
+                    return quadrilateral;
+
+                default:
+                    ShapeType type = ShapeTypes.forSides(sides);
+                    if (type == null)
+                    {
+                        throw new IllegalArgumentException("Shapes with " + sides + " sides are not supported.");
+                    }
+                    return type.createShape(shapeID, new float[] {dimensionA, dimensionB, dimensionC});
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package louizidis.peter.shapessorter.shapes;
+
+/**
+ * Description: A kind of shape added from outside the program, eg. pentagons or hexagons. An implementation says
+ *              which side count marks its rows in the input file, how many data points follow it, how to make a Shape
+ *              from them, and how to work out the category, area and perimeter of a whole block of them at once.
+ *              Implementations are found with java.util.ServiceLoader: put the class, which needs a public no argument
+ *              constructor, on the class path along with a META-INF/services/louizidis.peter.shapessorter.shapes.
+ *              ShapeType file naming it. ShapeTypes loads them all at startup.
+ * Notes:   Ellipses, triangles and quadrilaterals aren't ShapeTypes. They're dispatched by switch statements that only
+ *          ask ShapeTypes about side counts they don't know, so adding types doesn't slow them down.
+ *          The shapes a type makes can't be saved in a snapshot, so an input file with any of them is parsed on
+ *          every start.
+ */
+
+public interface ShapeType
+{
+    /* @return The side count that marks this type's rows, from 2 up to ShapeTypes.MAX_SIDES. 1, 3 and 4 are taken. */
+    int getSides();
+
+    /* @return How many data points each row has after the ID and side count, from 1 up to
+     *          ShapeFileParser.MAX_DIMENSIONS. Rows with any other number are rejected. */
+    int getArity();
+
+    /* Makes a shape from a row that has been parsed and checked.
+     * @param dimensions The data points, as in the input file format. Any past the arity are zero.
+     * @return The new shape, whose area, perimeter and category must agree with what classify works out. */
+    Shape createShape(int shapeID, float[] dimensions);
+
+    /* The batch kernel for this type, used through ShapeKernels by the batch pipeline, the summary and the on disk
+     * sort. ShapeStore, and so the shard workers, makes a shape with createShape for each row instead.
+     * Works out the category, area and perimeter of the shapes in the first count entries of the columns. Making a
+     * shape with createShape for each one is enough to be correct, but a plain loop over the columns is faster.
+     * @param dimensionA The first data point of each shape, as in the input file format.
+     * @param dimensionB The second data point, or zero if the arity is less than two.
+     * @param dimensionC The third data point, or zero if the arity is less than three.
+     * @param categories Where to put each shape's ShapeCategory code.
+     * @param surfaceAreas Where to put each shape's area, rounded as Shape.getSurfaceArea rounds it.
+     * @param perimeters Where to put each shape's perimeter, rounded as Shape.getPermimeter rounds it. */
+    void classify(float[] dimensionA, float[] dimensionB, float[] dimensionC, int count, int[] categories,
+                  double[] surfaceAreas, double[] perimeters);
+}
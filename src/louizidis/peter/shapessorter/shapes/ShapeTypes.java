@@ -0,0 +1,116 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Description: The ShapeTypes found on the class path, loaded once at startup into a table indexed by side count, so
+ *              finding the type of a row is a single array read.
+ * Notes:   Only asked about side counts the built in switch statements don't know, so rows of the built in types
+ *          never look at the table. A type that claims a side count that's taken, out of range or already claimed,
+ *          or has an arity the parser can't hold, is left out with a message on the error stream.
+ */
+
+public final class ShapeTypes
+{
+    public static final int MAX_SIDES = Byte.MAX_VALUE; //side counts are stored in bytes
+
+    private static final ShapeType[] typesBySides = new ShapeType[MAX_SIDES + 1];
+    private static final int fingerprint;
+
+    static
+    {
+        StringBuilder loaded = new StringBuilder();
+        for (ShapeType type : load())
+        {
+            String problem = check(type);
+            if (problem != null)
+            {
+                //do proper error handling...
+                System.err.println("Ignoring shape type " + type.getClass().getName() + ": " + problem);
+                continue;
+            }
+            typesBySides[type.getSides()] = type;
+        }
+        for (int sides = 0; sides <= MAX_SIDES; sides++)
+        {
+            if (typesBySides[sides] != null)
+            {
+                loaded.append(sides).append(':').append(typesBySides[sides].getClass().getName()).append(';');
+            }
+        }
+        fingerprint = loaded.toString().hashCode();
+    }
+
+    private ShapeTypes()
+    {
+    }
+
+    /* @return The type for rows with a side count, or null if there isn't one. Always null for the built in types. */
+    public static ShapeType forSides(int sides)
+    {
+        return sides >= 0 && sides <= MAX_SIDES ? typesBySides[sides] : null;
+    }
+
+    /* @return A number that changes whenever a different set of types is loaded, for snapshots to check. */
+    public static int fingerprint()
+    {
+        return fingerprint;
+    }
+
+    private static List<ShapeType> load()
+    {
+        List<ShapeType> types = new ArrayList<>();
+        Iterator<ShapeType> found = ServiceLoader.load(ShapeType.class).iterator();
+        while (true)
+        {
+            try
+            {
+                if (!found.hasNext())
+                {
+                    return types;
+                }
+            }
+            catch (ServiceConfigurationError e)
+            {
+                //a broken services file, which would fail the same way again
+                System.err.println("Couldn't look for shape types: " + e.getMessage());
+                return types;
+            }
+
+            try
+            {
+                types.add(found.next());
+            }
+            catch (ServiceConfigurationError e)
+            {
+                //do proper error handling...
+                System.err.println("Couldn't load a shape type: " + e.getMessage());
+            }
+        }
+    }
+
+    /* @return What's wrong with a type, or null if it can be used. */
+    private static String check(ShapeType type)
+    {
+        int sides = type.getSides();
+        if (sides < 2 || sides > MAX_SIDES || sides == 3 || sides == 4)
+        {
+            return "the side count " + sides + " is taken or out of range";
+        }
+        if (typesBySides[sides] != null)
+        {
+            return "the side count " + sides + " is already used by " + typesBySides[sides].getClass().getName();
+        }
+        if (type.getArity() < 1 || type.getArity() > ShapeFileParser.MAX_DIMENSIONS)
+        {
+            return "an arity of " + type.getArity() + " isn't supported";
+        }
+        return null;
+    }
+}
@@ -17,6 +17,11 @@ public class Triangle extends Shape
     public static final String ISOSCELES = "Isosceles Triangle";
     public static final String SCALENE = "Scalene Triangle";
 
+    /* ShapeCategory codes for the sub-shapes, which are what each triangle actually stores. */
+    public static final int EQUILATERAL_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, EQUILATERAL);
+    public static final int ISOSCELES_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, ISOSCELES);
+    public static final int SCALENE_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, SCALENE);
+
     private double sideALength;
     private double sideBLength;
     private double sideCLength;
@@ -27,7 +32,23 @@ public class Triangle extends Shape
     *  @param angleAB Angle in degrees for the inner side of the corner formed between sides A and B */
     protected Triangle(int shapeID, float sideALength, float sideBLength, float angleAB)
     {
-        super(shapeID, BASE_SHAPE);
+        super(shapeID);
+        bind(shapeID, sideALength, sideBLength, angleAB);
+    }
+
+    /* Creates a triangle with no data yet, to be bound to data later as a flyweight view. */
+    Triangle()
+    {
+        super(0);
+    }
+
+    /* Points this triangle at a new set of data. This is how flyweight views move from one stored shape to the next.
+     * @param sideALength Length of side A.
+     * @param sideBLength Length of side B.
+     * @param angleAB Angle in degrees for the inner side of the corner formed between sides A and B */
+    void bind(int shapeID, float sideALength, float sideBLength, float angleAB)
+    {
+        rebind(shapeID);
         this.sideALength = sideALength;
         this.sideBLength = sideBLength;
         this.angleAB = angleAB;
@@ -37,45 +58,72 @@ public class Triangle extends Shape
         //c2 = a2 + b2 - 2ab * cos(angleAB)
         this.sideCLength = Math.sqrt((sideALength * sideALength) + (sideBLength * sideBLength)
             - (2 * sideALength * sideBLength * Math.cos(Math.toRadians(angleAB))));
-
-        //set the type of triangle
-        subType = getShapeTypeLabel();
     }
 
-    /* Here we will check for the type of triangle and set the type index accordingly. */
-    public String getShapeTypeLabel()
+    /* Here we will check for the type of triangle and return the type code accordingly. */
+    @Override
+    protected int classify()
     {
         //if side A == side B, it's either equilateral or isosceles depending on the angle.
         if (sideALength == sideBLength)
         {
             if (angleAB == 60)
             {
-                return EQUILATERAL;
+                return EQUILATERAL_CATEGORY;
             }
             else
             {
-                return ISOSCELES;
+                return ISOSCELES_CATEGORY;
             }
         }
 
         //It could still be isosceles based on side C
         if (sideCLength == sideALength || sideCLength == sideBLength)
         {
-            return ISOSCELES;
+            return ISOSCELES_CATEGORY;
         }
 
         //no two sides are equal, it's scalene
-        return SCALENE;
+        return SCALENE_CATEGORY;
+    }
+
+    @Override
+    int getSides()
+    {
+        return 3;
     }
 
-    public double getSurfaceArea()
+    @Override
+    float getDimension(int index)
+    {
+        //sides A and B are only doubles for the arithmetic, they always start out as floats
+        return index == 0 ? (float)sideALength : index == 1 ? (float)sideBLength : index == 2 ? angleAB : 0;
+    }
+
+    @Override
+    double getDerivedLength()
+    {
+        return sideCLength;
+    }
+
+    @Override
+    void restoreDimensions(float[] dimensions, double derivedLength)
+    {
+        sideALength = dimensions[0];
+        sideBLength = dimensions[1];
+        angleAB = dimensions[2];
+        sideCLength = derivedLength;
+    }
+
+    @Override
+    protected double calculateSurfaceArea()
     {
         //area = 1/2 sideA * sideB * sin(angleAB)
         return ShapesSorter.round(0.5 * sideALength * sideBLength * Math.sin(Math.toRadians(angleAB)), 2);
     }
 
     @Override
-    public double getPermimeter()
+    protected double calculatePerimeter()
     {
         return ShapesSorter.round(sideALength + sideBLength + sideCLength, 2);
     }
@@ -0,0 +1,138 @@
+package louizidis.peter.shapessorter.util;
+
+import java.util.Arrays;
+
+/**
+ * Description: A set of ints stored as a compressed bitmap, the way roaring bitmaps do it. The int range is split into
+ *              65536 containers by the high 16 bits, and each container holds the low 16 bits of its values either as
+ *              a sorted array, while it has few of them, or as a 65536 bit bitmap once it has more than 4096, which
+ *              is when the bitmap becomes the smaller of the two.
+ *              Adding and checking a value is a direct lookup of its container, then a bit test or a binary search of
+ *              at most 4096 entries.
+ * Notes:   A run of sequential IDs costs a bit each, and scattered IDs two bytes each, against the 8 bytes a mapping
+ *          costs in an IntIntHashMap. The table of containers is only allocated on the first add.
+ *          Not thread safe.
+ */
+
+public class IntBitmap
+{
+    private static final int CONTAINERS = 1 << 16;
+    private static final int MAX_ARRAY_SIZE = 4096; //past this a bitmap takes less room than an array
+
+    private Container[] containers;
+    private long size;
+
+    /* Adds a value.
+     * @return Whether the value is new, false if it was already in the set. */
+    public boolean add(int value)
+    {
+        if (containers == null)
+        {
+            containers = new Container[CONTAINERS];
+        }
+        int high = value >>> 16;
+        Container container = containers[high];
+        if (container == null)
+        {
+            container = new Container();
+            containers[high] = container;
+        }
+        if (container.add((char)value))
+        {
+            size++;
+            return true;
+        }
+        return false;
+    }
+
+    /* @return Whether the value is in the set. */
+    public boolean contains(int value)
+    {
+        if (containers == null)
+        {
+            return false;
+        }
+        Container container = containers[value >>> 16];
+        return container != null && container.contains((char)value);
+    }
+
+    /* @return The number of values in the set, which can be more than an int holds. */
+    public long size()
+    {
+        return size;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /* Removes every value, and lets go of the memory they took. */
+    public void clear()
+    {
+        containers = null;
+        size = 0;
+    }
+
+    /* The values sharing one set of high 16 bits, as a sorted array of their low 16 bits or as a bitmap. */
+    private static class Container
+    {
+        private char[] values = new char[4]; //sorted, and null once this is a bitmap
+        private long[] bits;
+        private int size;
+
+        private boolean add(char value)
+        {
+            if (bits != null)
+            {
+                long mask = 1L << value;
+                if ((bits[value >>> 6] & mask) != 0)
+                {
+                    return false;
+                }
+                bits[value >>> 6] |= mask;
+                size++;
+                return true;
+            }
+
+            int index = Arrays.binarySearch(values, 0, size, value);
+            if (index >= 0)
+            {
+                return false;
+            }
+            if (size == MAX_ARRAY_SIZE)
+            {
+                toBitmap();
+                return add(value);
+            }
+            index = -index - 1;
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, size * 2));
+            }
+            System.arraycopy(values, index, values, index + 1, size - index);
+            values[index] = value;
+            size++;
+            return true;
+        }
+
+        private boolean contains(char value)
+        {
+            if (bits != null)
+            {
+                return (bits[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, size, value) >= 0;
+        }
+
+        private void toBitmap()
+        {
+            bits = new long[CONTAINERS / 64];
+            for (int i = 0; i < size; i++)
+            {
+                bits[values[i] >>> 6] |= 1L << values[i];
+            }
+            values = null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package louizidis.peter.shapessorter.util;
+
+import java.util.Arrays;
+
+/**
+ * Description: A hash map from int keys to non-negative int values, stored in two flat arrays with linear probing.
+ *              There are no entry objects and no boxing, so a mapping costs 8 bytes plus the free space.
+ * Notes:   Not thread safe. Values must not be negative, because -1 is what get returns for a missing key.
+ */
+
+public class IntIntHashMap
+{
+    public static final int MISSING = -1;
+
+    private static final float LOAD_FACTOR = 0.7f;
+    private static final int EMPTY = 0; //stored values are offset by one so that zeroed arrays mean empty slots
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private int resizeAt;
+
+    public IntIntHashMap()
+    {
+        this(16);
+    }
+
+    /* @param expectedSize How many mappings to make room for up front. */
+    public IntIntHashMap(int expectedSize)
+    {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /* @return The value mapped to the key, or MISSING. */
+    public int get(int key)
+    {
+        for (int i = slotFor(key); ; i = (i + 1) & mask)
+        {
+            if (values[i] == EMPTY)
+            {
+                return MISSING;
+            }
+            if (keys[i] == key)
+            {
+                return values[i] - 1;
+            }
+        }
+    }
+
+    /* @return Whether the key has a value. */
+    public boolean containsKey(int key)
+    {
+        return get(key) != MISSING;
+    }
+
+    /* Maps a key to a value, replacing any existing value.
+     * @return The previous value, or MISSING. */
+    public int put(int key, int value)
+    {
+        if (value < 0)
+        {
+            throw new IllegalArgumentException("Values must not be negative: " + value);
+        }
+
+        for (int i = slotFor(key); ; i = (i + 1) & mask)
+        {
+            if (values[i] == EMPTY)
+            {
+                keys[i] = key;
+                values[i] = value + 1;
+                if (++size > resizeAt)
+                {
+                    resize(keys.length * 2);
+                }
+                return MISSING;
+            }
+            if (keys[i] == key)
+            {
+                int previous = values[i] - 1;
+                values[i] = value + 1;
+                return previous;
+            }
+        }
+    }
+
+    /* Removes the mapping for a key, if there is one.
+     * @return The removed value, or MISSING. */
+    public int remove(int key)
+    {
+        int i = slotFor(key);
+        while (true)
+        {
+            if (values[i] == EMPTY)
+            {
+                return MISSING;
+            }
+            if (keys[i] == key)
+            {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        int removed = values[i] - 1;
+
+        //shift later entries of the same probe run back, so lookups never need tombstones
+        int gap = i;
+        for (int j = (gap + 1) & mask; values[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = slotFor(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask))
+            {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = EMPTY;
+        size--;
+        return removed;
+    }
+
+    /* @return The number of mappings. */
+    public int size()
+    {
+        return size;
+    }
+
+    /* Removes every mapping. */
+    public void clear()
+    {
+        Arrays.fill(values, EMPTY);
+        size = 0;
+    }
+
+    private int slotFor(int key)
+    {
+        int hash = key * 0x9E3779B9; //spread sequential IDs across the table
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private void resize(int tableSize)
+    {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(tableSize);
+        for (int i = 0; i < oldKeys.length; i++)
+        {
+            if (oldValues[i] != EMPTY)
+            {
+                int slot = slotFor(oldKeys[i]);
+                while (values[slot] != EMPTY)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int tableSize)
+    {
+        keys = new int[tableSize];
+        values = new int[tableSize];
+        mask = tableSize - 1;
+        resizeAt = (int)(tableSize * LOAD_FACTOR);
+    }
+
+    private static int tableSizeFor(int expectedSize)
+    {
+        long needed = (long)Math.ceil(Math.max(expectedSize, 4) / LOAD_FACTOR);
+        if (needed > 1 << 30)
+        {
+            return 1 << 30;
+        }
+        return Integer.highestOneBit((int)needed - 1) << 1;
+    }
+}
@@ -0,0 +1,114 @@
+package louizidis.peter.shapessorter.util;
+
+import java.util.Arrays;
+
+/**
+ * Description: A growable list of ints backed by a plain array, for lists of shape IDs that would otherwise be full
+ *              of boxed Integers.
+ * Notes:   Not thread safe.
+ */
+
+public class IntList
+{
+    private int[] values;
+    private int size;
+
+    public IntList()
+    {
+        this(16);
+    }
+
+    /* @param capacity How many values to make room for up front. */
+    public IntList(int capacity)
+    {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    /* Adds a value to the end of the list. */
+    public void add(int value)
+    {
+        if (size == values.length)
+        {
+            grow(size + 1);
+        }
+        values[size++] = value;
+    }
+
+    /* Adds every value of another list to the end of this one. */
+    public void addAll(IntList other)
+    {
+        if (size + other.size > values.length)
+        {
+            grow(size + other.size);
+        }
+        System.arraycopy(other.values, 0, values, size, other.size);
+        size += other.size;
+    }
+
+    /* @return The value at an index. */
+    public int get(int index)
+    {
+        if (index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        return values[index];
+    }
+
+    /* Replaces the value at an index. */
+    public void set(int index, int value)
+    {
+        if (index >= size)
+        {
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+        }
+        values[index] = value;
+    }
+
+    /* Removes the last value.
+     * @return The value that was removed. */
+    public int removeLast()
+    {
+        if (size == 0)
+        {
+            throw new IndexOutOfBoundsException("The list is empty");
+        }
+        return values[--size];
+    }
+
+    /* Sorts the values into ascending order. */
+    public void sort()
+    {
+        Arrays.sort(values, 0, size);
+    }
+
+    /* @return The number of values in the list. */
+    public int size()
+    {
+        return size;
+    }
+
+    /* @return Whether the list is empty. */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    /* Removes every value. */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /* @return A copy of the values, exactly as long as the list. */
+    public int[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+
+    private void grow(int needed)
+    {
+        int capacity = (int)Math.min(Integer.MAX_VALUE - 8, Math.max(needed, values.length * 2L));
+        values = Arrays.copyOf(values, capacity);
+    }
+}
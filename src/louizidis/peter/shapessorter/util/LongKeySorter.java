@@ -0,0 +1,156 @@
+package louizidis.peter.shapessorter.util;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Description: Sorts an array of ints by a parallel array of long keys, using a merge sort that works on the two
+ *              primitive arrays directly, so there are no boxed values or comparators. The halves of each range are
+ *              sorted on a fork-join pool until they're small enough for one thread, then merged.
+ * Notes:   The sort is stable, so values with equal keys keep the order they were given in. That's what lets the
+ *          report sort shapes by area with ties left in ID order without putting the ID in the key.
+ *          Needs a copy of both arrays as scratch space.
+ */
+
+public final class LongKeySorter
+{
+    private static final int INSERTION_SORT_SIZE = 32;
+    private static final int SEQUENTIAL_SIZE = 64 * 1024; //below this, forking costs more than it saves
+
+    private LongKeySorter()
+    {
+    }
+
+    /* Sorts part of two arrays by the keys, moving the values along with them.
+     * @param keys What to sort by, ascending.
+     * @param values Moved to the same positions as their keys.
+     * @param from The first position to sort.
+     * @param to Just past the last position to sort.
+     * @param pool The pool to sort on, or null to sort on the calling thread. */
+    public static void sort(long[] keys, int[] values, int from, int to, ForkJoinPool pool)
+    {
+        if (keys.length != values.length)
+        {
+            throw new IllegalArgumentException("There must be a value for every key.");
+        }
+        if (to - from < 2)
+        {
+            return;
+        }
+
+        //the sort bounces between the arrays and the copies, and both start out the same
+        long[] keyCopy = keys.clone();
+        int[] valueCopy = values.clone();
+        SortTask task = new SortTask(keyCopy, valueCopy, keys, values, from, to);
+        if (pool == null || to - from <= SEQUENTIAL_SIZE)
+        {
+            task.compute();
+        }
+        else
+        {
+            pool.invoke(task);
+        }
+    }
+
+    /* @return A key that sorts in the same order as the double it was made from, with NaN last. */
+    public static long keyOf(double value)
+    {
+        long bits = Double.doubleToLongBits(value);
+        return bits ^ ((bits >> 63) & Long.MAX_VALUE); //negative numbers count down as their magnitude goes up
+    }
+
+    /* Sorts a range of the source arrays into the same range of the destination arrays, using the source as scratch
+     * space. Both must hold the same values in that range to start with. */
+    private static class SortTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final long[] sourceKeys;
+        private final int[] sourceValues;
+        private final long[] keys;
+        private final int[] values;
+        private final int from;
+        private final int to;
+
+        private SortTask(long[] sourceKeys, int[] sourceValues, long[] keys, int[] values, int from, int to)
+        {
+            this.sourceKeys = sourceKeys;
+            this.sourceValues = sourceValues;
+            this.keys = keys;
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= INSERTION_SORT_SIZE)
+            {
+                insertionSort();
+                return;
+            }
+
+            //sort each half into the source, then merge the halves back into the destination
+            int middle = (from + to) >>> 1;
+            SortTask first = new SortTask(keys, values, sourceKeys, sourceValues, from, middle);
+            SortTask second = new SortTask(keys, values, sourceKeys, sourceValues, middle, to);
+            if (to - from > SEQUENTIAL_SIZE)
+            {
+                invokeAll(first, second);
+            }
+            else
+            {
+                first.compute();
+                second.compute();
+            }
+            merge(middle);
+        }
+
+        private void insertionSort()
+        {
+            for (int i = from + 1; i < to; i++)
+            {
+                long key = keys[i];
+                int value = values[i];
+                int j = i - 1;
+                while (j >= from && keys[j] > key)
+                {
+                    keys[j + 1] = keys[j];
+                    values[j + 1] = values[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                values[j + 1] = value;
+            }
+        }
+
+        private void merge(int middle)
+        {
+            if (sourceKeys[middle - 1] <= sourceKeys[middle])
+            {
+                //already in order, as IDs often are
+                System.arraycopy(sourceKeys, from, keys, from, to - from);
+                System.arraycopy(sourceValues, from, values, from, to - from);
+                return;
+            }
+
+            int left = from;
+            int right = middle;
+            for (int i = from; i < to; i++)
+            {
+                //taking from the left on equal keys is what keeps the sort stable
+                if (right >= to || left < middle && sourceKeys[left] <= sourceKeys[right])
+                {
+                    keys[i] = sourceKeys[left];
+                    values[i] = sourceValues[left++];
+                }
+                else
+                {
+                    keys[i] = sourceKeys[right];
+                    values[i] = sourceValues[right++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.metrics.ShapesMetrics;
+import louizidis.peter.shapessorter.shapes.Shape;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Description: Checks each duplicate policy, first on the filter alone and then through ParallelShapeLoader with a
+ *              file big enough to be split into several chunks, where a repeated ID can be many chunks away from its
+ *              first row and the last-wins pass has to work backwards across the chunk boundaries.
+ * Notes:   The loader takes its policy from the system property and registers into the program's own registry, so
+ *          both are reset around every test. Rejections go to the console, which is captured while loading.
+ */
+
+public class DuplicateIdFilterTest
+{
+    private static final int ROWS = 1100000; //about 20 MB, five chunks on a pool of four
+
+    private Path input;
+    private int[] ids;
+
+    @Before
+    public void setUp()
+    {
+        clearRegistry();
+        System.clearProperty(DuplicateIdFilter.POLICY_PROPERTY);
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        clearRegistry();
+        System.clearProperty(DuplicateIdFilter.POLICY_PROPERTY);
+        if (input != null)
+        {
+            Files.delete(input);
+        }
+    }
+
+    @Test
+    public void lastWinsPassesEveryRow()
+    {
+        RecordingHandler handler = filterSequence(DuplicateIdFilter.Policy.LAST_WINS);
+        assertEquals(Arrays.asList(5, 6, 5, -1, 5, -1), handler.accepted);
+        assertEquals(0, handler.rejected);
+    }
+
+    @Test
+    public void firstWinsDropsRepeatsQuietly()
+    {
+        RecordingHandler handler = filterSequence(DuplicateIdFilter.Policy.FIRST_WINS);
+        assertEquals(Arrays.asList(5, 6, -1), handler.accepted);
+        assertEquals(0, handler.rejected);
+    }
+
+    @Test
+    public void rejectReportsEveryRepeat()
+    {
+        RecordingHandler handler = filterSequence(DuplicateIdFilter.Policy.REJECT);
+        assertEquals(Arrays.asList(5, 6, -1), handler.accepted);
+        assertEquals(3, handler.rejected);
+    }
+
+    @Test
+    public void wouldDropLeavesTheFilterAsItWas()
+    {
+        DuplicateIdFilter filter = new DuplicateIdFilter(new RecordingHandler(), DuplicateIdFilter.Policy.FIRST_WINS);
+        assertFalse(filter.wouldDrop(9));
+        assertTrue(filter.admit(9));
+        assertTrue(filter.wouldDrop(9));
+        assertEquals(0, filter.getDuplicates());
+
+        DuplicateIdFilter lastWins = new DuplicateIdFilter(new RecordingHandler(), DuplicateIdFilter.Policy.LAST_WINS);
+        assertTrue(lastWins.admit(9));
+        assertFalse(lastWins.wouldDrop(9)); //a later row always gets through
+    }
+
+    @Test
+    public void lastWinsKeepsTheLastRowAcrossChunks() throws IOException
+    {
+        loadWithPolicy("last-wins", DuplicateIdFilter.Policy.LAST_WINS);
+    }
+
+    @Test
+    public void firstWinsKeepsTheFirstRowAcrossChunks() throws IOException
+    {
+        loadWithPolicy("first-wins", DuplicateIdFilter.Policy.FIRST_WINS);
+    }
+
+    @Test
+    public void rejectKeepsTheFirstRowAcrossChunks() throws IOException
+    {
+        loadWithPolicy("reject", DuplicateIdFilter.Policy.REJECT);
+    }
+
+    /* Passes the IDs 5, 6, 5, -1, 5, -1 through a filter with the given policy. */
+    private static RecordingHandler filterSequence(DuplicateIdFilter.Policy policy)
+    {
+        RecordingHandler handler = new RecordingHandler();
+        DuplicateIdFilter filter = new DuplicateIdFilter(handler, policy);
+        for (int shapeID : new int[] {5, 6, 5, -1, 5, -1})
+        {
+            filter.acceptRow(shapeID, 1, new float[] {1, 1});
+        }
+        assertEquals(policy, filter.getPolicy());
+        assertEquals(3, filter.getDuplicates());
+        return handler;
+    }
+
+    /* Loads a generated file under the policy and checks every ID ended up with the row the policy picks. */
+    private void loadWithPolicy(String property, DuplicateIdFilter.Policy policy) throws IOException
+    {
+        writeInput();
+        int[] first = new int[ROWS];
+        int[] last = new int[ROWS];
+        Arrays.fill(first, -1);
+        int distinct = 0;
+        for (int row = 0; row < ROWS; row++)
+        {
+            int slot = ids[row] + ROWS / 2;
+            if (first[slot] < 0)
+            {
+                first[slot] = row;
+                distinct++;
+            }
+            last[slot] = row;
+        }
+        int repeats = ROWS - distinct;
+
+        System.setProperty(DuplicateIdFilter.POLICY_PROPERTY, property);
+        long duplicatesBefore = ShapesMetrics.getInstance().getDuplicateRows();
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        System.setOut(new PrintStream(console, true, "US-ASCII"));
+        try
+        {
+            new ParallelShapeLoader(pool).loadFile(input);
+        }
+        finally
+        {
+            System.setOut(out);
+            pool.shutdown();
+        }
+
+        assertEquals(repeats, ShapesMetrics.getInstance().getDuplicateRows() - duplicatesBefore);
+        int rejections = 0;
+        for (String line : new String(console.toByteArray(), StandardCharsets.US_ASCII).split("\n"))
+        {
+            if (line.trim().equals(RowRejection.DUPLICATE_ID.getMessage()))
+            {
+                rejections++;
+            }
+        }
+        assertEquals(policy == DuplicateIdFilter.Policy.REJECT ? repeats : 0, rejections);
+
+        assertEquals(distinct, Shape.getRegistry().size());
+        for (int slot = 0; slot < ROWS; slot++)
+        {
+            if (first[slot] < 0)
+            {
+                continue;
+            }
+            int row = policy == DuplicateIdFilter.Policy.LAST_WINS ? last[slot] : first[slot];
+            Shape shape = Shape.getRegistry().get(slot - ROWS / 2);
+            assertNotNull(shape);
+            assertTrue("ID " + (slot - ROWS / 2) + " should come from row " + row,
+                       shape.isMadeFrom(1, dimensionsOf(row)));
+        }
+    }
+
+    /* Writes a file of ellipses, one row per ID from -ROWS / 2 up, except that about one row in a hundred repeats
+     * the ID of an earlier row: usually one anywhere before it, often in another chunk, and sometimes one just
+     * before it. Every row has its own dimensions, so the row a shape came from can be told. */
+    private void writeInput() throws IOException
+    {
+        input = Files.createTempFile("DuplicateIdFilterTest", ".txt");
+        ids = new int[ROWS];
+        Random random = new Random(7);
+        try (BufferedWriter writer = Files.newBufferedWriter(input, StandardCharsets.US_ASCII))
+        {
+            for (int row = 0; row < ROWS; row++)
+            {
+                if (row % 101 == 0 && row > 20)
+                {
+                    ids[row] = ids[row % 202 == 0 ? row - 1 - random.nextInt(10) : random.nextInt(row)];
+                }
+                else
+                {
+                    ids[row] = row - ROWS / 2;
+                }
+                float[] dimensions = dimensionsOf(row);
+                writer.write(ids[row] + " 1 " + (int)dimensions[0] + " " + (int)dimensions[1] + "\n");
+            }
+        }
+    }
+
+    private static float[] dimensionsOf(int row)
+    {
+        return new float[] {row / 1000 + 1, row % 1000 + 1};
+    }
+
+    private static void clearRegistry()
+    {
+        for (Shape shape : Shape.getRegistry().toList())
+        {
+            Shape.unregisterShape(shape.getShapeID());
+        }
+    }
+
+    private static class RecordingHandler implements ShapeRowHandler
+    {
+        private final List<Integer> accepted = new ArrayList<>();
+        private int rejected;
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            accepted.add(shapeID);
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            assertEquals(RowRejection.DUPLICATE_ID, reason);
+            rejected++;
+        }
+    }
+}
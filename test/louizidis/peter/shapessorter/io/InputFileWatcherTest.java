@@ -0,0 +1,204 @@
+package louizidis.peter.shapessorter.io;
+
+import louizidis.peter.shapessorter.metrics.ShapesMetrics;
+import louizidis.peter.shapessorter.shapes.Shape;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Description: Drives InputFileWatcher.reload directly against temporary input files, the way ShapesSorter uses it:
+ *              the watcher is made, the file is loaded up to its offset, and then reloaded after each change.
+ * Notes:   The watcher works on the program's own registry and takes its duplicate policy from the system property,
+ *          so every test starts and ends with the registry empty and the property unset.
+ */
+
+public class InputFileWatcherTest
+{
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        clearRegistry();
+        System.clearProperty(DuplicateIdFilter.POLICY_PROPERTY);
+        directory = Files.createTempDirectory("InputFileWatcherTest");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        clearRegistry();
+        System.clearProperty(DuplicateIdFilter.POLICY_PROPERTY);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void appendIsParsedFromTheOffset() throws IOException
+    {
+        Path input = directory.resolve("Shapes.txt");
+        write(input, "1 1 2 2\n2 4 3 3\n");
+
+        InputFileWatcher watcher = new InputFileWatcher(input);
+        ParallelShapeLoader.load(input, watcher.getOffset());
+        assertEquals(0, watcher.reload());
+        Shape first = Shape.getRegistry().get(1);
+
+        long rowsBefore = ShapesMetrics.getInstance().getRowsParsed();
+        append(input, "3 4 2 2\n4 1 1 1\n1 1 5 5\n");
+        assertEquals(3, watcher.reload()); //3 and 4 added, 1 replaced by its later row
+        assertEquals(3, ShapesMetrics.getInstance().getRowsParsed() - rowsBefore); //the first two lines aren't read
+        assertEquals(Files.size(input), watcher.getOffset());
+        assertEquals(4, Shape.getRegistry().size());
+        assertNotSame(first, Shape.getRegistry().get(1));
+        assertTrue(Shape.getRegistry().get(1).isMadeFrom(1, new float[] {5, 5}));
+
+        assertEquals(0, watcher.reload()); //nothing new
+    }
+
+    @Test
+    public void rewriteOnlyTouchesTheShapesThatChanged() throws IOException
+    {
+        Path input = directory.resolve("Shapes.txt");
+        write(input, "1 1 2 2\n2 4 3 3\n3 3 3 4 90\n");
+
+        InputFileWatcher watcher = new InputFileWatcher(input);
+        ParallelShapeLoader.load(input, watcher.getOffset());
+        assertEquals(0, watcher.reload());
+        Shape first = Shape.getRegistry().get(1);
+
+        //shorter, so it can't be an append
+        write(input, "1 1 2 2\n2 4 5 5\n");
+        assertEquals(2, watcher.reload()); //2 replaced, 3 removed
+        assertSame(first, Shape.getRegistry().get(1));
+        assertNull(Shape.getRegistry().get(3));
+        assertEquals(25, Shape.getRegistry().get(2).getSurfaceArea(), 0);
+
+        //the same length, but the first line differs
+        write(input, "1 1 3 3\n2 4 5 5\n");
+        assertEquals(1, watcher.reload());
+        assertTrue(Shape.getRegistry().get(1).isMadeFrom(1, new float[] {3, 3}));
+        assertEquals(2, Shape.getRegistry().size());
+
+        //and appends carry on from the rewritten file
+        append(input, "5 1 1 1\n");
+        assertEquals(1, watcher.reload());
+        assertEquals(3, Shape.getRegistry().size());
+    }
+
+    @Test
+    public void unfinishedLastLineIsParsedAgainOnceFinished() throws IOException
+    {
+        Path input = directory.resolve("Shapes.txt");
+        write(input, "1 1 2 2\n2 4 3 3");
+
+        InputFileWatcher watcher = new InputFileWatcher(input);
+        assertEquals(8, watcher.getOffset()); //the load leaves the unfinished line to the watcher
+        ParallelShapeLoader.load(input, watcher.getOffset());
+        assertEquals(1, Shape.getRegistry().size());
+
+        assertEquals(1, watcher.reload());
+        assertEquals(9, Shape.getRegistry().get(2).getSurfaceArea(), 0);
+        assertEquals(8, watcher.getOffset());
+
+        append(input, "5\n3 1 1 1\n");
+        assertEquals(2, watcher.reload()); //2 replaced by its finished line, 3 added
+        assertEquals(105, Shape.getRegistry().get(2).getSurfaceArea(), 0);
+        assertEquals(Files.size(input), watcher.getOffset());
+        assertEquals(3, Shape.getRegistry().size());
+    }
+
+    @Test
+    public void appendedRepeatsFollowTheDuplicatePolicy() throws IOException
+    {
+        System.setProperty(DuplicateIdFilter.POLICY_PROPERTY, "first-wins");
+        Path input = directory.resolve("Shapes.txt");
+        write(input, "1 1 2 2\n");
+
+        InputFileWatcher watcher = new InputFileWatcher(input);
+        ParallelShapeLoader.load(input, watcher.getOffset());
+        assertEquals(0, watcher.reload());
+
+        //an unfinished repeat is held back, and dropped once finished
+        append(input, "1 1 9 9");
+        assertEquals(0, watcher.reload());
+        append(input, "\n2 4 3 3");
+        assertEquals(1, watcher.reload());
+        append(input, "\n2 4 7 7\n");
+        assertEquals(0, watcher.reload()); //2 was seen when its line was finished
+        assertTrue(Shape.getRegistry().get(1).isMadeFrom(1, new float[] {2, 2}));
+        assertEquals(9, Shape.getRegistry().get(2).getSurfaceArea(), 0);
+    }
+
+    @Test
+    public void compressedInputIsParsedOnceAndReloadedOnlyWhenItChanges() throws IOException
+    {
+        Path input = directory.resolve("Shapes.txt.gz");
+        writeCompressed(input, "1 1 2 2\n2 4 3 3\n3 3 3 4 90\nnot a shape\n");
+
+        InputFileWatcher watcher = new InputFileWatcher(input);
+        assertEquals(Long.MAX_VALUE, watcher.getOffset()); //no line offsets in compressed bytes
+        long rowsBefore = ShapesMetrics.getInstance().getRowsParsed();
+        ParallelShapeLoader.load(input, watcher.getOffset());
+        assertEquals(0, watcher.reload());
+        assertEquals(4, ShapesMetrics.getInstance().getRowsParsed() - rowsBefore);
+        assertEquals(3, Shape.getRegistry().size());
+
+        //a change is a rewrite, and only the shapes that changed are touched
+        writeCompressed(input, "1 1 2 2\n2 4 5 5\n4 1 1 1\n");
+        Files.setLastModifiedTime(input, FileTime.fromMillis(Files.getLastModifiedTime(input).toMillis() + 2000));
+        assertEquals(3, watcher.reload()); //2 replaced, 3 removed, 4 added
+        assertEquals(3, Shape.getRegistry().size());
+        assertEquals(25, Shape.getRegistry().get(2).getSurfaceArea(), 0);
+    }
+
+    private static void clearRegistry()
+    {
+        for (Shape shape : Shape.getRegistry().toList())
+        {
+            Shape.unregisterShape(shape.getShapeID());
+        }
+    }
+
+    private static void write(Path file, String contents) throws IOException
+    {
+        Files.write(file, contents.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static void append(Path file, String contents) throws IOException
+    {
+        Files.write(file, contents.getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+    }
+
+    private static void writeCompressed(Path file, String contents) throws IOException
+    {
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file)))
+        {
+            out.write(contents.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package louizidis.peter.shapessorter.sample;
+
+import louizidis.peter.shapessorter.ShapesSorter;
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeCategory;
+
+/**
+ * Description: Represents a regular pentagon, the shape made by the sample PentagonType.
+ */
+
+public class Pentagon extends Shape
+{
+    public static final String BASE_SHAPE = "Pentagon";
+    public static final String REGULAR = "Regular Pentagon";
+    public static final int REGULAR_CATEGORY = ShapeCategory.codeOf(BASE_SHAPE, REGULAR);
+
+    /* The area of a regular pentagon over the square of its side length. */
+    static final double AREA_FACTOR = 5 / (4 * Math.tan(Math.PI / 5));
+
+    private final float sideLength;
+
+    /* @param sideLength The length of each of the five sides. */
+    public Pentagon(int shapeID, float sideLength)
+    {
+        super(shapeID);
+        this.sideLength = sideLength;
+    }
+
+    @Override
+    protected int classify()
+    {
+        return REGULAR_CATEGORY;
+    }
+
+    @Override
+    protected double calculateSurfaceArea()
+    {
+        return ShapesSorter.round(AREA_FACTOR * sideLength * sideLength, 2);
+    }
+
+    @Override
+    protected double calculatePerimeter()
+    {
+        return ShapesSorter.round(5.0 * sideLength, 2);
+    }
+}
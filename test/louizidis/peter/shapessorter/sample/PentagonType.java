@@ -0,0 +1,47 @@
+package louizidis.peter.shapessorter.sample;
+
+import louizidis.peter.shapessorter.ShapesSorter;
+import louizidis.peter.shapessorter.shapes.Shape;
+import louizidis.peter.shapessorter.shapes.ShapeType;
+
+/**
+ * Description: A sample ShapeType, for regular pentagons: rows with a side count of 5 and a single data point, the
+ *              side length, eg. "17 5 2.5". It's found through the META-INF/services file next to the tests, so it's
+ *              loaded for every test but never for the program itself.
+ * Notes:   It has fewer data points than any built in type, so its rows are shorter than the parser's usual minimum.
+ */
+
+public class PentagonType implements ShapeType
+{
+    public static final int SIDES = 5;
+
+    @Override
+    public int getSides()
+    {
+        return SIDES;
+    }
+
+    @Override
+    public int getArity()
+    {
+        return 1;
+    }
+
+    @Override
+    public Shape createShape(int shapeID, float[] dimensions)
+    {
+        return new Pentagon(shapeID, dimensions[0]);
+    }
+
+    @Override
+    public void classify(float[] dimensionA, float[] dimensionB, float[] dimensionC, int count, int[] categories,
+                         double[] surfaceAreas, double[] perimeters)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            categories[i] = Pentagon.REGULAR_CATEGORY;
+            surfaceAreas[i] = ShapesSorter.round(Pentagon.AREA_FACTOR * dimensionA[i] * dimensionA[i], 2);
+            perimeters[i] = ShapesSorter.round(5.0 * dimensionA[i], 2);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.report.CategoryGrouping;
+import louizidis.peter.shapessorter.util.IntList;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Description: Registers, replaces and removes shapes from several threads at once, with a CategoryIndex listening,
+ *              then checks the index still agrees with the registry: the same IDs in every category, in ascending
+ *              order, with the same counts.
+ * Notes:   The writers share a small range of IDs so that most registrations replace a shape, often with one of
+ *          another category, which is the path that takes two category locks one after the other.
+ */
+
+public class CategoryIndexStressTest
+{
+    private static final int WRITERS = 6;
+    private static final int OPERATIONS_PER_WRITER = 400000;
+    private static final int SHAPE_IDS = 50000;
+
+    @Test
+    public void indexAgreesWithRegistryAfterConcurrentChanges() throws InterruptedException
+    {
+        final ShapeRegistry registry = new ShapeRegistry();
+        CategoryIndex index = new CategoryIndex();
+        registry.addListener(index);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int writer = 0; writer < WRITERS; writer++)
+        {
+            final long seed = writer;
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < OPERATIONS_PER_WRITER; i++)
+                        {
+                            int shapeID = random.nextInt(SHAPE_IDS);
+                            if (random.nextInt(4) == 0)
+                            {
+                                registry.remove(shapeID);
+                            }
+                            else
+                            {
+                                registry.put(randomShape(random, shapeID));
+                            }
+                        }
+                    }
+                    catch (Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "Writer-" + writer);
+            writers.add(thread);
+            thread.start();
+        }
+        for (Thread thread : writers)
+        {
+            thread.join();
+        }
+        assertNull("A writer failed: " + failure.get(), failure.get());
+
+        //what the index should hold, worked out from the registry alone
+        Map<Integer, IntList> expected = new HashMap<>();
+        for (Shape shape : registry)
+        {
+            IntList shapeIDs = expected.get(shape.getCategory());
+            if (shapeIDs == null)
+            {
+                shapeIDs = new IntList();
+                expected.put(shape.getCategory(), shapeIDs);
+            }
+            shapeIDs.add(shape.getShapeID());
+        }
+
+        CategoryGrouping grouping = index.snapshot();
+        assertEquals(expected.size(), grouping.size());
+        int total = 0;
+        for (int i = 0; i < grouping.size(); i++)
+        {
+            int category = grouping.getCategory(i);
+            IntList shapeIDs = expected.get(category);
+            shapeIDs.sort();
+            IntList indexed = grouping.getShapeIDs(i);
+            assertEquals(shapeIDs.size(), indexed.size());
+            assertEquals(shapeIDs.size(), index.count(category));
+            for (int j = 0; j < shapeIDs.size(); j++)
+            {
+                assertEquals(shapeIDs.get(j), indexed.get(j));
+            }
+            total += indexed.size();
+        }
+        assertEquals(registry.size(), total);
+    }
+
+    /* @return A shape of a random type, with dimensions that land it in any of that type's categories. */
+    private static Shape randomShape(Random random, int shapeID)
+    {
+        float sideA = 1 + random.nextInt(4);
+        float sideB = random.nextBoolean() ? sideA : 1 + random.nextInt(4);
+        switch (random.nextInt(3))
+        {
+            case 0:
+                return Shape.createShape(shapeID, 1, new float[] {sideA, sideB, 0});
+
+            case 1:
+                float angle = random.nextBoolean() ? 60 : 10 + random.nextInt(160);
+                return Shape.createShape(shapeID, 3, new float[] {sideA, sideB, angle});
+
+            default:
+                return Shape.createShape(shapeID, 4, new float[] {sideA, sideB, 0});
+        }
+    }
+}
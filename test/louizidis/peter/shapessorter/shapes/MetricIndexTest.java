@@ -0,0 +1,116 @@
+package louizidis.peter.shapessorter.shapes;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Description: Changes a registry with a MetricIndex listening, in enough small steps to go through many merges, and
+ *              after every few steps checks range and top queries against the registry sorted from scratch.
+ * Notes:   Half the shapes are there before the index is attached, so the bulk fill is covered as well.
+ */
+
+public class MetricIndexTest
+{
+    private static final int SHAPE_IDS = 20000;
+    private static final int CHANGES = 60000;
+    private static final int CHANGES_PER_CHECK = 997;
+
+    @Test
+    public void queriesAgreeWithTheRegistryThroughChanges()
+    {
+        Random random = new Random(7);
+        ShapeRegistry registry = new ShapeRegistry();
+        for (int shapeID = 0; shapeID < SHAPE_IDS; shapeID += 2)
+        {
+            registry.put(randomShape(random, shapeID));
+        }
+        MetricIndex index = new MetricIndex(MetricIndex.Metric.AREA, true);
+        index.attach(registry);
+        check(registry, index);
+
+        for (int i = 1; i <= CHANGES; i++)
+        {
+            int shapeID = random.nextInt(SHAPE_IDS);
+            if (random.nextInt(3) == 0)
+            {
+                registry.remove(shapeID);
+            }
+            else
+            {
+                registry.put(randomShape(random, shapeID));
+            }
+            if (i % CHANGES_PER_CHECK == 0)
+            {
+                check(registry, index);
+            }
+        }
+        check(registry, index);
+    }
+
+    private static void check(ShapeRegistry registry, MetricIndex index)
+    {
+        List<Shape> sorted = registry.toList();
+        Collections.sort(sorted, new Comparator<Shape>()
+        {
+            @Override
+            public int compare(Shape a, Shape b)
+            {
+                int byArea = Double.compare(a.getSurfaceArea(), b.getSurfaceArea());
+                return byArea != 0 ? byArea : Integer.compare(a.getShapeID(), b.getShapeID());
+            }
+        });
+        assertEquals(sorted.size(), index.size());
+
+        double min = 20;
+        double max = 60;
+        List<Integer> inRange = new ArrayList<>();
+        List<Integer> ovalsInRange = new ArrayList<>();
+        for (Shape shape : sorted)
+        {
+            if (shape.getSurfaceArea() >= min && shape.getSurfaceArea() <= max)
+            {
+                inRange.add(shape.getShapeID());
+                if (shape.getCategory() == Ellipse.OVAL_CATEGORY)
+                {
+                    ovalsInRange.add(shape.getShapeID());
+                }
+            }
+        }
+        assertArrayEquals(toArray(inRange), index.range(min, max, Integer.MAX_VALUE));
+        assertArrayEquals(toArray(inRange.subList(0, Math.min(50, inRange.size()))), index.range(min, max, 50));
+        assertArrayEquals(toArray(ovalsInRange), index.range(Ellipse.OVAL_CATEGORY, min, max, Integer.MAX_VALUE));
+
+        List<Integer> largest = new ArrayList<>();
+        for (int i = sorted.size() - 1; i >= 0 && largest.size() < 100; i--)
+        {
+            largest.add(sorted.get(i).getShapeID());
+        }
+        assertArrayEquals(toArray(largest), index.top(100));
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+        {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /* @return An ellipse or a quadrilateral with small whole dimensions, so plenty of shapes share an area. */
+    private static Shape randomShape(Random random, int shapeID)
+    {
+        float sideA = 1 + random.nextInt(8);
+        float sideB = 1 + random.nextInt(8);
+        return Shape.createShape(shapeID, random.nextBoolean() ? 1 : 4, new float[] {sideA, sideB, 0});
+    }
+}
@@ -0,0 +1,162 @@
+package louizidis.peter.shapessorter.shapes;
+
+import louizidis.peter.shapessorter.io.RowRejection;
+import louizidis.peter.shapessorter.io.ShapeFileParser;
+import louizidis.peter.shapessorter.io.ShapeRowHandler;
+import louizidis.peter.shapessorter.sample.Pentagon;
+import louizidis.peter.shapessorter.sample.PentagonType;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Description: Runs the sample PentagonType through everything that has to know about ShapeTypes: loading, the
+ *              parser's arity checks, the batch kernels and the snapshot.
+ * Notes:   The sample is registered by the META-INF/services file in the test directory, so ShapeTypes has loaded it
+ *          by the time any of these run.
+ */
+
+public class ShapeTypesTest
+{
+    private static final int FINGERPRINT_OFFSET = 28; //magic, version, source size and time, duplicate policy
+
+    @Test
+    public void sampleTypeIsLoaded()
+    {
+        assertTrue(ShapeTypes.forSides(PentagonType.SIDES) instanceof PentagonType);
+        assertNull(ShapeTypes.forSides(6));
+        assertNull(ShapeTypes.forSides(4)); //the built in types never come from the table
+        assertEquals(("5:" + PentagonType.class.getName() + ";").hashCode(), ShapeTypes.fingerprint());
+    }
+
+    @Test
+    public void parserChecksRowsAgainstTheTypesArity()
+    {
+        RowCollector rows = new RowCollector();
+        ShapeFileParser.parseLine("17 5 2.5", rows); //shorter than any built in type allows
+        ShapeFileParser.parseLine("18 5 2.5 3", rows);
+        ShapeFileParser.parseLine("19 5", rows);
+        ShapeFileParser.parseLine("20 6 1", rows);
+
+        assertEquals(1, rows.accepted.size());
+        assertArrayEquals(new float[] {17, 5, 2.5f, 0, 0}, rows.accepted.get(0), 0);
+        assertEquals(3, rows.rejected.size());
+        assertSame(RowRejection.PLUGIN_ARITY, rows.rejected.get(0));
+        assertSame(RowRejection.TOO_FEW_PARTS, rows.rejected.get(1));
+        assertSame(RowRejection.TOO_FEW_PARTS, rows.rejected.get(2));
+    }
+
+    @Test
+    public void kernelsAgreeWithTheShapesTheTypeMakes()
+    {
+        //the sample's rows between and around the built in kinds, so they're gathered from all over the block
+        byte[] sides = {5, 1, 5, 3, 4, 5, 5};
+        float[] dimensionA = {2.5f, 3, 1, 3, 2, 0.1f, 1000};
+        float[] dimensionB = {0, 4, 0, 4, 2, 0, 0};
+        float[] dimensionC = {0, 0, 0, 90, 0, 0, 0};
+        int[] categories = new int[sides.length];
+        double[] surfaceAreas = new double[sides.length];
+        double[] perimeters = new double[sides.length];
+        new ShapeKernels().classify(sides, dimensionA, dimensionB, dimensionC, 0, sides.length, categories,
+                surfaceAreas, perimeters);
+
+        for (int row = 0; row < sides.length; row++)
+        {
+            Shape shape = Shape.createShape(row, sides[row],
+                    new float[] {dimensionA[row], dimensionB[row], dimensionC[row]});
+            assertEquals(shape.getCategory(), categories[row]);
+            assertEquals(shape.getSurfaceArea(), surfaceAreas[row], 0);
+            assertEquals(shape.getPermimeter(), perimeters[row], 0);
+        }
+        assertEquals(Pentagon.REGULAR_CATEGORY, categories[0]);
+        assertEquals(10.75, surfaceAreas[0], 0);
+        assertEquals(12.5, perimeters[0], 0);
+    }
+
+    @Test
+    public void snapshotsRefuseTheTypesShapesAndCheckTheFingerprint() throws IOException
+    {
+        Path directory = Files.createTempDirectory("ShapeTypesTest");
+        Path source = directory.resolve("Shapes.txt");
+        Path snapshot = directory.resolve("Shapes.snapshot");
+        Files.write(source, "1 1 2 2\n2 5 2.5\n".getBytes(StandardCharsets.US_ASCII));
+        long size = Files.size(source);
+        long modified = Files.getLastModifiedTime(source).toMillis();
+        try
+        {
+            Shape.registerShape(1, 1, new float[] {2, 2, 0});
+            Shape.registerShape(2, PentagonType.SIDES, new float[] {2.5f, 0, 0});
+            try
+            {
+                ShapeSnapshot.write(snapshot, source, size, modified);
+                fail("A pentagon was saved in a snapshot");
+            }
+            catch (IOException e)
+            {
+                //expected, the sample's shapes have no saved form
+            }
+            assertFalse(Files.exists(snapshot));
+
+            Shape.unregisterShape(2);
+            assertTrue(ShapeSnapshot.write(snapshot, source, size, modified));
+            Shape.unregisterShape(1);
+            assertTrue(ShapeSnapshot.load(snapshot, source));
+            assertEquals(1, Shape.getRegistry().size());
+            Shape.unregisterShape(1);
+
+            //the same snapshot, as if it had been written with a different set of types loaded
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE))
+            {
+                ByteBuffer fingerprint = ByteBuffer.allocate(4);
+                fingerprint.putInt(0, ShapeTypes.fingerprint() + 1);
+                channel.write(fingerprint, FINGERPRINT_OFFSET);
+            }
+            assertFalse(ShapeSnapshot.load(snapshot, source));
+            assertEquals(0, Shape.getRegistry().size());
+        }
+        finally
+        {
+            Shape.unregisterShape(1);
+            Shape.unregisterShape(2);
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(source);
+            Files.delete(directory);
+        }
+    }
+
+    /* Keeps every row it's given, with the ID and side count in front of the data points. */
+    private static class RowCollector implements ShapeRowHandler
+    {
+        private final List<float[]> accepted = new ArrayList<>();
+        private final List<RowRejection> rejected = new ArrayList<>();
+
+        @Override
+        public void acceptRow(int shapeID, int sides, float[] dimensions)
+        {
+            accepted.add(new float[] {shapeID, sides, dimensions[0], dimensions[1], dimensions[2]});
+        }
+
+        @Override
+        public void rejectRow(RowRejection reason)
+        {
+            rejected.add(reason);
+        }
+    }
+}
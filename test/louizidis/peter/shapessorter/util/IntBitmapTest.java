@@ -0,0 +1,124 @@
+package louizidis.peter.shapessorter.util;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Description: Checks IntBitmap where its containers change from a sorted array to a bitmap, at 4096 values, and at
+ *              the ends of the int range, where negative values land in the top containers.
+ */
+
+public class IntBitmapTest
+{
+    private static final int SWITCH = 4096;
+
+    @Test
+    public void containerKeepsItsValuesAcrossTheSwitchToABitmap()
+    {
+        IntBitmap bitmap = new IntBitmap();
+        int base = 7 << 16;
+
+        //every third value, added from the top down so each add goes to the front of the array
+        for (int i = SWITCH - 1; i >= 0; i--)
+        {
+            assertTrue(bitmap.add(base + i * 3));
+        }
+        assertEquals(SWITCH, bitmap.size());
+        assertFalse(bitmap.add(base + 3)); //a full array turns away a repeat without switching
+        assertContainsEveryThird(bitmap, base, SWITCH);
+
+        assertTrue(bitmap.add(base + SWITCH * 3)); //the 4097th value switches the container to a bitmap
+        assertEquals(SWITCH + 1, bitmap.size());
+        assertContainsEveryThird(bitmap, base, SWITCH + 1);
+
+        assertTrue(bitmap.add(base + SWITCH * 3 + 3));
+        assertFalse(bitmap.add(base + SWITCH * 3 + 3));
+        assertEquals(SWITCH + 2, bitmap.size());
+        assertContainsEveryThird(bitmap, base, SWITCH + 2);
+
+        //neighbouring containers stay empty
+        assertFalse(bitmap.contains(base - 1));
+        assertFalse(bitmap.contains(base + (1 << 16)));
+    }
+
+    @Test
+    public void negativeValuesAndTheEndsOfTheRange()
+    {
+        IntBitmap bitmap = new IntBitmap();
+        int[] values = {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -65537, -65536, -2, -1, 0, 65535, 65536,
+                        Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+        assertFalse(bitmap.contains(-1)); //before the first add
+        for (int value : values)
+        {
+            assertTrue(bitmap.add(value));
+        }
+        for (int value : values)
+        {
+            assertTrue(bitmap.contains(value));
+            assertFalse(bitmap.add(value));
+        }
+        assertEquals(values.length, bitmap.size());
+        assertFalse(bitmap.contains(-3));
+        assertFalse(bitmap.contains(Integer.MIN_VALUE + 2));
+        assertFalse(bitmap.contains(1));
+        assertFalse(bitmap.contains(Integer.MAX_VALUE - 2));
+
+        //a run of negative values fills the top container past the switch
+        for (int value = -1; value >= -SWITCH * 2; value--)
+        {
+            bitmap.add(value);
+        }
+        assertEquals(values.length - 2 + SWITCH * 2, bitmap.size()); //-1 and -2 were already there
+        for (int value = -1; value >= -SWITCH * 2; value--)
+        {
+            assertTrue(bitmap.contains(value));
+        }
+        assertFalse(bitmap.contains(-SWITCH * 2 - 1));
+    }
+
+    @Test
+    public void matchesAHashSetForScatteredValues()
+    {
+        IntBitmap bitmap = new IntBitmap();
+        Set<Integer> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++)
+        {
+            //containers either side of zero, the odd ones held to 3000 values so they stay arrays
+            int high = random.nextInt(8) - 4;
+            int value = high << 16 | random.nextInt((high & 1) == 0 ? 1 << 16 : 3000);
+            assertEquals(expected.add(value), bitmap.add(value));
+        }
+        assertEquals(expected.size(), bitmap.size());
+        for (int i = 0; i < 200000; i++)
+        {
+            int value = (random.nextInt(10) - 5) << 16 | random.nextInt(1 << 16);
+            assertEquals(expected.contains(value), bitmap.contains(value));
+        }
+
+        bitmap.clear();
+        assertTrue(bitmap.isEmpty());
+        assertEquals(0, bitmap.size());
+        for (int value : expected)
+        {
+            assertFalse(bitmap.contains(value));
+        }
+        assertTrue(bitmap.add(-1));
+        assertEquals(1, bitmap.size());
+    }
+
+    private static void assertContainsEveryThird(IntBitmap bitmap, int base, int count)
+    {
+        for (int i = 0; i < count * 3; i++)
+        {
+            assertEquals(i % 3 == 0, bitmap.contains(base + i));
+        }
+    }
+}